@@ -0,0 +1,299 @@
+package org.pdxfinder.benchmarks;
+
+import org.pdxfinder.MappingEntity;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+/**
+ * Writes a synthetic data directory, to be used as data-dir, for load and scale testing:
+ * <ul>
+ * <li>mapping/diagnosis_mappings.json and mapping/treatment_mappings.json with the mapped
+ * entities, in the format the rules are exported and loaded in,</li>
+ * <li>data/UPDOG/&lt;provider&gt; directories with the patient and sample metadata and the drug
+ * dosing and patient treatment sheets read by the missing mapping discovery.</li>
+ * </ul>
+ * Every entity appears in the provider data of its data source, a share of them given by the
+ * unmapped ratio is left out of the rules. The same settings and seed always write the same
+ * files.
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar org.pdxfinder.benchmarks.CorpusGenerator \
+ *     --output=/tmp/pdx-data --entities=100000 --providers=40 --unmapped-ratio=0.1
+ * </pre>
+ */
+public class CorpusGenerator {
+
+    // Rows of the provider templates describing the columns, dropped when they are read
+    private static final String[] TEMPLATE_HEADER_ROWS =
+            {"#Description", "#Example", "#Format Requirements", "#Essential?"};
+
+    private static final List<String> SAMPLE_COLUMNS = Arrays.asList("Field", "patient_id",
+            "sample_id", "collection_date", "age_in_years_at_collection", "diagnosis",
+            "tumour_type", "primary_site", "collection_site", "model_id");
+
+    private static final List<String> DRUG_DOSING_COLUMNS = Arrays.asList("Field", "model_id",
+            "passage_range", "treatment_name", "treatment_type", "treatment_dose",
+            "administration_route", "treatment_schedule", "treatment_length", "treatment_response");
+
+    private static final List<String> PATIENT_TREATMENT_COLUMNS = Arrays.asList("Field",
+            "patient_id", "treatment_name", "treatment_dose", "treatment_starting_date",
+            "treatment_duration", "treatment_event", "treatment_response");
+
+    private static final String[] RESPONSES = {"complete response", "partial response",
+            "stable disease", "progressive disease", "not collected"};
+
+    private long seed = 42;
+
+    private int entities = 10000;
+
+    private int providers = 12;
+
+    private double unmappedRatio = 0.1;
+
+    private double typoRate = 0.2;
+
+    private int maxEdits = 1;
+
+    private int maxDrugsPerTreatment = 3;
+
+    public static void main(String[] args) throws IOException {
+        CorpusGenerator generator = new CorpusGenerator();
+        Path output = null;
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2) {
+                throw new IllegalArgumentException("Expected --option=value, got " + arg);
+            }
+            switch (option[0]) {
+                case "--output":
+                    output = Paths.get(option[1]);
+                    break;
+                case "--seed":
+                    generator.setSeed(Long.parseLong(option[1]));
+                    break;
+                case "--entities":
+                    generator.setEntities(Integer.parseInt(option[1]));
+                    break;
+                case "--providers":
+                    generator.setProviders(Integer.parseInt(option[1]));
+                    break;
+                case "--unmapped-ratio":
+                    generator.setUnmappedRatio(Double.parseDouble(option[1]));
+                    break;
+                case "--typo-rate":
+                    generator.setTypoRate(Double.parseDouble(option[1]));
+                    break;
+                case "--max-edits":
+                    generator.setMaxEdits(Integer.parseInt(option[1]));
+                    break;
+                case "--max-drugs-per-treatment":
+                    generator.setMaxDrugsPerTreatment(Integer.parseInt(option[1]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option[0]);
+            }
+        }
+        if (output == null) {
+            throw new IllegalArgumentException("--output is required");
+        }
+        generator.generate(output);
+    }
+
+    /**
+     * Number of diagnosis entities, and of treatment entities, to generate.
+     */
+    public void setEntities(int entities) {
+        this.entities = entities;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public void setProviders(int providers) {
+        this.providers = providers;
+    }
+
+    /**
+     * Share of the entities of the provider data that have no mapping rule.
+     */
+    public void setUnmappedRatio(double unmappedRatio) {
+        if (unmappedRatio < 0 || unmappedRatio > 1) {
+            throw new IllegalArgumentException("Unmapped ratio must be between 0 and 1");
+        }
+        this.unmappedRatio = unmappedRatio;
+    }
+
+    /**
+     * Probability of a word of an attribute value being misspelt.
+     */
+    public void setTypoRate(double typoRate) {
+        this.typoRate = typoRate;
+    }
+
+    /**
+     * Largest number of edits of a misspelt word.
+     */
+    public void setMaxEdits(int maxEdits) {
+        this.maxEdits = maxEdits;
+    }
+
+    /**
+     * Largest number of drugs combined in a treatment name of the provider data.
+     */
+    public void setMaxDrugsPerTreatment(int maxDrugsPerTreatment) {
+        this.maxDrugsPerTreatment = maxDrugsPerTreatment;
+    }
+
+    public void generate(Path dataDir) throws IOException {
+        SyntheticCorpus corpus = new SyntheticCorpus(seed, providers, typoRate, maxEdits);
+        List<MappingEntity> diagnoses = corpus.distinctEntities(entities, corpus::diagnosis);
+        List<MappingEntity> treatments = corpus.distinctEntities(entities, corpus::treatment);
+
+        Path mappingDir = Files.createDirectories(dataDir.resolve("mapping"));
+        SyntheticCorpus.writeRules(mappingDir.resolve("diagnosis_mappings.json"),
+                mapShare(corpus, diagnoses));
+        SyntheticCorpus.writeRules(mappingDir.resolve("treatment_mappings.json"),
+                mapShare(corpus, treatments));
+
+        Map<String, List<MappingEntity>> diagnosesBySource = bySource(corpus, diagnoses);
+        Map<String, List<MappingEntity>> treatmentsBySource = bySource(corpus, treatments);
+        Path updogDir = dataDir.resolve("data").resolve("UPDOG");
+        for (String dataSource : corpus.getDataSources()) {
+            Path providerDir = Files.createDirectories(updogDir.resolve(dataSource));
+            writeSamples(providerDir.resolve(dataSource + "_metadata-patient_sample.tsv"),
+                    dataSource, diagnosesBySource.get(dataSource), corpus.getRandom());
+            writeTreatments(corpus.getRandom(), dataSource, treatmentsBySource.get(dataSource),
+                    Files.createDirectories(providerDir.resolve("drug"))
+                            .resolve(dataSource + "_drugdosing-Sheet1.tsv"),
+                    Files.createDirectories(providerDir.resolve("treatment"))
+                            .resolve(dataSource + "_patienttreatment-Sheet1.tsv"));
+        }
+    }
+
+    /**
+     * Maps all the entities but the unmapped share, picked at random.
+     */
+    private List<MappingEntity> mapShare(SyntheticCorpus corpus, List<MappingEntity> entities) {
+        List<MappingEntity> mapped = new ArrayList<>();
+        for (MappingEntity entity : entities) {
+            if (corpus.getRandom().nextDouble() >= unmappedRatio) {
+                corpus.map(entity);
+                mapped.add(entity);
+            }
+        }
+        return mapped;
+    }
+
+    private static Map<String, List<MappingEntity>> bySource(SyntheticCorpus corpus,
+                                                             List<MappingEntity> entities) {
+        Map<String, List<MappingEntity>> bySource = new LinkedHashMap<>();
+        for (String dataSource : corpus.getDataSources()) {
+            bySource.put(dataSource, new ArrayList<>());
+        }
+        entities.forEach(x -> bySource.get(x.getMappingValues().get("DataSource")).add(x));
+        return bySource;
+    }
+
+    private void writeSamples(Path file, String dataSource, List<MappingEntity> diagnoses,
+                              Random random) throws IOException {
+        try (BufferedWriter writer = newTemplate(file, SAMPLE_COLUMNS)) {
+            int patient = 0;
+            for (MappingEntity diagnosis : diagnoses) {
+                Map<String, String> values = diagnosis.getMappingValues();
+                String patientId = String.format("%s-P%06d", dataSource, patient++);
+                Map<String, String> row = new HashMap<>();
+                row.put("patient_id", patientId);
+                row.put("sample_id", patientId + "-S1");
+                row.put("collection_date", "Jan/2019");
+                row.put("age_in_years_at_collection", String.valueOf(20 + random.nextInt(60)));
+                row.put("diagnosis", values.get("SampleDiagnosis"));
+                row.put("tumour_type", values.get("TumorType"));
+                row.put("primary_site", values.get("OriginTissue"));
+                row.put("collection_site", values.get("OriginTissue"));
+                row.put("model_id", patientId + "-M1");
+                writeRow(writer, SAMPLE_COLUMNS, row);
+            }
+        }
+    }
+
+    /**
+     * Spreads the drugs of the data source over the treatment names of both sheets, every drug
+     * appearing at least once, some of them combined with others.
+     */
+    private void writeTreatments(Random random, String dataSource, List<MappingEntity> drugs,
+                                 Path drugDosingFile, Path patientTreatmentFile)
+            throws IOException {
+        try (BufferedWriter drugDosing = newTemplate(drugDosingFile, DRUG_DOSING_COLUMNS);
+             BufferedWriter patientTreatment =
+                     newTemplate(patientTreatmentFile, PATIENT_TREATMENT_COLUMNS)) {
+            int row = 0;
+            for (MappingEntity drug : drugs) {
+                List<String> names = new ArrayList<>();
+                names.add(drug.getMappingValues().get("TreatmentName"));
+                int combined = random.nextInt(Math.max(1, maxDrugsPerTreatment));
+                for (int i = 0; i < combined && drugs.size() > 1; i++) {
+                    names.add(drugs.get(random.nextInt(drugs.size()))
+                            .getMappingValues().get("TreatmentName"));
+                }
+                String treatmentName = names.stream().distinct().collect(Collectors.joining(" + "));
+                String id = String.format("%s-P%06d", dataSource, row++);
+                Map<String, String> values = new HashMap<>();
+                values.put("treatment_name", treatmentName);
+                values.put("treatment_dose", (1 + random.nextInt(100)) + " mg/kg");
+                values.put("treatment_response", RESPONSES[random.nextInt(RESPONSES.length)]);
+                if (random.nextBoolean()) {
+                    values.put("model_id", id + "-M1");
+                    values.put("passage_range", "1-" + (2 + random.nextInt(5)));
+                    values.put("treatment_type", "drug");
+                    values.put("administration_route", "intraperitoneal");
+                    values.put("treatment_schedule", "days 1-5");
+                    values.put("treatment_length", (7 + random.nextInt(50)) + " days");
+                    writeRow(drugDosing, DRUG_DOSING_COLUMNS, values);
+                } else {
+                    values.put("patient_id", id);
+                    values.put("treatment_starting_date", "Jan/2018");
+                    values.put("treatment_duration", (1 + random.nextInt(12)) + " months");
+                    values.put("treatment_event", "treatment");
+                    writeRow(patientTreatment, PATIENT_TREATMENT_COLUMNS, values);
+                }
+            }
+        }
+    }
+
+    private static BufferedWriter newTemplate(Path file, List<String> columns) throws IOException {
+        BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+        writer.write(String.join("\t", columns));
+        writer.newLine();
+        for (String headerRow : TEMPLATE_HEADER_ROWS) {
+            writer.write(headerRow);
+            for (int i = 1; i < columns.size(); i++) {
+                writer.write("\t" + columns.get(i));
+            }
+            writer.newLine();
+        }
+        return writer;
+    }
+
+    // The first column of the templates only describes the header rows, it is empty for data
+    private static void writeRow(BufferedWriter writer, List<String> columns,
+                                 Map<String, String> values) throws IOException {
+        for (int i = 1; i < columns.size(); i++) {
+            writer.write("\t" + values.getOrDefault(columns.get(i), ""));
+        }
+        writer.newLine();
+    }
+}
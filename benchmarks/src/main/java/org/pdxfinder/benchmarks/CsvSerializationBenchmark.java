@@ -0,0 +1,57 @@
+package org.pdxfinder.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pdxfinder.UtilityService;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of a mapping CSV upload into one map per row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CsvSerializationBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    private int size;
+
+    private final UtilityService utilityService = new UtilityService();
+
+    private Path csvFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        csvFile = Files.createTempFile("mappings", ".csv");
+        SyntheticCorpus.writeCsv(csvFile, new SyntheticCorpus(42).diagnosisEntities(size));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(csvFile);
+    }
+
+    @Benchmark
+    public List<Map<String, String>> serializeCSVToMaps() {
+        return utilityService.serializeCSVToMaps(csvFile.toString());
+    }
+}
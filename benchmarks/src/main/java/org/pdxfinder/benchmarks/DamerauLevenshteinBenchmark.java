@@ -0,0 +1,80 @@
+package org.pdxfinder.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pdxfinder.utils.BitParallelDamerauLevenshtein;
+import org.pdxfinder.utils.DamerauLevenshteinAlgorithm;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distance between pairs of strings a few edits apart, with the cost assignment the suggestions
+ * use, computed by the table and by the bit-parallel engine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DamerauLevenshteinBenchmark {
+
+    private static final int PAIRS = 1024;
+
+    @Param({"8", "24", "64", "120"})
+    private int length;
+
+    private final DamerauLevenshteinAlgorithm dla = new DamerauLevenshteinAlgorithm(1, 1, 2, 2);
+
+    private final DamerauLevenshteinAlgorithm bitParallel =
+            new BitParallelDamerauLevenshtein(1, 1, 2, 2);
+
+    private String[] sources;
+
+    private String[] targets;
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        SyntheticCorpus corpus = new SyntheticCorpus(42);
+        sources = new String[PAIRS];
+        targets = new String[PAIRS];
+        for (int i = 0; i < PAIRS; i++) {
+            sources[i] = corpus.word(length);
+            targets[i] = corpus.edit(sources[i], 1 + i % 6);
+        }
+    }
+
+    @Benchmark
+    public int execute() {
+        int i = nextPair();
+        return dla.execute(sources[i], targets[i]);
+    }
+
+    @Benchmark
+    public int executeBounded() {
+        int i = nextPair();
+        return dla.execute(sources[i], targets[i], 4);
+    }
+
+    @Benchmark
+    public int executeBitParallel() {
+        int i = nextPair();
+        return bitParallel.execute(sources[i], targets[i]);
+    }
+
+    private int nextPair() {
+        next = (next + 1) & (PAIRS - 1);
+        return next;
+    }
+}
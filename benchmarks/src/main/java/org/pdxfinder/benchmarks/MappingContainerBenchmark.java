@@ -0,0 +1,88 @@
+package org.pdxfinder.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pdxfinder.MappingContainer;
+import org.pdxfinder.MappingEntity;
+import org.pdxfinder.MappingRulesSnapshot;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups of mapping rules by mapping key, as done for every diagnosis and treatment of the
+ * provider data, for keys that have a rule and keys that have none, in a container and in the
+ * rules snapshot held by the mapping service.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class MappingContainerBenchmark {
+
+    private static final int KEYS = 4096;
+
+    @Param({"10000", "100000", "1000000"})
+    private int size;
+
+    private MappingContainer container;
+
+    private MappingRulesSnapshot snapshot;
+
+    private String[] knownKeys;
+
+    private String[] unknownKeys;
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        SyntheticCorpus corpus = new SyntheticCorpus(42);
+        List<MappingEntity> entities = corpus.diagnosisEntities(size + KEYS);
+        container = new MappingContainer();
+        entities.subList(0, size).forEach(container::addEntity);
+        snapshot = MappingRulesSnapshot.of(entities.subList(0, size));
+
+        knownKeys = new String[KEYS];
+        unknownKeys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            knownKeys[i] = entities.get(i * (size / KEYS)).getMappingKey();
+            unknownKeys[i] = entities.get(size + i).getMappingKey();
+        }
+    }
+
+    @Benchmark
+    public MappingEntity getEntityByIdFound() {
+        next = (next + 1) & (KEYS - 1);
+        return container.getEntityById(knownKeys[next]);
+    }
+
+    @Benchmark
+    public MappingEntity getEntityByIdNotFound() {
+        next = (next + 1) & (KEYS - 1);
+        return container.getEntityById(unknownKeys[next]);
+    }
+
+    @Benchmark
+    public MappingEntity snapshotGetEntityByIdFound() {
+        next = (next + 1) & (KEYS - 1);
+        return snapshot.getEntityById(knownKeys[next]);
+    }
+
+    @Benchmark
+    public MappingEntity snapshotGetEntityByIdNotFound() {
+        next = (next + 1) & (KEYS - 1);
+        return snapshot.getEntityById(unknownKeys[next]);
+    }
+}
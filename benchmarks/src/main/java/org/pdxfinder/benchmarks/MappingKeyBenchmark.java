@@ -0,0 +1,65 @@
+package org.pdxfinder.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pdxfinder.MappingEntity;
+import org.pdxfinder.MappingService;
+import org.pdxfinder.PaginationService;
+import org.pdxfinder.UtilityService;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mapping key derivation, from an entity and from the attribute values of a diagnosis looked up
+ * while loading provider data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MappingKeyBenchmark {
+
+    private static final int ENTITIES = 1024;
+
+    private MappingService mappingService;
+
+    private List<MappingEntity> entities;
+
+    private int next;
+
+    @Setup
+    public void setUp() {
+        mappingService =
+                new MappingService(null, new UtilityService(), new PaginationService(), null);
+        entities = new SyntheticCorpus(42).diagnosisEntities(ENTITIES);
+    }
+
+    @Benchmark
+    public String generateMappingKey() {
+        return nextEntity().generateMappingKey();
+    }
+
+    @Benchmark
+    public String getDiagnosisMappingKey() {
+        Map<String, String> values = nextEntity().getMappingValues();
+        return mappingService.getDiagnosisMappingKey(values.get("DataSource"),
+                values.get("SampleDiagnosis"), values.get("OriginTissue"), values.get("TumorType"));
+    }
+
+    private MappingEntity nextEntity() {
+        next = (next + 1) & (ENTITIES - 1);
+        return entities.get(next);
+    }
+}
@@ -0,0 +1,80 @@
+package org.pdxfinder.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pdxfinder.MappingContainer;
+import org.pdxfinder.MappingService;
+import org.pdxfinder.PaginationService;
+import org.pdxfinder.UtilityService;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Loading of the diagnosis mapping rules file into the mapping container of a new mapping
+ * service, as done on the first rule lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class RulesLoadingBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    private int size;
+
+    private final UtilityService utilityService = new UtilityService();
+
+    private final PaginationService paginationService = new PaginationService();
+
+    private Path dataDir;
+
+    private Path rulesFile;
+
+    private Method loadDiagnosisMappings;
+
+    @Setup
+    public void setUp() throws IOException, ReflectiveOperationException {
+        dataDir = Files.createTempDirectory("mapping-rules");
+        rulesFile = dataDir.resolve("diagnosis_mappings.json");
+        SyntheticCorpus.writeRules(rulesFile, new SyntheticCorpus(42).diagnosisEntities(size));
+
+        loadDiagnosisMappings =
+                MappingService.class.getDeclaredMethod("loadDiagnosisMappings", String.class,
+                        MappingContainer.class);
+        loadDiagnosisMappings.setAccessible(true);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dataDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(x -> x.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public MappingContainer loadDiagnosisMappings() throws ReflectiveOperationException {
+        MappingService mappingService =
+                new MappingService(null, utilityService, paginationService, null);
+        MappingContainer container = new MappingContainer();
+        loadDiagnosisMappings.invoke(mappingService, rulesFile.toString(), container);
+        return container;
+    }
+}
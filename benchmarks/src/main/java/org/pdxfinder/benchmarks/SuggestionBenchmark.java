@@ -0,0 +1,102 @@
+package org.pdxfinder.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pdxfinder.MappingEntity;
+import org.pdxfinder.SuggestionService;
+import org.pdxfinder.constants.MappingEntityType;
+import org.pdxfinder.repositories.MappingEntityRepository;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Suggestions of an unmapped diagnosis against a resident corpus of mapped diagnoses, ranked
+ * exhaustively through the BK-tree or after the trigram prefilter. Queries have no mapping key,
+ * so the suggestion cache is never used.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+public class SuggestionBenchmark {
+
+    private static final int QUERIES = 256;
+
+    @Param({"10000", "100000", "1000000"})
+    private int size;
+
+    @Param({"false", "true"})
+    private boolean prefilter;
+
+    private SuggestionService suggestionService;
+
+    private MappingEntity[] queries;
+
+    private int next;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        SyntheticCorpus corpus = new SyntheticCorpus(42);
+        List<MappingEntity> mapped = corpus.diagnosisEntities(size);
+        suggestionService = new SuggestionService(mappedEntitiesRepository(mapped), null);
+        setField(suggestionService, "prefilterEnabled", prefilter);
+        // The defaults of application.properties, not applied outside of Spring
+        setField(suggestionService, "prefilterCandidates", 300);
+
+        queries = new MappingEntity[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = corpus.diagnosis();
+            queries[i].setMappingKey(null);
+        }
+        // Loads the index outside of the measurement
+        suggestionService.getIndex(MappingEntityType.DIAGNOSIS.getLabel());
+    }
+
+    @TearDown
+    public void tearDown() {
+        suggestionService.shutdown();
+    }
+
+    @Benchmark
+    public List<MappingEntity> getSuggestions() {
+        next = (next + 1) % QUERIES;
+        return suggestionService.getSuggestions(queries[next]);
+    }
+
+    /**
+     * Repository answering the query the suggestion index is loaded with, nothing else is used.
+     */
+    static MappingEntityRepository mappedEntitiesRepository(List<MappingEntity> mapped) {
+        return (MappingEntityRepository) Proxy.newProxyInstance(
+                MappingEntityRepository.class.getClassLoader(),
+                new Class<?>[]{MappingEntityRepository.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("findByEntityTypeAndMapTypeIsNotNull")) {
+                        return mapped;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    static void setField(Object target, String name, Object value)
+            throws ReflectiveOperationException {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
@@ -0,0 +1,262 @@
+package org.pdxfinder.benchmarks;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import org.pdxfinder.MappingEntity;
+import org.pdxfinder.constants.MappingEntityType;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Mapping entities that look like the ones submitted by the data providers, generated from a
+ * seed so every run works on the same corpus. Values are drawn from a small vocabulary, each word
+ * getting up to maxEdits random edits with probability typoRate, so suggestions have close and
+ * far candidates to rank.
+ */
+public class SyntheticCorpus {
+
+    private static final String[] DIAGNOSIS_WORDS = {"carcinoma", "adenocarcinoma", "melanoma",
+            "lymphoma", "sarcoma", "glioblastoma", "leukemia", "myeloma", "acute", "chronic",
+            "myeloid", "lymphoblastic", "invasive", "ductal", "lobular", "squamous", "cell",
+            "small", "large", "non-small", "b-cell", "t-cell", "colon", "colorectal", "lung",
+            "breast", "pancreatic", "gastric", "ovarian", "prostate", "renal", "hepatocellular",
+            "metastatic", "recurrent", "poorly", "differentiated", "neoplasm", "malignant"};
+
+    private static final String[] TREATMENT_WORDS = {"5-fluorouracil", "cisplatin", "carboplatin",
+            "oxaliplatin", "cetuximab", "irinotecan", "paclitaxel", "docetaxel", "gemcitabine",
+            "doxorubicin", "cyclophosphamide", "trastuzumab", "bevacizumab", "erlotinib",
+            "gefitinib", "imatinib", "temozolomide", "vincristine", "etoposide", "tamoxifen",
+            "letrozole", "capecitabine", "pemetrexed", "sorafenib", "control", "vehicle", "saline"};
+
+    private static final String[] TISSUES = {"blood", "bone marrow", "breast", "colon", "rectum",
+            "lung", "liver", "pancreas", "stomach", "ovary", "prostate", "kidney", "brain", "skin",
+            "lymph node", "bone", "soft tissue", "bladder", "cervix", "esophagus"};
+
+    private static final String[] TUMOR_TYPES = {"primary", "metastatic", "recurrent",
+            "refractory", "not specified"};
+
+    private static final String[] DATA_SOURCES = {"jax", "ircc-crc", "trace", "curie-bc",
+            "curie-lc", "crl", "pdmr", "mdanderson", "wustl", "lih", "unitofr", "vhio-crc"};
+
+    private final Random random;
+
+    private final String[] dataSources;
+
+    private final double typoRate;
+
+    private final int maxEdits;
+
+    private final Set<String> mappingKeys = new HashSet<>();
+
+    private long nextEntityId = 1;
+
+    public SyntheticCorpus(long seed) {
+        this(seed, DATA_SOURCES.length, 0.2, 1);
+    }
+
+    /**
+     * @param providers number of data sources the entities are spread over
+     * @param typoRate  probability of a word of a value being edited
+     * @param maxEdits  largest number of edits of an edited word
+     */
+    public SyntheticCorpus(long seed, int providers, double typoRate, int maxEdits) {
+        if (providers < 1 || typoRate < 0 || typoRate > 1 || maxEdits < 0) {
+            throw new IllegalArgumentException("Invalid corpus settings");
+        }
+        this.random = new Random(seed);
+        this.dataSources = new String[providers];
+        for (int i = 0; i < providers; i++) {
+            dataSources[i] = i < DATA_SOURCES.length
+                    ? DATA_SOURCES[i]
+                    : String.format("provider-%04d", i);
+        }
+        this.typoRate = typoRate;
+        this.maxEdits = maxEdits;
+    }
+
+    public String[] getDataSources() {
+        return dataSources.clone();
+    }
+
+    /**
+     * Mapped diagnosis entities with distinct mapping keys.
+     */
+    public List<MappingEntity> diagnosisEntities(int count) {
+        List<MappingEntity> entities = distinctEntities(count, this::diagnosis);
+        entities.forEach(this::map);
+        return entities;
+    }
+
+    /**
+     * Mapped treatment entities with distinct mapping keys.
+     */
+    public List<MappingEntity> treatmentEntities(int count) {
+        List<MappingEntity> entities = distinctEntities(count, this::treatment);
+        entities.forEach(this::map);
+        return entities;
+    }
+
+    /**
+     * Entities with distinct mapping keys, none of them sharing a key with the entities returned
+     * before by this corpus. They are neither mapped nor given an id.
+     */
+    public List<MappingEntity> distinctEntities(int count, Supplier<MappingEntity> generator) {
+        List<MappingEntity> entities = new ArrayList<>(count);
+        while (entities.size() < count) {
+            MappingEntity entity = generator.get();
+            if (mappingKeys.add(entity.getMappingKey())) {
+                entities.add(entity);
+            }
+        }
+        return entities;
+    }
+
+    /**
+     * Gives the entity an id and maps it to a term.
+     */
+    public void map(MappingEntity entity) {
+        entity.setEntityId(nextEntityId++);
+        entity.setMappedTermLabel(entity.getMappingValues().getOrDefault("SampleDiagnosis",
+                entity.getMappingValues().get("TreatmentName")));
+        entity.setMappedTermUrl(
+                "http://purl.obolibrary.org/obo/NCIT_C" + (1000 + random.nextInt(90000)));
+        entity.setMapType("direct");
+        entity.setJustification("0");
+        entity.setStatus("validated");
+    }
+
+    public Random getRandom() {
+        return random;
+    }
+
+    /**
+     * Unmapped diagnosis entity without an id, as submitted by a provider.
+     */
+    public MappingEntity diagnosis() {
+        Map<String, String> values = new HashMap<>();
+        values.put("DataSource", pick(dataSources));
+        values.put("SampleDiagnosis", text(DIAGNOSIS_WORDS, 2 + random.nextInt(3)));
+        values.put("OriginTissue", text(TISSUES, 1));
+        values.put("TumorType", pick(TUMOR_TYPES));
+        List<String> labels =
+                Arrays.asList("DataSource", "SampleDiagnosis", "OriginTissue", "TumorType");
+        return entity(MappingEntityType.DIAGNOSIS.getLabel(), labels, values);
+    }
+
+    /**
+     * Unmapped treatment entity of a single drug, as split from the treatment names of the
+     * provider data.
+     */
+    public MappingEntity treatment() {
+        Map<String, String> values = new HashMap<>();
+        values.put("DataSource", pick(dataSources));
+        values.put("TreatmentName", text(TREATMENT_WORDS, 1));
+        return entity(MappingEntityType.TREATMENT.getLabel(),
+                Arrays.asList("DataSource", "TreatmentName"), values);
+    }
+
+    /**
+     * Random string of the given length over a lower-case alphabet.
+     */
+    public String word(int length) {
+        char[] characters = new char[length];
+        for (int i = 0; i < length; i++) {
+            characters[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(characters);
+    }
+
+    /**
+     * The word with up to the given number of random edits applied.
+     */
+    public String edit(String word, int edits) {
+        StringBuilder edited = new StringBuilder(word);
+        for (int i = 0; i < edits && edited.length() > 1; i++) {
+            int position = random.nextInt(edited.length());
+            switch (random.nextInt(3)) {
+                case 0:
+                    edited.deleteCharAt(position);
+                    break;
+                case 1:
+                    edited.insert(position, (char) ('a' + random.nextInt(26)));
+                    break;
+                default:
+                    edited.setCharAt(position, (char) ('a' + random.nextInt(26)));
+            }
+        }
+        return edited.toString();
+    }
+
+    /**
+     * Writes the entities as a mapping rules file, in the format MappingService.saveMappingsToFile
+     * exports them in, one entity at a time.
+     */
+    public static void writeRules(Path file, List<MappingEntity> entities) throws IOException {
+        Gson gson = new Gson();
+        try (JsonWriter writer = gson.newJsonWriter(
+                Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            writer.beginObject();
+            writer.name("mappings");
+            writer.beginArray();
+            for (MappingEntity entity : entities) {
+                gson.toJson(entity, MappingEntity.class, writer);
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+    }
+
+    /**
+     * Writes the entities as a CSV file with one column per mapping label.
+     */
+    public static void writeCsv(Path file, List<MappingEntity> entities) throws IOException {
+        List<String> labels = entities.get(0).getMappingLabels();
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("Data Id," + String.join(",", labels) + ",Mapped Term,Mapped Term URL");
+            writer.newLine();
+            for (MappingEntity entity : entities) {
+                writer.write(String.valueOf(entity.getEntityId()));
+                for (String label : labels) {
+                    writer.write(",\"" + entity.getMappingValues().get(label) + "\"");
+                }
+                writer.write("," + entity.getMappedTermLabel() + "," + entity.getMappedTermUrl());
+                writer.newLine();
+            }
+        }
+    }
+
+    private MappingEntity entity(String entityType, List<String> labels,
+                                 Map<String, String> values) {
+        MappingEntity entity = new MappingEntity(entityType, new ArrayList<>(labels), values);
+        entity.setMappingKey(entity.generateMappingKey());
+        return entity;
+    }
+
+    private String text(String[] vocabulary, int words) {
+        List<String> parts = new ArrayList<>(words);
+        for (int i = 0; i < words; i++) {
+            String word = pick(vocabulary);
+            parts.add(maxEdits > 0 && random.nextDouble() < typoRate
+                    ? edit(word, 1 + random.nextInt(maxEdits))
+                    : word);
+        }
+        return String.join(" ", parts);
+    }
+
+    public String pick(String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+}
@@ -12,7 +12,6 @@ import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
-import org.apache.commons.codec.digest.DigestUtils;
 
 @Getter
 @Setter
@@ -143,16 +142,15 @@ public class MappingEntity {
 
     public String generateMappingKey(){
 
-        String key = entityType;
+        MappingKeyBuilder key = MappingKeyBuilder.start(MappingKeyBuilder.Normalization.FILTER)
+                .add(entityType);
 
         for(String label : mappingLabels){
 
-            key += "__" + mappingValues.get(label);
+            key.add(mappingValues.get(label));
         }
 
-        key = key.replaceAll("[^a-zA-Z0-9 _-]","");
-        key = DigestUtils.sha256Hex(key);
-        return key.toLowerCase();
+        return key.hex();
 
     }
 
@@ -0,0 +1,196 @@
+package org.pdxfinder;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * Derives mapping keys: the SHA-256 digest of the entity type and the attribute values joined
+ * with "__", keeping only letters, digits, spaces, underscores and hyphens, as a lower-case hex
+ * string. Same keys as with String.replaceAll("[^a-zA-Z0-9 _-]", "") and DigestUtils.sha256Hex,
+ * lower-casing before or after filtering as the normalization says.
+ *
+ * Each thread reuses one builder and one digest. The characters kept are fed to the digest as
+ * the values are read, only values with characters other than ASCII ones that have to be
+ * lower-cased first, or a default locale lower-casing ASCII letters to other ones, go through
+ * the String methods.
+ *
+ * <pre>
+ * String key = MappingKeyBuilder.start(Normalization.FILTER).add(type).add(value).hex();
+ * </pre>
+ */
+public final class MappingKeyBuilder {
+
+    public enum Normalization {
+        /** Characters kept as they are. */
+        FILTER,
+        /** Characters kept, then lower-cased. */
+        FILTER_THEN_LOWER_CASE,
+        /** Values lower-cased, then their characters kept. */
+        LOWER_CASE_THEN_FILTER
+    }
+
+    private static final String SEPARATOR = "__";
+
+    private static final String UPPER_CASE_LETTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final int DIGEST_BYTES = 32;
+
+    private static final ThreadLocal<MappingKeyBuilder> BUILDERS =
+            ThreadLocal.withInitial(MappingKeyBuilder::new);
+
+    private final MessageDigest messageDigest;
+
+    private final byte[] buffer = new byte[512];
+
+    private final byte[] digest = new byte[DIGEST_BYTES];
+
+    private int length;
+
+    private boolean first;
+
+    private Normalization normalization;
+
+    private Locale locale;
+
+    // Whether the default locale lower-cases A-Z to a-z, as all but a few do
+    private boolean asciiLowerCase;
+
+    private MappingKeyBuilder() {
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The builder of the calling thread, reset. It must not be used once another key is started
+     * on the same thread.
+     */
+    public static MappingKeyBuilder start(Normalization normalization) {
+        MappingKeyBuilder builder = BUILDERS.get();
+        builder.reset(normalization);
+        return builder;
+    }
+
+    /**
+     * Appends the value, preceded by the separator unless it is the first one. Null values are
+     * appended as "null".
+     */
+    public MappingKeyBuilder add(String value) {
+        if (!first) {
+            appendValue(SEPARATOR);
+        }
+        first = false;
+        appendValue(value == null ? "null" : value);
+        return this;
+    }
+
+    /**
+     * The digest of the key, held by the builder until the next key of the thread.
+     */
+    public byte[] digest() {
+        flush();
+        try {
+            messageDigest.digest(digest, 0, DIGEST_BYTES);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+        return digest;
+    }
+
+    public String hex() {
+        byte[] bytes = digest();
+        char[] hex = new char[DIGEST_BYTES * 2];
+        for (int i = 0; i < DIGEST_BYTES; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    private void reset(Normalization normalization) {
+        this.normalization = normalization;
+        messageDigest.reset();
+        length = 0;
+        first = true;
+        Locale defaultLocale = Locale.getDefault();
+        if (defaultLocale != locale) {
+            locale = defaultLocale;
+            asciiLowerCase = UPPER_CASE_LETTERS.toLowerCase(locale)
+                    .equals(UPPER_CASE_LETTERS.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    private void appendValue(String value) {
+        boolean lowerCase = normalization != Normalization.FILTER;
+        if (lowerCase && !asciiLowerCase) {
+            appendWithStrings(value);
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80 && normalization == Normalization.LOWER_CASE_THEN_FILTER) {
+                // Lower-cased it may give a letter that is kept. The rest of the value is
+                // lower-cased on its own, which only changes characters that are not kept
+                appendWithStrings(value.substring(i));
+                return;
+            }
+            if (isKept(c)) {
+                if (lowerCase && c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                }
+                appendByte((byte) c);
+            }
+        }
+    }
+
+    private void appendWithStrings(String value) {
+        String normalized;
+        switch (normalization) {
+            case FILTER_THEN_LOWER_CASE:
+                normalized = filter(value).toLowerCase();
+                break;
+            case LOWER_CASE_THEN_FILTER:
+                normalized = filter(value.toLowerCase());
+                break;
+            default:
+                normalized = filter(value);
+        }
+        for (byte b : normalized.getBytes(StandardCharsets.UTF_8)) {
+            appendByte(b);
+        }
+    }
+
+    private void appendByte(byte b) {
+        if (length == buffer.length) {
+            flush();
+        }
+        buffer[length++] = b;
+    }
+
+    private void flush() {
+        messageDigest.update(buffer, 0, length);
+        length = 0;
+    }
+
+    private static String filter(String value) {
+        StringBuilder filtered = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            if (isKept(value.charAt(i))) {
+                filtered.append(value.charAt(i));
+            }
+        }
+        return filtered.toString();
+    }
+
+    private static boolean isKept(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == ' ' || c == '_' || c == '-';
+    }
+}
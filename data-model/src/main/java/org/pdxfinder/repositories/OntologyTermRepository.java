@@ -2,6 +2,8 @@ package org.pdxfinder.repositories;
 
 import org.pdxfinder.OntologyTerm;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
 import java.util.List;
 
@@ -11,5 +13,8 @@ public interface OntologyTermRepository extends JpaRepository<OntologyTerm, Inte
 
   List<OntologyTerm> findAllByType(String type);
 
+  @Query("select distinct ot from OntologyTerm ot left join fetch ot.synonyms where ot.type = :type")
+  List<OntologyTerm> findAllWithSynonymsByType(@Param("type") String type);
+
   void deleteAllByType(String type);
 }
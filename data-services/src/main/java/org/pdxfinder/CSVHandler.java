@@ -1,7 +1,7 @@
 package org.pdxfinder;
 
-import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.pdxfinder.MappingKeyBuilder.Normalization;
 import org.pdxfinder.constants.CSV;
 import org.pdxfinder.constants.MappingEntityType;
 import org.springframework.stereotype.Service;
@@ -180,32 +180,25 @@ public class CSVHandler {
 
     public String getMappingKeyFromCSVData(String entityType, Map<String, String> data){
 
-        String mappingKey = "";
+        MappingKeyBuilder mappingKey = MappingKeyBuilder.start(Normalization.LOWER_CASE_THEN_FILTER);
 
         if (entityType.equals(MappingEntityType.DIAGNOSIS.getLabel())) {
 
-            mappingKey = String.join("__",
-                                     entityType,
-                                     data.get(CSV.dataSource.get()),
-                                     data.get(CSV.sampleDiagnosis.get()),
-                                     data.get(CSV.originTissue.get()),
-                                     data.get(CSV.tumorType.get())
-
-            ).toLowerCase().replaceAll("[^a-zA-Z0-9 _-]", "");
+            mappingKey.add(entityType)
+                      .add(data.get(CSV.dataSource.get()))
+                      .add(data.get(CSV.sampleDiagnosis.get()))
+                      .add(data.get(CSV.originTissue.get()))
+                      .add(data.get(CSV.tumorType.get()));
 
         }
         else if (entityType.equals(MappingEntityType.TREATMENT.getLabel())) {
 
-            mappingKey = String.join("__",
-                                     entityType,
-                                     data.get(CSV.dataSource.get()),
-                                     data.get(CSV.treatmentName.get())
-
-            ).toLowerCase().replaceAll("[^a-zA-Z0-9 _-]", "");
+            mappingKey.add(entityType)
+                      .add(data.get(CSV.dataSource.get()))
+                      .add(data.get(CSV.treatmentName.get()));
 
         }
 
-        mappingKey = DigestUtils.sha256Hex(mappingKey);
-        return mappingKey;
+        return mappingKey.hex();
     }
 }
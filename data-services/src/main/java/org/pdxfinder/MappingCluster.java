@@ -0,0 +1,228 @@
+package org.pdxfinder;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.pdxfinder.constants.DiagnosisMappingLabels;
+import org.pdxfinder.utils.BKTree;
+import org.pdxfinder.utils.BitParallelDamerauLevenshtein;
+import org.pdxfinder.utils.DamerauLevenshteinAlgorithm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unmapped entities of one type that are near duplicates of each other, so they can share their
+ * suggestions and be mapped at once.
+ *
+ * Entities land in the same cluster when their attributes other than the data source are equal
+ * once lower-cased, with runs of punctuation and spaces made single spaces. Clusters whose
+ * primary values are then still within a small edit distance of each other, their other
+ * attributes being equal, are merged into the largest one. Short primary values are only
+ * clustered when equal, a single edit often being enough to tell two of them apart.
+ */
+public class MappingCluster {
+
+  // Shortest normalized primary value clustered by edit distance
+  private static final int MIN_FUZZY_LENGTH = 6;
+
+  private final Long id;
+
+  private final String entityType;
+
+  private final MappingEntity representative;
+
+  private final List<MappingEntity> entities;
+
+  private List<MappingEntity> suggestedMappings;
+
+  private MappingCluster(MappingEntity representative, List<MappingEntity> entities) {
+    this.id = representative.getEntityId();
+    this.entityType = representative.getEntityType();
+    this.representative = representative;
+    this.entities = Collections.unmodifiableList(entities);
+  }
+
+  /**
+   * Id of the representative entity.
+   */
+  public Long getId() {
+    return id;
+  }
+
+  public String getEntityType() {
+    return entityType;
+  }
+
+  /**
+   * The entity the suggestions of the cluster are computed for, the first of its entities.
+   */
+  @JsonIgnore
+  public MappingEntity getRepresentative() {
+    return representative;
+  }
+
+  public List<MappingEntity> getEntities() {
+    return entities;
+  }
+
+  /**
+   * Whether the entities of the cluster are exactly the ones with the given ids, in any order.
+   */
+  public boolean hasEntityIds(Collection<Long> entityIds) {
+    Set<Long> ids = new HashSet<>(entityIds);
+    return ids.size() == entities.size()
+        && entities.stream().allMatch(x -> ids.contains(x.getEntityId()));
+  }
+
+  public int getSize() {
+    return entities.size();
+  }
+
+  public List<MappingEntity> getSuggestedMappings() {
+    return suggestedMappings;
+  }
+
+  public void setSuggestedMappings(List<MappingEntity> suggestedMappings) {
+    this.suggestedMappings = suggestedMappings;
+  }
+
+  /**
+   * Clusters the entities, largest clusters first. The primary values of the entities merged into
+   * a cluster are within maxDistance edits of the one of its representative, 0 only clustering
+   * entities equal once normalized. The same entities always give the same clusters.
+   */
+  public static List<MappingCluster> cluster(Collection<MappingEntity> entities,
+      int maxDistance) {
+
+    List<MappingEntity> sorted = new ArrayList<>(entities);
+    sorted.sort(Comparator
+        .comparing(MappingEntity::getEntityId, Comparator.nullsLast(Comparator.naturalOrder()))
+        .thenComparing(MappingEntity::getMappingKey,
+            Comparator.nullsLast(Comparator.naturalOrder())));
+
+    Map<String, List<MappingEntity>> groups = new LinkedHashMap<>();
+    for (MappingEntity entity : sorted) {
+      if (entity.getEntityType() != null && entity.getMappingKey() != null) {
+        groups.computeIfAbsent(getGroupKey(entity), x -> new ArrayList<>()).add(entity);
+      }
+    }
+    List<List<MappingEntity>> bySize = new ArrayList<>(groups.values());
+    bySize.sort(Comparator.comparingInt(x -> -x.size()));
+
+    DamerauLevenshteinAlgorithm dla = new BitParallelDamerauLevenshtein(1, 1, 1, 1);
+    // Groups merging the others, searched by primary value among those sharing the rest
+    Map<String, BKTree<char[], Leader>> leaders = new HashMap<>();
+    List<List<MappingEntity>> clusters = new ArrayList<>();
+    for (List<MappingEntity> group : bySize) {
+      MappingEntity first = group.get(0);
+      String primaryLabel = MappingSuggestionIndex.getPrimaryLabel(first.getEntityType());
+      char[] primaryValue = primaryLabel == null
+          ? new char[0]
+          : normalize(first.getMappingValues().get(primaryLabel)).toCharArray();
+      if (maxDistance < 1 || primaryValue.length < MIN_FUZZY_LENGTH) {
+        clusters.add(group);
+        continue;
+      }
+
+      BKTree<char[], Leader> tree = leaders.computeIfAbsent(
+          getSecondaryKey(first, primaryLabel),
+          x -> new BKTree<>((a, b) -> dla.execute(a, b, Integer.MAX_VALUE)));
+      Leader closest = findClosest(tree, primaryValue, maxDistance);
+      if (closest != null) {
+        closest.entities.addAll(group);
+      } else {
+        tree.add(primaryValue, new Leader(clusters.size(), group));
+        clusters.add(group);
+      }
+    }
+
+    List<MappingCluster> result = new ArrayList<>(clusters.size());
+    clusters.forEach(x -> result.add(new MappingCluster(x.get(0), x)));
+    result.sort(Comparator.comparingInt(x -> -x.getSize()));
+    return result;
+  }
+
+  /**
+   * The closest leader within maxDistance, the one created first among equally close ones.
+   */
+  private static Leader findClosest(BKTree<char[], Leader> tree, char[] primaryValue,
+      int maxDistance) {
+
+    Leader[] closest = new Leader[1];
+    int[] closestDistance = {Integer.MAX_VALUE};
+    tree.search(primaryValue, () -> maxDistance, (key, distance, values) -> {
+      for (Leader leader : values) {
+        if (distance < closestDistance[0]
+            || (distance == closestDistance[0] && leader.order < closest[0].order)) {
+          closestDistance[0] = distance;
+          closest[0] = leader;
+        }
+      }
+    });
+    return closest[0];
+  }
+
+  private static String getGroupKey(MappingEntity entity) {
+    return getAttributeKey(entity, null);
+  }
+
+  private static String getSecondaryKey(MappingEntity entity, String primaryLabel) {
+    return getAttributeKey(entity, primaryLabel);
+  }
+
+  // Normalized values of the attributes other than the data source and the excluded one
+  private static String getAttributeKey(MappingEntity entity, String excludedLabel) {
+    StringBuilder key = new StringBuilder(entity.getEntityType().toLowerCase());
+    for (String label : entity.getMappingLabels()) {
+      if (!DiagnosisMappingLabels.DATA_SOURCE.getLabel().equals(label)
+          && !label.equals(excludedLabel)) {
+        key.append('\u0000').append(label).append('=')
+            .append(normalize(entity.getMappingValues().get(label)));
+      }
+    }
+    return key.toString();
+  }
+
+  private static final class Leader {
+
+    private final int order;
+
+    private final List<MappingEntity> entities;
+
+    Leader(int order, List<MappingEntity> entities) {
+      this.order = order;
+      this.entities = entities;
+    }
+  }
+
+  /**
+   * Lower-cased letters and digits of the value, runs of anything else turned into single spaces.
+   */
+  static String normalize(String value) {
+    if (value == null) {
+      return "";
+    }
+    StringBuilder normalized = new StringBuilder(value.length());
+    boolean separator = false;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (Character.isLetterOrDigit(c)) {
+        if (separator && normalized.length() > 0) {
+          normalized.append(' ');
+        }
+        normalized.append(Character.toLowerCase(c));
+        separator = false;
+      } else {
+        separator = true;
+      }
+    }
+    return normalized.toString();
+  }
+}
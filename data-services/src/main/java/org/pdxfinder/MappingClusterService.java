@@ -0,0 +1,97 @@
+package org.pdxfinder;
+
+import org.pdxfinder.dto.PaginationDTO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Clusters of near duplicate unmapped entities, for curators to map all the entities of a
+ * cluster in one go. Clusters are computed from the unmapped entities stored at the time of the
+ * request.
+ */
+@Service
+public class MappingClusterService {
+
+  private final MappingService mappingService;
+
+  private final SuggestionService suggestionService;
+
+  private final PaginationService paginationService;
+
+  @Autowired
+  public MappingClusterService(MappingService mappingService,
+      SuggestionService suggestionService,
+      PaginationService paginationService) {
+    this.mappingService = mappingService;
+    this.suggestionService = suggestionService;
+    this.paginationService = paginationService;
+  }
+
+  /**
+   * Clusters of the unmapped entities of the given type, or of every type when empty, largest
+   * first.
+   */
+  public List<MappingCluster> getClusters(String entityType) {
+    List<MappingEntity> unmapped = mappingService.getNotMappedEntities().stream()
+        .filter(x -> entityType.isEmpty() || entityType.equalsIgnoreCase(x.getEntityType()))
+        .collect(Collectors.toList());
+    return suggestionService.clusterUnmappedEntities(unmapped);
+  }
+
+  /**
+   * A page of the clusters of the given type with the suggestions of each cluster, shared by its
+   * entities.
+   */
+  public PaginationDTO getClusterPage(String entityType, int page, int size) {
+    size = (size > 0) ? size : 10;
+    int start = (page > 0) ? page - 1 : 0;
+
+    List<MappingCluster> clusters = getClusters(entityType);
+    int from = Math.min(clusters.size(), start * size);
+    List<MappingCluster> pageClusters =
+        new ArrayList<>(clusters.subList(from, Math.min(clusters.size(), from + size)));
+    pageClusters.forEach(x ->
+        x.setSuggestedMappings(suggestionService.getSuggestions(x.getRepresentative())));
+
+    PaginationDTO paginationDto = paginationService.initializeDTO(
+        new PageImpl<>(pageClusters, PageRequest.of(start, size), clusters.size()));
+    paginationDto.setAdditionalProperty("clusters", pageClusters);
+    return paginationDto;
+  }
+
+  public Optional<MappingCluster> getCluster(Long clusterId) {
+    return getClusters("").stream()
+        .filter(x -> clusterId.equals(x.getId()))
+        .findFirst();
+  }
+
+  /**
+   * Maps the entities of the cluster to the term of the given mapping, with its map type,
+   * justification and status. Callers check the entities are still the ones the curator
+   * reviewed, see {@link MappingCluster#hasEntityIds}.
+   *
+   * @return the updated entities
+   */
+  public List<MappingEntity> mapCluster(MappingCluster cluster, MappingEntity mapping) {
+    List<MappingEntity> submittedEntities = new ArrayList<>();
+    for (MappingEntity entity : cluster.getEntities()) {
+      MappingEntity submitted = new MappingEntity();
+      submitted.setEntityId(entity.getEntityId());
+      submitted.setEntityType(entity.getEntityType());
+      submitted.setMappedTermLabel(mapping.getMappedTermLabel());
+      submitted.setMappedTermUrl(mapping.getMappedTermUrl());
+      submitted.setMapType(mapping.getMapType());
+      submitted.setJustification(mapping.getJustification());
+      submitted.setStatus(mapping.getStatus());
+      submittedEntities.add(submitted);
+    }
+    return mappingService.updateRecords(submittedEntities);
+  }
+}
@@ -62,6 +62,20 @@ public class MappingContainer {
 
     }
 
+    public void replaceEntity(MappingEntity me){
+
+        if(mappings.put(me.getMappingKey(), me) == null){
+            size += 1;
+        }
+    }
+
+    public void removeEntity(String id){
+
+        if(mappings.remove(id) != null){
+            size -= 1;
+        }
+    }
+
     public int getSize() {
         return size;
     }
@@ -0,0 +1,150 @@
+package org.pdxfinder;
+
+import org.pdxfinder.utils.TopKCollector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Inverted index from the character trigrams of the attribute values of mapping entities to the
+ * entities having them. Used to pick the few entities sharing the most trigrams with an unmapped
+ * entity before scoring them with the edit distance.
+ *
+ * Trigrams are counted per attribute, those of the primary attribute weighing as much more as the
+ * primary attribute does in the similarity score. Not thread safe.
+ */
+public class MappingNGramIndex {
+
+    private static final int N = 3;
+
+    private final String primaryLabel;
+
+    private final int primaryWeight;
+
+    private final Map<String, Postings> postings = new HashMap<>();
+
+    private final Map<String, Integer> slotsByKey = new HashMap<>();
+
+    private MappingEntity[] entities = new MappingEntity[16];
+
+    private int slotCount;
+
+    public MappingNGramIndex(String primaryLabel, int primaryWeight) {
+        this.primaryLabel = primaryLabel;
+        this.primaryWeight = primaryWeight;
+    }
+
+    public int getSize() {
+        return slotsByKey.size();
+    }
+
+    public void add(MappingEntity entity) {
+        remove(entity.getMappingKey());
+        if (slotCount == entities.length) {
+            entities = Arrays.copyOf(entities, slotCount * 2);
+        }
+        int slot = slotCount++;
+        entities[slot] = entity;
+        slotsByKey.put(entity.getMappingKey(), slot);
+        for (String gram : getGrams(entity)) {
+            postings.computeIfAbsent(gram, x -> new Postings()).add(slot);
+        }
+    }
+
+    /**
+     * Removed entities leave an empty slot behind, the index is rebuilt once most slots are empty.
+     */
+    public void remove(String mappingKey) {
+        Integer slot = slotsByKey.remove(mappingKey);
+        if (slot == null) {
+            return;
+        }
+        entities[slot] = null;
+        if (slotCount > 64 && slotsByKey.size() < slotCount / 2) {
+            compact();
+        }
+    }
+
+    /**
+     * Returns up to maxCandidates entities sharing the most weighted trigrams with the given one,
+     * ties going to the lowest entity id. Entities sharing none are never returned.
+     */
+    public List<MappingEntity> getCandidates(MappingEntity me, int maxCandidates) {
+        int[] overlap = new int[slotCount];
+        for (String gram : getGrams(me)) {
+            Postings gramPostings = postings.get(gram);
+            if (gramPostings == null) {
+                continue;
+            }
+            int weight = isPrimary(gram) ? primaryWeight : 1;
+            for (int i = 0; i < gramPostings.size; i++) {
+                overlap[gramPostings.slots[i]] += weight;
+            }
+        }
+
+        TopKCollector<MappingEntity> top = new TopKCollector<>(maxCandidates);
+        for (int slot = 0; slot < slotCount; slot++) {
+            MappingEntity entity = entities[slot];
+            if (entity != null && overlap[slot] > 0) {
+                Long entityId = entity.getEntityId();
+                top.offer(-overlap[slot], entityId == null ? Long.MAX_VALUE : entityId, entity);
+            }
+        }
+        return top.drainSorted();
+    }
+
+    private boolean isPrimary(String gram) {
+        return primaryLabel != null
+                && gram.length() == primaryLabel.length() + 1 + N
+                && gram.startsWith(primaryLabel);
+    }
+
+    private void compact() {
+        List<MappingEntity> live = new ArrayList<>(slotsByKey.size());
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (entities[slot] != null) {
+                live.add(entities[slot]);
+            }
+        }
+        postings.clear();
+        slotsByKey.clear();
+        entities = new MappingEntity[Math.max(16, live.size() * 2)];
+        slotCount = 0;
+        live.forEach(this::add);
+    }
+
+    private Set<String> getGrams(MappingEntity entity) {
+        Set<String> grams = new LinkedHashSet<>();
+        for (String label : entity.getMappingLabels()) {
+            String value = entity.getMappingValues().get(label);
+            if (value == null || value.isEmpty()) {
+                continue;
+            }
+            String padded = "  " + value.toLowerCase() + " ";
+            for (int i = 0; i + N <= padded.length(); i++) {
+                grams.add(label + '\u0000' + padded.substring(i, i + N));
+            }
+        }
+        return grams;
+    }
+
+    private static class Postings {
+
+        private int[] slots = new int[4];
+
+        private int size;
+
+        void add(int slot) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            slots[size++] = slot;
+        }
+    }
+}
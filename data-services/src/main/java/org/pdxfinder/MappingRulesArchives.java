@@ -0,0 +1,206 @@
+package org.pdxfinder;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.TreeMap;
+
+/**
+ * Rules archives built once per version of the rules and kept on disk, so they can be sent as
+ * they are until the rules change. The archive of the rules files is keyed by the modification
+ * time and size of the files, and so is still valid after a restart. The journaled changes not in
+ * the files yet are folded into them first. The EurOPDX archive is keyed by the version of the
+ * rules in memory, its ETag being the digest of its content. Neither is built while the rules
+ * cannot be read as they are.
+ *
+ * Replaced archives may still be being sent, from the disk by the connector itself, so they are
+ * only deleted once replaced for longer than the grace period.
+ */
+@Service
+public class MappingRulesArchives {
+
+  private static final Logger log = LoggerFactory.getLogger(MappingRulesArchives.class);
+
+  static final String MAPPING_RULES = "mappingRules";
+
+  static final String EUROPDX_MAPPING_RULES = "EurOPDX_mappingRules";
+
+  private static final int ETAG_LENGTH = 32;
+
+  private final MappingService mappingService;
+
+  @Value("${mappings.export.cache-dir:${java.io.tmpdir}/pdx-admin-mapping-archives}")
+  private String cacheDir;
+
+  @Value("${mappings.export.deflate-level:-1}")
+  private int exportDeflateLevel = -1;
+
+  @Value("${mappings.export.grace-period-ms:600000}")
+  private long gracePeriodMs = 600000;
+
+  // Time each archive no longer current was first found replaced, by file
+  private final Map<Path, Long> replacedArchives = new HashMap<>();
+
+  private Archive mappingRulesArchive;
+
+  private Archive eurOPDXArchive;
+
+  /**
+   * Rules archive stored in the cache directory, never modified once there.
+   */
+  public static final class Archive {
+
+    private final String key;
+
+    private final String eTag;
+
+    private final Path file;
+
+    public Archive(String key, String eTag, Path file) {
+      this.key = key;
+      this.eTag = eTag;
+      this.file = file;
+    }
+
+    public String getETag() {
+      return eTag;
+    }
+
+    public Path getFile() {
+      return file;
+    }
+  }
+
+  private interface ArchiveWriter {
+
+    void write(OutputStream outputStream) throws IOException;
+  }
+
+  @Autowired
+  public MappingRulesArchives(MappingService mappingService) {
+    this.mappingService = mappingService;
+  }
+
+  /**
+   * Zip archive of the rules files, built again only when one of them has changed.
+   *
+   * @return the archive, empty when the journaled changes could not be written to the files
+   */
+  public synchronized Optional<Archive> getMappingRulesArchive() throws IOException {
+    if (!mappingService.writePendingRulesFiles()) {
+      return Optional.empty();
+    }
+    String key = getMappingRulesFilesKey();
+    if (mappingRulesArchive != null && mappingRulesArchive.key.equals(key)
+        && Files.isRegularFile(mappingRulesArchive.file)) {
+      return Optional.of(mappingRulesArchive);
+    }
+    String eTag = DigestUtils.sha256Hex(key).substring(0, ETAG_LENGTH);
+    Path file = getArchiveFile(MAPPING_RULES, eTag);
+    if (!Files.isRegularFile(file)) {
+      Path temporaryFile = writeTemporaryArchive(MAPPING_RULES, mappingService::writeMappingRules,
+          null);
+      Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE);
+      log.info("Built mapping rules archive {}", file);
+    }
+    mappingRulesArchive = replaceArchive(MAPPING_RULES, new Archive(key, eTag, file));
+    return Optional.of(mappingRulesArchive);
+  }
+
+  /**
+   * Zip archive of the EurOPDX rules, built again only when the rules in memory have changed.
+   *
+   * @return the archive, empty while the rules are being loaded on startup
+   */
+  public synchronized Optional<Archive> getEurOPDXMappingRulesArchive() throws IOException {
+    // Read before building, so rules changing meanwhile give another archive on the next call
+    OptionalLong version = mappingService.getLoadedRulesVersion();
+    if (version.isEmpty()) {
+      return Optional.empty();
+    }
+    String key = String.valueOf(version.getAsLong());
+    if (eurOPDXArchive != null && eurOPDXArchive.key.equals(key)
+        && Files.isRegularFile(eurOPDXArchive.file)) {
+      return Optional.of(eurOPDXArchive);
+    }
+    MessageDigest digest = DigestUtils.getSha256Digest();
+    Path temporaryFile = writeTemporaryArchive(EUROPDX_MAPPING_RULES,
+        mappingService::writeEurOPDXMappingsRules, digest);
+    String eTag = Hex.encodeHexString(digest.digest()).substring(0, ETAG_LENGTH);
+    Path file = getArchiveFile(EUROPDX_MAPPING_RULES, eTag);
+    Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE);
+    log.info("Built EurOPDX mapping rules archive {}", file);
+    eurOPDXArchive = replaceArchive(EUROPDX_MAPPING_RULES, new Archive(key, eTag, file));
+    return Optional.of(eurOPDXArchive);
+  }
+
+  private String getMappingRulesFilesKey() throws IOException {
+    StringBuilder key = new StringBuilder("level:").append(exportDeflateLevel);
+    for (Map.Entry<String, String> path :
+        new TreeMap<>(mappingService.getMappingRulesPaths()).entrySet()) {
+      Path file = Paths.get(path.getValue());
+      key.append('|').append(path.getKey())
+          .append(':').append(Files.getLastModifiedTime(file).toMillis())
+          .append(':').append(Files.size(file));
+    }
+    return key.toString();
+  }
+
+  private Path writeTemporaryArchive(String name, ArchiveWriter writer, MessageDigest digest)
+      throws IOException {
+    Path temporaryFile = Files.createTempFile(getCacheDirectory(), name, ".tmp");
+    try (OutputStream output = Files.newOutputStream(temporaryFile)) {
+      writer.write(digest == null ? output : new DigestOutputStream(output, digest));
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(temporaryFile);
+      throw e;
+    }
+    return temporaryFile;
+  }
+
+  /**
+   * Deletes the other archives of the same name replaced for longer than the grace period, the
+   * ones found on disk counting as replaced from now.
+   */
+  private Archive replaceArchive(String name, Archive archive) throws IOException {
+    long now = System.currentTimeMillis();
+    replacedArchives.remove(archive.file);
+    try (DirectoryStream<Path> files =
+        Files.newDirectoryStream(getCacheDirectory(), name + "-*.zip")) {
+      for (Path file : files) {
+        if (!file.equals(archive.file)
+            && now - replacedArchives.computeIfAbsent(file, x -> now) >= gracePeriodMs) {
+          Files.deleteIfExists(file);
+          replacedArchives.remove(file);
+        }
+      }
+    }
+    return archive;
+  }
+
+  private Path getArchiveFile(String name, String eTag) throws IOException {
+    return getCacheDirectory().resolve(name + "-" + eTag + ".zip");
+  }
+
+  private Path getCacheDirectory() throws IOException {
+    return Files.createDirectories(Paths.get(cacheDir));
+  }
+}
@@ -0,0 +1,37 @@
+package org.pdxfinder;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Health of the mapping rules, "mappingRules" in the health endpoint and part of the readiness
+ * group: down until the rules loaded at startup are in memory, so no traffic is routed to an
+ * instance still loading them. Always up when the rules are loaded lazily.
+ */
+@Component
+public class MappingRulesHealthIndicator implements HealthIndicator {
+
+  private final MappingService mappingService;
+
+  @Autowired
+  public MappingRulesHealthIndicator(MappingService mappingService) {
+    this.mappingService = mappingService;
+  }
+
+  @Override
+  public Health health() {
+    if (mappingService.isRulesLoaded()) {
+      return Health.up().withDetail("loading", "done").build();
+    }
+    if (mappingService.isLazyRulesLoading()) {
+      return Health.up().withDetail("loading", "lazy").build();
+    }
+    Exception failure = mappingService.getRulesLoadingFailure();
+    if (failure != null) {
+      return Health.down(failure).withDetail("loading", "failed").build();
+    }
+    return Health.down().withDetail("loading", "in progress").build();
+  }
+}
@@ -0,0 +1,357 @@
+package org.pdxfinder;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import org.pdxfinder.MappingRulesReader.MappingRule;
+import org.pdxfinder.constants.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only journal of the changes to the mapping rules of each entity type, one rule per line
+ * in the format of the rules files. The rules are those of the rules file with the records of the
+ * journal applied in order. Records are written as they are appended and forced to disk together,
+ * at most one sync interval later.
+ *
+ * Compaction seals the journal of a type into a segment, a new journal taking the next records.
+ * Once the rules file has the changes of the sealed segments they are moved to the archive
+ * directory, where they remain as the history of the changes.
+ */
+public class MappingRulesJournal implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(MappingRulesJournal.class);
+
+  private static final String EXTENSION = ".journal";
+
+  private static final String ARCHIVE = "archive";
+
+  // Sealed segments sort in the order they were sealed
+  private static final DateTimeFormatter SEGMENT_TIME =
+      DateTimeFormatter.ofPattern("yyyyMMddHHmmssSSS").withZone(ZoneOffset.UTC);
+
+  private final Path directory;
+
+  private final long syncIntervalMs;
+
+  private final Map<String, FileChannel> journals = new HashMap<>();
+
+  private final Set<FileChannel> unsyncedJournals = new HashSet<>();
+
+  private ScheduledExecutorService syncer;
+
+  /**
+   * Reads a journal record as a rule, null when it is not one that is loaded.
+   */
+  public interface RuleReader {
+
+    MappingEntity read(MappingRule record) throws JsonParseException;
+  }
+
+  /**
+   * @param syncIntervalMs longest time before appended records are forced to disk, 0 to force
+   *                       them before append returns
+   */
+  public MappingRulesJournal(Path directory, long syncIntervalMs) {
+    this.directory = directory;
+    this.syncIntervalMs = syncIntervalMs;
+  }
+
+  /**
+   * Appends records written by MappingRulesWriter.toRecords to the journal of the entity type.
+   */
+  public synchronized void append(String entityType, byte[] records) throws IOException {
+    FileChannel journal = getJournal(entityType);
+    ByteBuffer buffer = ByteBuffer.wrap(records);
+    long end = journal.position();
+    try {
+      while (buffer.hasRemaining()) {
+        journal.write(buffer);
+      }
+    } catch (IOException e) {
+      // The next records must not follow a partly written one
+      try {
+        journal.truncate(end);
+      } catch (IOException truncateFailure) {
+        e.addSuppressed(truncateFailure);
+      }
+      throw e;
+    }
+    if (syncIntervalMs <= 0) {
+      journal.force(false);
+    } else {
+      unsyncedJournals.add(journal);
+      startSyncer();
+    }
+  }
+
+  /**
+   * Forces the records appended so far to disk.
+   */
+  public void sync() {
+    List<FileChannel> journalsToSync;
+    synchronized (this) {
+      journalsToSync = new ArrayList<>(unsyncedJournals);
+      unsyncedJournals.clear();
+    }
+    // Outside the lock, appends go on meanwhile
+    for (FileChannel journal : journalsToSync) {
+      try {
+        journal.force(false);
+      } catch (ClosedChannelException e) {
+        // Sealed, and forced then
+      } catch (IOException e) {
+        log.error("Could not sync the mapping rules journal", e);
+      }
+    }
+  }
+
+  /**
+   * Seals the journal of the entity type, the next records going to a new one.
+   *
+   * @return the sealed segments of the type whose changes are not yet in the rules file, oldest
+   * first
+   */
+  public synchronized List<Path> seal(String entityType) throws IOException {
+    FileChannel journal = journals.remove(entityType);
+    if (journal != null) {
+      unsyncedJournals.remove(journal);
+      journal.force(false);
+      journal.close();
+    }
+    Path journalFile = getJournalFile(entityType);
+    if (Files.exists(journalFile) && Files.size(journalFile) > 0) {
+      Instant sealed = Instant.now();
+      Path segment;
+      while (Files.exists(segment = getSegmentFile(entityType, sealed))) {
+        sealed = sealed.plusMillis(1);
+      }
+      Files.move(journalFile, segment, StandardCopyOption.ATOMIC_MOVE);
+    }
+    return getSegments(entityType);
+  }
+
+  /**
+   * Whether the entity type has records not folded into its rules file yet, in sealed segments or
+   * in its journal.
+   */
+  public synchronized boolean hasRecords(String entityType) throws IOException {
+    if (!getSegments(entityType).isEmpty()) {
+      return true;
+    }
+    FileChannel journal = journals.get(entityType);
+    if (journal != null) {
+      return journal.size() > 0;
+    }
+    Path journalFile = getJournalFile(entityType);
+    return Files.exists(journalFile) && Files.size(journalFile) > 0;
+  }
+
+  /**
+   * Moves sealed segments, whose changes are in the rules file, to the archive directory.
+   */
+  public void archive(List<Path> segments) throws IOException {
+    if (segments.isEmpty()) {
+      return;
+    }
+    Path archive = Files.createDirectories(directory.resolve(ARCHIVE));
+    for (Path segment : segments) {
+      Files.move(segment, archive.resolve(segment.getFileName()),
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+  }
+
+  /**
+   * Applies the sealed segments and the journal of the entity type to its rules.
+   */
+  public synchronized void replay(String entityType, MappingContainer container,
+      RuleReader reader) throws IOException {
+    List<Path> files = getSegments(entityType);
+    files.add(getJournalFile(entityType));
+    Map<Long, String> keys = getKeysByEntityId(container);
+    for (Path file : files) {
+      if (Files.exists(file)) {
+        try (InputStream input = Files.newInputStream(file)) {
+          apply(input, container, keys, reader);
+        } catch (JsonParseException e) {
+          // Only the records not synced when the application stopped can be cut short
+          log.warn("Mapping rules journal {} read up to a malformed record", file, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Applies records to the rules: each replaces the rule of its entity, or removes it when the
+   * entity is unmapped or its record is not a rule that is loaded.
+   *
+   * @return the next version of the rules, with only the rules of the records changed
+   */
+  public static MappingRulesSnapshot apply(byte[] records, MappingRulesSnapshot rules,
+      RuleReader reader) throws IOException {
+    // Changed rules by mapping key, null for removed ones
+    Map<String, MappingEntity> changes = new HashMap<>();
+    Map<Long, String> keys = new HashMap<>();
+    MappingRulesReader.readRecords(new ByteArrayInputStream(records), record -> {
+      Long entityId = record.getLong("entityId");
+      MappingEntity rule = reader.read(record);
+      String previousKey = keys.containsKey(entityId)
+          ? keys.get(entityId)
+          : rules.getKeyByEntityId(entityId);
+      if (previousKey != null) {
+        changes.put(previousKey, null);
+        keys.put(entityId, null);
+      }
+      if (rule != null && !Status.unmapped.get().equalsIgnoreCase(rule.getStatus())) {
+        // Another entity with the same mapping values no longer has a rule
+        MappingEntity replaced = changes.containsKey(rule.getMappingKey())
+            ? changes.get(rule.getMappingKey())
+            : rules.getEntityById(rule.getMappingKey());
+        if (replaced != null && replaced.getEntityId() != null) {
+          keys.put(replaced.getEntityId(), null);
+        }
+        changes.put(rule.getMappingKey(), rule);
+        keys.put(entityId, rule.getMappingKey());
+      }
+    });
+    return changes.isEmpty() ? rules : rules.withChanges(changes);
+  }
+
+  private static void apply(InputStream records, MappingContainer container,
+      Map<Long, String> keys, RuleReader reader) throws IOException {
+    MappingRulesReader.readRecords(records, record -> {
+      Long entityId = record.getLong("entityId");
+      MappingEntity rule = reader.read(record);
+      String previousKey = keys.remove(entityId);
+      if (previousKey != null) {
+        container.removeEntity(previousKey);
+      }
+      if (rule != null && !Status.unmapped.get().equalsIgnoreCase(rule.getStatus())) {
+        // Another entity with the same mapping values no longer has a rule
+        MappingEntity replaced = container.getEntityById(rule.getMappingKey());
+        if (replaced != null && replaced.getEntityId() != null) {
+          keys.remove(replaced.getEntityId());
+        }
+        container.replaceEntity(rule);
+        keys.put(entityId, rule.getMappingKey());
+      }
+    });
+  }
+
+  private static Map<Long, String> getKeysByEntityId(MappingContainer container) {
+    Map<Long, String> keys = new HashMap<>();
+    container.getMappings().forEach((key, rule) -> {
+      if (rule.getEntityId() != null) {
+        keys.put(rule.getEntityId(), key);
+      }
+    });
+    return keys;
+  }
+
+  /**
+   * Syncs and closes the journals.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (syncer != null) {
+      syncer.shutdownNow();
+      syncer = null;
+    }
+    for (FileChannel journal : journals.values()) {
+      journal.force(false);
+      journal.close();
+    }
+    journals.clear();
+    unsyncedJournals.clear();
+  }
+
+  private List<Path> getSegments(String entityType) throws IOException {
+    List<Path> segments = new ArrayList<>();
+    if (Files.isDirectory(directory)) {
+      try (DirectoryStream<Path> files =
+          Files.newDirectoryStream(directory, entityType + ".*" + EXTENSION)) {
+        files.forEach(segments::add);
+      }
+    }
+    segments.sort(null);
+    return segments;
+  }
+
+  private Path getSegmentFile(String entityType, Instant sealed) {
+    return directory.resolve(entityType + "." + SEGMENT_TIME.format(sealed) + EXTENSION);
+  }
+
+  private Path getJournalFile(String entityType) {
+    return directory.resolve(entityType + EXTENSION);
+  }
+
+  private FileChannel getJournal(String entityType) throws IOException {
+    FileChannel journal = journals.get(entityType);
+    if (journal == null) {
+      Files.createDirectories(directory);
+      journal = FileChannel.open(getJournalFile(entityType), StandardOpenOption.CREATE,
+          StandardOpenOption.READ, StandardOpenOption.WRITE);
+      // A record cut short when the application stopped would make the next ones unreadable
+      journal.truncate(getEndOfLastRecord(journal));
+      journal.position(journal.size());
+      journals.put(entityType, journal);
+    }
+    return journal;
+  }
+
+  private static long getEndOfLastRecord(FileChannel journal) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(8192);
+    long end = journal.size();
+    while (end > 0) {
+      long start = Math.max(0, end - buffer.capacity());
+      buffer.clear().limit((int) (end - start));
+      while (buffer.hasRemaining()) {
+        if (journal.read(buffer, start + buffer.position()) < 0) {
+          break;
+        }
+      }
+      for (int i = buffer.position() - 1; i >= 0; i--) {
+        if (buffer.get(i) == '\n') {
+          return start + i + 1;
+        }
+      }
+      end = start;
+    }
+    return 0;
+  }
+
+  private void startSyncer() {
+    if (syncer == null) {
+      syncer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "mapping-rules-journal");
+        thread.setDaemon(true);
+        return thread;
+      });
+      syncer.scheduleWithFixedDelay(this::sync, syncIntervalMs, syncIntervalMs,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+}
@@ -0,0 +1,222 @@
+package org.pdxfinder;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads a mapping rules file, {"mappings": [...]}, one token at a time and hands over each rule
+ * as soon as it is read, so only the rule being read is held in memory besides what the consumer
+ * keeps. Only the scalar attributes of a rule and its mappingValues are read, anything else is
+ * skipped.
+ */
+public class MappingRulesReader {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private static final String MAPPINGS = "mappings";
+
+  private static final String MAPPING_VALUES = "mappingValues";
+
+  /**
+   * Attributes of a rule being read, only valid during the call to the consumer.
+   */
+  public static final class MappingRule {
+
+    private final Fields fields = new Fields();
+
+    private final Fields mappingValues = new Fields();
+
+    private JsonParser parser;
+
+    private MappingRule() {
+    }
+
+    /**
+     * The string value of the attribute, which must be one.
+     */
+    public String getString(String name) throws JsonParseException {
+      return fields.getString(parser, name);
+    }
+
+    /**
+     * The value of the attribute as text, empty when missing or null.
+     */
+    public String optString(String name) {
+      return fields.optString(name);
+    }
+
+    public Long getLong(String name) throws JsonParseException {
+      return fields.getLong(parser, name);
+    }
+
+    /**
+     * The string value of the mapping label, which must be one.
+     */
+    public String getMappingValue(String label) throws JsonParseException {
+      return mappingValues.getString(parser, label);
+    }
+
+    private void clear() {
+      fields.clear();
+      mappingValues.clear();
+    }
+  }
+
+  /**
+   * Rule handed over by the reader, which stops at the first failure.
+   */
+  public interface RuleConsumer {
+
+    void accept(MappingRule rule) throws JsonParseException;
+  }
+
+  private MappingRulesReader() {
+  }
+
+  /**
+   * Reads the rules of the file in order. Rules read before a malformed one are handed over, the
+   * rest of the file is not read.
+   */
+  public static void read(Path file, RuleConsumer consumer) throws IOException {
+    try (InputStream input = Files.newInputStream(file);
+        JsonParser parser = JSON_FACTORY.createParser(input)) {
+      read(parser, consumer);
+    }
+  }
+
+  /**
+   * Reads rules written one after the other, as in a journal, rather than in a rules file. As
+   * with the files, rules read before a malformed or truncated one are handed over.
+   */
+  public static void readRecords(InputStream input, RuleConsumer consumer) throws IOException {
+    try (JsonParser parser = JSON_FACTORY.createParser(input)) {
+      MappingRule rule = new MappingRule();
+      rule.parser = parser;
+      JsonToken token;
+      while ((token = parser.nextToken()) != null) {
+        readRule(parser, token, rule, consumer);
+      }
+    }
+  }
+
+  static void read(JsonParser parser, RuleConsumer consumer) throws IOException {
+    expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      if (MAPPINGS.equals(name) && value == JsonToken.START_ARRAY) {
+        readRules(parser, consumer);
+      } else {
+        parser.skipChildren();
+      }
+    }
+  }
+
+  private static void readRules(JsonParser parser, RuleConsumer consumer) throws IOException {
+    MappingRule rule = new MappingRule();
+    rule.parser = parser;
+    JsonToken token;
+    while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+      readRule(parser, token, rule, consumer);
+    }
+  }
+
+  private static void readRule(JsonParser parser, JsonToken token, MappingRule rule,
+      RuleConsumer consumer) throws IOException {
+    expect(parser, token, JsonToken.START_OBJECT);
+    rule.clear();
+    boolean hasMappingValues = false;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      if (MAPPING_VALUES.equals(name) && value == JsonToken.START_OBJECT) {
+        readFields(parser, rule.mappingValues);
+        hasMappingValues = true;
+      } else {
+        rule.fields.put(parser, name, value);
+      }
+    }
+    if (!hasMappingValues) {
+      throw new JsonParseException(parser, "Mapping rule without mappingValues");
+    }
+    consumer.accept(rule);
+  }
+
+  private static void readFields(JsonParser parser, Fields fields) throws IOException {
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      fields.put(parser, name, parser.nextToken());
+    }
+  }
+
+  private static void expect(JsonParser parser, JsonToken token, JsonToken expected)
+      throws JsonParseException {
+    if (token != expected) {
+      throw new JsonParseException(parser,
+          String.format("Expected %s in mapping rules but found %s", expected, token));
+    }
+  }
+
+  /**
+   * Scalar values of an object by name, JSON nulls and nested values being left out.
+   */
+  private static final class Fields {
+
+    private final Map<String, String> values = new HashMap<>();
+
+    private final Set<String> strings = new HashSet<>();
+
+    void put(JsonParser parser, String name, JsonToken token) throws IOException {
+      if (token.isStructStart()) {
+        parser.skipChildren();
+      } else if (token != JsonToken.VALUE_NULL) {
+        values.put(name, parser.getText());
+        if (token == JsonToken.VALUE_STRING) {
+          strings.add(name);
+        }
+      }
+    }
+
+    String getString(JsonParser parser, String name) throws JsonParseException {
+      if (!strings.contains(name)) {
+        throw new JsonParseException(parser,
+            String.format("Mapping rule attribute %s is not a string", name));
+      }
+      return values.get(name);
+    }
+
+    String optString(String name) {
+      return values.getOrDefault(name, "");
+    }
+
+    Long getLong(JsonParser parser, String name) throws JsonParseException {
+      String value = values.get(name);
+      try {
+        if (value != null) {
+          return new BigDecimal(value.trim()).longValue();
+        }
+      } catch (NumberFormatException e) {
+        // Neither a number nor a numeric string
+      }
+      throw new JsonParseException(parser,
+          String.format("Mapping rule attribute %s is not a number", name));
+    }
+
+    void clear() {
+      values.clear();
+      strings.clear();
+    }
+  }
+}
@@ -0,0 +1,348 @@
+package org.pdxfinder;
+
+import org.pdxfinder.utils.DigestKeyTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Immutable set of mapping rules by mapping key, at a version. Changes make a new snapshot with
+ * the next version, so a snapshot can be read by any number of threads without locking while a
+ * newer one is built.
+ *
+ * The rules are indexed by the digest of their mapping key, the few keys that are not hex
+ * digests being indexed as strings, and partitioned by entity type and data source.
+ *
+ * A few changes make a snapshot sharing the rules of the previous one, with the changed rules
+ * kept aside and only the partitions they are in built again. Once enough changes add up, the
+ * next snapshot is built again from all the rules.
+ */
+public final class MappingRulesSnapshot {
+
+  private static final String DATA_SOURCE = "DataSource";
+
+  // Changes kept aside at most, past which every rule is indexed again
+  private static final int MAX_CHANGES = 1024;
+
+  // Rule of the mapping keys removed since the last full build
+  private static final MappingEntity REMOVED = new MappingEntity();
+
+  private static final Comparator<MappingEntity> BY_MAPPING_KEY =
+      Comparator.comparing(MappingEntity::getMappingKey);
+
+  private final long version;
+
+  // Rules of the last full build
+  private final Rules rules;
+
+  // Rules changed since, by mapping key, REMOVED for the removed ones
+  private final Map<String, MappingEntity> changes;
+
+  private final DigestKeyTable<MappingEntity> changedDigests;
+
+  // Mapping keys of the rules of the entities changed since, null when they have none
+  private final Map<Long, String> changedKeys;
+
+  // Rules by lower-cased entity type then lower-cased data source, in mapping key order
+  private final Map<String, Map<String, List<MappingEntity>>> partitions;
+
+  private final int size;
+
+  // Rules in mapping key order, as listed and exported, merged the first time they are
+  private volatile List<MappingEntity> entities;
+
+  /**
+   * Rules indexed by mapping key and entity id.
+   */
+  private static final class Rules {
+
+    private final List<MappingEntity> entities;
+
+    private final DigestKeyTable<MappingEntity> index;
+
+    private final Map<String, MappingEntity> otherKeys = new HashMap<>();
+
+    private final Map<Long, String> keysByEntityId = new HashMap<>();
+
+    Rules(TreeMap<String, MappingEntity> mappings) {
+      this.entities = Collections.unmodifiableList(
+          Arrays.asList(mappings.values().toArray(new MappingEntity[0])));
+      this.index = new DigestKeyTable<>(mappings.size());
+      mappings.forEach((key, entity) -> {
+        if (DigestKeyTable.isHexKey(key)) {
+          index.put(key, entity);
+        } else {
+          otherKeys.put(key, entity);
+        }
+        if (entity.getEntityId() != null) {
+          keysByEntityId.put(entity.getEntityId(), key);
+        }
+      });
+    }
+
+    MappingEntity get(String mappingKey) {
+      MappingEntity entity = index.get(mappingKey);
+      return entity != null || otherKeys.isEmpty() ? entity : otherKeys.get(mappingKey);
+    }
+  }
+
+  private MappingRulesSnapshot(long version, TreeMap<String, MappingEntity> mappings) {
+    this.version = version;
+    this.rules = new Rules(mappings);
+    this.changes = Collections.emptyMap();
+    this.changedDigests = new DigestKeyTable<>(0);
+    this.changedKeys = Collections.emptyMap();
+    this.partitions = new HashMap<>();
+    for (MappingEntity entity : rules.entities) {
+      String[] partition = getPartition(entity);
+      if (partition != null) {
+        partitions.computeIfAbsent(partition[0], x -> new HashMap<>())
+            .computeIfAbsent(partition[1], x -> new ArrayList<>())
+            .add(entity);
+      }
+    }
+    partitions.values().forEach(x -> x.replaceAll((k, v) -> Collections.unmodifiableList(v)));
+    this.size = rules.entities.size();
+    this.entities = rules.entities;
+  }
+
+  private MappingRulesSnapshot(long version, Rules rules, Map<String, MappingEntity> changes,
+      Map<Long, String> changedKeys, Map<String, Map<String, List<MappingEntity>>> partitions,
+      int size) {
+    this.version = version;
+    this.rules = rules;
+    this.changes = changes;
+    this.changedDigests = new DigestKeyTable<>(changes.size());
+    changes.forEach((key, entity) -> {
+      if (DigestKeyTable.isHexKey(key)) {
+        changedDigests.put(key, entity);
+      }
+    });
+    this.changedKeys = changedKeys;
+    this.partitions = partitions;
+    this.size = size;
+  }
+
+  /**
+   * First version of the rules, with the entities in order, the first entity of a mapping key
+   * being kept as in {@link MappingContainer#addEntity(MappingEntity)}.
+   */
+  public static MappingRulesSnapshot of(Collection<MappingEntity> entities) {
+    return new MappingRulesSnapshot(1, toMap(entities));
+  }
+
+  /**
+   * The next version of the rules, made of the given entities only.
+   */
+  public MappingRulesSnapshot withRules(Collection<MappingEntity> entities) {
+    return new MappingRulesSnapshot(version + 1, toMap(entities));
+  }
+
+  /**
+   * The next version of the rules, with the given rules by mapping key instead of the current
+   * ones, a null rule removing the rule of its key.
+   */
+  public MappingRulesSnapshot withChanges(Map<String, MappingEntity> changedRules) {
+    if (changes.size() + changedRules.size() > MAX_CHANGES) {
+      TreeMap<String, MappingEntity> mappings = new TreeMap<>();
+      getEntityList().forEach(x -> mappings.put(x.getMappingKey(), x));
+      changedRules.forEach((key, rule) -> {
+        if (rule == null) {
+          mappings.remove(key);
+        } else {
+          mappings.put(key, rule);
+        }
+      });
+      return new MappingRulesSnapshot(version + 1, mappings);
+    }
+
+    Map<String, MappingEntity> nextChanges = new HashMap<>(changes);
+    Map<Long, String> nextChangedKeys = new HashMap<>(changedKeys);
+    Map<String, Set<String>> changedPartitions = new HashMap<>();
+    int nextSize = size;
+    for (Map.Entry<String, MappingEntity> change : changedRules.entrySet()) {
+      MappingEntity previous = getEntityById(change.getKey());
+      MappingEntity rule = change.getValue();
+      if (previous != null) {
+        nextSize--;
+        addPartition(changedPartitions, previous);
+        if (previous.getEntityId() != null) {
+          nextChangedKeys.putIfAbsent(previous.getEntityId(), null);
+        }
+      }
+      if (rule != null) {
+        nextSize++;
+        addPartition(changedPartitions, rule);
+        if (rule.getEntityId() != null) {
+          nextChangedKeys.put(rule.getEntityId(), change.getKey());
+        }
+      }
+      nextChanges.put(change.getKey(), rule == null ? REMOVED : rule);
+    }
+
+    Map<String, Map<String, List<MappingEntity>>> nextPartitions = new HashMap<>(partitions);
+    changedPartitions.forEach((entityType, dataSources) -> {
+      Map<String, List<MappingEntity>> byDataSource = new HashMap<>(
+          partitions.getOrDefault(entityType, Collections.emptyMap()));
+      for (String dataSource : dataSources) {
+        List<MappingEntity> partition = new ArrayList<>();
+        for (MappingEntity entity :
+            byDataSource.getOrDefault(dataSource, Collections.emptyList())) {
+          if (!changedRules.containsKey(entity.getMappingKey())) {
+            partition.add(entity);
+          }
+        }
+        for (MappingEntity rule : changedRules.values()) {
+          String[] rulePartition = rule == null ? null : getPartition(rule);
+          if (rulePartition != null && rulePartition[0].equals(entityType)
+              && rulePartition[1].equals(dataSource)) {
+            partition.add(rule);
+          }
+        }
+        if (partition.isEmpty()) {
+          byDataSource.remove(dataSource);
+        } else {
+          partition.sort(BY_MAPPING_KEY);
+          byDataSource.put(dataSource, Collections.unmodifiableList(partition));
+        }
+      }
+      nextPartitions.put(entityType, byDataSource);
+    });
+    return new MappingRulesSnapshot(version + 1, rules, nextChanges, nextChangedKeys,
+        nextPartitions, nextSize);
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  public MappingEntity getEntityById(String mappingKey) {
+    MappingEntity changed = changes.get(mappingKey);
+    if (changed != null) {
+      return changed == REMOVED ? null : changed;
+    }
+    return rules.get(mappingKey);
+  }
+
+  /**
+   * The rule of the SHA-256 digest of a mapping key.
+   */
+  public MappingEntity getEntityByDigest(byte[] digest) {
+    MappingEntity changed = changedDigests.get(digest);
+    if (changed != null) {
+      return changed == REMOVED ? null : changed;
+    }
+    return rules.index.get(digest);
+  }
+
+  /**
+   * The mapping key of the rule of the entity, null when it has none.
+   */
+  public String getKeyByEntityId(Long entityId) {
+    String key = changedKeys.containsKey(entityId)
+        ? changedKeys.get(entityId)
+        : rules.keysByEntityId.get(entityId);
+    MappingEntity rule = key == null ? null : getEntityById(key);
+    // Another entity with the same mapping values may have taken its place
+    return rule != null && entityId.equals(rule.getEntityId()) ? key : null;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Unmodifiable list of the rules in mapping key order.
+   */
+  public List<MappingEntity> getEntityList() {
+    List<MappingEntity> list = entities;
+    if (list == null) {
+      TreeMap<String, MappingEntity> changed = new TreeMap<>(changes);
+      changed.values().removeIf(x -> x == REMOVED);
+      Iterator<MappingEntity> added = changed.values().iterator();
+      MappingEntity next = added.hasNext() ? added.next() : null;
+      list = new ArrayList<>(size);
+      for (MappingEntity entity : rules.entities) {
+        while (next != null && next.getMappingKey().compareTo(entity.getMappingKey()) < 0) {
+          list.add(next);
+          next = added.hasNext() ? added.next() : null;
+        }
+        if (!changes.containsKey(entity.getMappingKey())) {
+          list.add(entity);
+        }
+      }
+      while (next != null) {
+        list.add(next);
+        next = added.hasNext() ? added.next() : null;
+      }
+      list = Collections.unmodifiableList(list);
+      entities = list;
+    }
+    return list;
+  }
+
+  /**
+   * Unmodifiable list of the rules of the entity type from any of the data sources, in mapping
+   * key order. Both are compared ignoring case.
+   */
+  public List<MappingEntity> getEntityList(String entityType, Collection<String> dataSources) {
+    Map<String, List<MappingEntity>> byDataSource =
+        partitions.getOrDefault(entityType.toLowerCase(), Collections.emptyMap());
+    Set<String> selectedDataSources = new HashSet<>();
+    List<List<MappingEntity>> selected = new ArrayList<>();
+    for (String dataSource : dataSources) {
+      List<MappingEntity> partition = byDataSource.get(dataSource.toLowerCase());
+      if (partition != null && selectedDataSources.add(dataSource.toLowerCase())) {
+        selected.add(partition);
+      }
+    }
+    if (selected.size() < 2) {
+      return selected.isEmpty() ? Collections.emptyList() : selected.get(0);
+    }
+    List<MappingEntity> union = new ArrayList<>();
+    selected.forEach(union::addAll);
+    union.sort(BY_MAPPING_KEY);
+    return Collections.unmodifiableList(union);
+  }
+
+  /**
+   * A mutable copy of the rules.
+   */
+  public MappingContainer toContainer() {
+    return new MappingContainer(toMap(getEntityList()));
+  }
+
+  private static TreeMap<String, MappingEntity> toMap(Collection<MappingEntity> entities) {
+    TreeMap<String, MappingEntity> mappings = new TreeMap<>();
+    entities.forEach(x -> mappings.putIfAbsent(x.getMappingKey(), x));
+    return mappings;
+  }
+
+  // Lower-cased entity type and data source of the rule, null when it has no partition
+  private static String[] getPartition(MappingEntity entity) {
+    String dataSource = entity.getMappingValues() == null
+        ? null
+        : entity.getMappingValues().get(DATA_SOURCE);
+    if (entity.getEntityType() == null || dataSource == null) {
+      return null;
+    }
+    return new String[]{entity.getEntityType().toLowerCase(), dataSource.toLowerCase()};
+  }
+
+  private static void addPartition(Map<String, Set<String>> partitions, MappingEntity entity) {
+    String[] partition = getPartition(entity);
+    if (partition != null) {
+      partitions.computeIfAbsent(partition[0], x -> new HashSet<>()).add(partition[1]);
+    }
+  }
+}
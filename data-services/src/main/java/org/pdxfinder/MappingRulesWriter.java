@@ -0,0 +1,175 @@
+package org.pdxfinder;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.CharacterEscapes;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.google.gson.Gson;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes mapping entities as a JSON array one entity at a time, so only the entity being written
+ * is held as JSON. The output is the one of Gson with its default settings: the attributes in
+ * declaration order, null ones left out, the mapping key included and the characters Gson
+ * escapes in HTML-safe mode escaped the same way.
+ */
+public class MappingRulesWriter {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory()
+      .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+      .setCharacterEscapes(new GsonCharacterEscapes());
+
+  // Dates are written as Gson formats them, rules do not have them unless read from the database
+  private static final Gson GSON = new Gson();
+
+  private MappingRulesWriter() {
+  }
+
+  /**
+   * Writes the entities to the stream, which is flushed but not closed.
+   */
+  public static void write(OutputStream output, Collection<MappingEntity> entities)
+      throws IOException {
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(output)) {
+      writeEntities(generator, entities);
+    }
+  }
+
+  /**
+   * Writes the entities one per line, as records to append to a journal.
+   */
+  public static byte[] toRecords(Collection<MappingEntity> entities) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(output)) {
+      generator.setRootValueSeparator(null);
+      for (MappingEntity entity : entities) {
+        writeEntity(generator, entity);
+        generator.writeRaw('\n');
+      }
+    }
+    return output.toByteArray();
+  }
+
+  private static void writeEntities(JsonGenerator generator, Collection<MappingEntity> entities)
+      throws IOException {
+    generator.writeStartArray();
+    for (MappingEntity entity : entities) {
+      if (entity == null) {
+        generator.writeNull();
+      } else {
+        writeEntity(generator, entity);
+      }
+    }
+    generator.writeEndArray();
+  }
+
+  private static void writeEntity(JsonGenerator generator, MappingEntity entity)
+      throws IOException {
+    generator.writeStartObject();
+    if (entity.getEntityId() != null) {
+      generator.writeNumberField("entityId", entity.getEntityId());
+    }
+    writeString(generator, "entityType", entity.getEntityType());
+    if (entity.getMappingLabels() != null) {
+      generator.writeArrayFieldStart("mappingLabels");
+      for (String label : entity.getMappingLabels()) {
+        generator.writeString(label);
+      }
+      generator.writeEndArray();
+    }
+    if (entity.getMappingValues() != null) {
+      generator.writeObjectFieldStart("mappingValues");
+      for (Map.Entry<String, String> value : entity.getMappingValues().entrySet()) {
+        writeString(generator, String.valueOf(value.getKey()), value.getValue());
+      }
+      generator.writeEndObject();
+    }
+    writeString(generator, "mappedTermLabel", entity.getMappedTermLabel());
+    writeString(generator, "mappedTermUrl", entity.getMappedTermUrl());
+    writeString(generator, "mapType", entity.getMapType());
+    writeString(generator, "justification", entity.getJustification());
+    writeString(generator, "status", entity.getStatus());
+    List<MappingEntity> suggestedMappings = entity.getSuggestedMappings();
+    if (suggestedMappings != null) {
+      generator.writeFieldName("suggestedMappings");
+      writeEntities(generator, suggestedMappings);
+    }
+    writeDate(generator, "dateCreated", entity.getDateCreated());
+    writeDate(generator, "dateUpdated", entity.getDateUpdated());
+    writeString(generator, "mappingKey", entity.getMappingKey());
+    generator.writeEndObject();
+  }
+
+  private static void writeString(JsonGenerator generator, String name, String value)
+      throws IOException {
+    if (value != null) {
+      generator.writeStringField(name, value);
+    }
+  }
+
+  private static void writeDate(JsonGenerator generator, String name, Date value)
+      throws IOException {
+    if (value != null) {
+      generator.writeFieldName(name);
+      generator.writeString(GSON.fromJson(GSON.toJson(value), String.class));
+    }
+  }
+
+  /**
+   * Escapes as Gson does: control characters with their short escape if they have one, and the
+   * other ones, the line and paragraph separators and &lt; &gt; &amp; = ' as unicode escapes.
+   */
+  private static final class GsonCharacterEscapes extends CharacterEscapes {
+
+    private static final String HTML_CHARACTERS = "<>&='";
+
+    private static final char LINE_SEPARATOR = (char) 0x2028;
+
+    private static final char PARAGRAPH_SEPARATOR = (char) 0x2029;
+
+    private final int[] asciiEscapes = standardAsciiEscapesForJSON();
+
+    private final SerializableString[] asciiSequences = new SerializableString[128];
+
+    GsonCharacterEscapes() {
+      for (int c = 0; c < 0x20; c++) {
+        asciiEscapes[c] = ESCAPE_CUSTOM;
+        asciiSequences[c] = unicodeEscape(c);
+      }
+      for (char c : HTML_CHARACTERS.toCharArray()) {
+        asciiEscapes[c] = ESCAPE_CUSTOM;
+        asciiSequences[c] = unicodeEscape(c);
+      }
+      asciiSequences['\t'] = new SerializedString("\\t");
+      asciiSequences['\b'] = new SerializedString("\\b");
+      asciiSequences['\n'] = new SerializedString("\\n");
+      asciiSequences['\r'] = new SerializedString("\\r");
+      asciiSequences['\f'] = new SerializedString("\\f");
+    }
+
+    @Override
+    public int[] getEscapeCodesForAscii() {
+      return asciiEscapes;
+    }
+
+    @Override
+    public SerializableString getEscapeSequence(int c) {
+      if (c < asciiSequences.length) {
+        return asciiSequences[c];
+      }
+      return c == LINE_SEPARATOR || c == PARAGRAPH_SEPARATOR ? unicodeEscape(c) : null;
+    }
+
+    private static SerializableString unicodeEscape(int c) {
+      return new SerializedString(String.format("\\u%04x", c));
+    }
+  }
+}
@@ -1,31 +1,43 @@
 package org.pdxfinder;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.gson.Gson;
-import org.apache.commons.codec.digest.DigestUtils;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.pdxfinder.MappingKeyBuilder.Normalization;
+import org.pdxfinder.MappingRulesReader.MappingRule;
 import org.pdxfinder.constants.CSV;
 import org.pdxfinder.constants.MappingEntityType;
 import org.pdxfinder.constants.Status;
 import org.pdxfinder.dto.PaginationDTO;
 import org.pdxfinder.repositories.MappingEntityRepository;
-import org.pdxfinder.utils.DamerauLevenshteinAlgorithm;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.annotation.PreDestroy;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 import java.util.stream.Collectors;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -40,68 +52,135 @@ public class MappingService {
 
   private final MappingEntityRepository mappingEntityRepository;
 
-  private MappingContainer container;
+  // Rules read without locking, replaced as a whole by the synchronized writers. Null until loaded
+  private volatile MappingRulesSnapshot rules;
 
-  private boolean INITIALIZED = false;
+  // eager loads the rules in the background at startup, lazy on first use
+  @Value("${mappings.rules.loading:eager}")
+  private String rulesLoading = "eager";
+
+  private volatile Exception rulesLoadingFailure;
+
+  // Deflate level of the rules archives, from 0 (stored) to 9 (smallest), -1 for the default
+  @Value("${mappings.export.deflate-level:-1}")
+  private int exportDeflateLevel = Deflater.DEFAULT_COMPRESSION;
+
+  // Journals are folded into the rules files that long after their first change
+  @Value("${mappings.rules.write-delay-ms:60000}")
+  private long rulesWriteDelayMs = 60000;
+
+  // Entity types whose journal is to be folded into their rules file
+  private final Set<String> pendingRulesWrites = ConcurrentHashMap.newKeySet();
+
+  // Longest time before journal records are forced to disk, 0 for every change
+  @Value("${mappings.journal.sync-interval-ms:200}")
+  private long journalSyncIntervalMs = 200;
+
+  private MappingRulesJournal journal;
+
+  private final Object journalLock = new Object();
+
+  private ScheduledExecutorService rulesWriter;
+
+  // Background writes read the entities in a transaction, their collections being loaded lazily
+  @Autowired(required = false)
+  private TransactionTemplate transactionTemplate;
+
+  private final Object rulesFilesLock = new Object();
 
   private final UtilityService utilityService;
 
   private final PaginationService paginationService;
 
+  private final SuggestionService suggestionService;
+
   static final String MAPPING_RULE_NOT_FOUND = "%s mappings rules file not found at %s.";
 
   @Autowired
   public MappingService(
       MappingEntityRepository mappingEntityRepository,
       UtilityService utilityService,
-      PaginationService paginationService) {
+      PaginationService paginationService,
+      SuggestionService suggestionService) {
 
     this.mappingEntityRepository = mappingEntityRepository;
     this.utilityService = utilityService;
     this.paginationService = paginationService;
-    container = new MappingContainer();
+    this.suggestionService = suggestionService;
   }
 
+  /**
+   * A copy of the rules in memory, empty when not loaded.
+   */
   public MappingContainer getMappingContainer() {
-    return container;
+    MappingRulesSnapshot snapshot = rules;
+    return snapshot == null ? new MappingContainer() : snapshot.toContainer();
+  }
+
+  /**
+   * Version of the rules in memory, changing whenever they do, 0 when not loaded.
+   */
+  public long getRulesVersion() {
+    MappingRulesSnapshot snapshot = rules;
+    return snapshot == null ? 0 : snapshot.getVersion();
+  }
+
+  /**
+   * Version of the rules in memory, loading them first when they are loaded lazily. Empty while
+   * they are being loaded on startup.
+   */
+  public OptionalLong getLoadedRulesVersion() {
+    if (!isRulesLoaded() && !isLazyRulesLoading()) {
+      return OptionalLong.empty();
+    }
+    return OptionalLong.of(getRules().getVersion());
+  }
+
+  private MappingRulesSnapshot getRules() {
+    MappingRulesSnapshot snapshot = rules;
+    return snapshot != null ? snapshot : loadRules("json");
   }
 
   public String getDiagnosisMappingKey(
       String dataSource, String diagnosis, String originTissue, String tumorType) {
 
-    String mapKey =
-        MappingEntityType.DIAGNOSIS.getLabel() + "__" + dataSource + "__" + diagnosis + "__"
-        + originTissue + "__" + tumorType;
-    mapKey = mapKey.replaceAll("[^a-zA-Z0-9 _-]", "").toLowerCase();
-    mapKey = DigestUtils.sha256Hex(mapKey);
-    return mapKey;
+    return diagnosisMappingKey(dataSource, diagnosis, originTissue, tumorType).hex();
   }
 
   public String getTreatmentMappingKey(String dataSource, String treatmentName) {
 
-    String mapKey =
-        MappingEntityType.TREATMENT.getLabel() + "__" + dataSource + "__" + treatmentName;
-    mapKey = mapKey.replaceAll("[^a-zA-Z0-9 _-]", "").toLowerCase();
-    mapKey = DigestUtils.sha256Hex(mapKey);
-    return mapKey;
+    return treatmentMappingKey(dataSource, treatmentName).hex();
+  }
+
+  private static MappingKeyBuilder diagnosisMappingKey(
+      String dataSource, String diagnosis, String originTissue, String tumorType) {
+    return MappingKeyBuilder.start(Normalization.FILTER_THEN_LOWER_CASE)
+        .add(MappingEntityType.DIAGNOSIS.getLabel())
+        .add(dataSource)
+        .add(diagnosis)
+        .add(originTissue)
+        .add(tumorType);
+  }
+
+  private static MappingKeyBuilder treatmentMappingKey(String dataSource, String treatmentName) {
+    return MappingKeyBuilder.start(Normalization.FILTER_THEN_LOWER_CASE)
+        .add(MappingEntityType.TREATMENT.getLabel())
+        .add(dataSource)
+        .add(treatmentName);
   }
 
   public MappingEntity getDiagnosisMapping(
       String dataSource, String diagnosis, String originTissue, String tumorType) {
-    if (!INITIALIZED) {
-      loadRules("json");
-    }
-    String mapKey = getDiagnosisMappingKey(dataSource, diagnosis, originTissue, tumorType);
-    return container.getEntityById(mapKey);
+    MappingRulesSnapshot snapshot = getRules();
+    // Looked up by digest, without making the hex key
+    return snapshot.getEntityByDigest(
+        diagnosisMappingKey(dataSource, diagnosis, originTissue, tumorType).digest());
   }
 
   public MappingEntity getTreatmentMapping(String dataSource, String treatmentName) {
 
-    if (!INITIALIZED) {
-      loadRules("json");
-    }
-    String mapKey = getTreatmentMappingKey(dataSource, treatmentName);
-    return container.getEntityById(mapKey);
+    MappingRulesSnapshot snapshot = getRules();
+    return snapshot.getEntityByDigest(treatmentMappingKey(dataSource, treatmentName).digest());
   }
 
   public void saveMappingsToFile(String fileName, List<MappingEntity> maprules) {
@@ -128,29 +207,71 @@ public class MappingService {
   }
 
   /**
-   * Loads rules from a source: file or h2
+   * Starts loading the rules in the background unless they are loaded lazily, so the first
+   * requests do not pay for it.
+   */
+  @EventListener(ApplicationStartedEvent.class)
+  public void loadRulesOnStartup() {
+    if (isLazyRulesLoading()) {
+      return;
+    }
+    Thread loader = new Thread(() -> {
+      try {
+        loadRules("json");
+      } catch (RuntimeException e) {
+        rulesLoadingFailure = e;
+        log.error("Failed to load the mapping rules on startup", e);
+      }
+    }, "mapping-rules-loader");
+    loader.setDaemon(true);
+    loader.start();
+  }
+
+  public boolean isLazyRulesLoading() {
+    return "lazy".equalsIgnoreCase(rulesLoading);
+  }
+
+  public boolean isRulesLoaded() {
+    return rules != null;
+  }
+
+  /**
+   * Why loading the rules on startup failed, null unless it did.
+   */
+  public Exception getRulesLoadingFailure() {
+    return rulesLoadingFailure;
+  }
+
+  /**
+   * Loads rules from a source: file or h2. Callers arriving while the rules are loaded wait for
+   * them.
    *
    * @param source
+   * @return the rules in memory
    */
-  private void loadRules(String source) {
+  private synchronized MappingRulesSnapshot loadRules(String source) {
 
-    if (container == null) {
-      container = new MappingContainer();
+    if (rules != null) {
+      return rules;
     }
 
+    MappingContainer container = new MappingContainer();
+
     log.info("Loading mapping rules");
 
     if ("json".equals(source)) {
       Map<String, String> mappingRulesPaths = getMappingRulesPaths();
       String diagnosisMappingsFilePath = mappingRulesPaths.get("diagnosis");
-      if (diagnosisMappingsFilePath != null) {
-        loadDiagnosisMappings(diagnosisMappingsFilePath);
-      }
       String treatmentMappingsFilePath = mappingRulesPaths.get("treatment");
-      if (treatmentMappingsFilePath != null) {
 
-        loadTreatmentMappings(treatmentMappingsFilePath);
-      }
+      // Both files are parsed at the same time, then added in the usual order
+      CompletableFuture<MappingContainer> treatmentMappings = CompletableFuture.supplyAsync(() ->
+          loadRulesOfType(MappingEntityType.TREATMENT, treatmentMappingsFilePath));
+      MappingContainer diagnoses =
+          loadRulesOfType(MappingEntityType.DIAGNOSIS, diagnosisMappingsFilePath);
+      diagnoses.getMappings().values().forEach(container::addEntity);
+      treatmentMappings.join().getMappings().values().forEach(container::addEntity);
+      log.info("Loaded {} mapping rules", container.getSize());
 
     } else if ("h2".equals(source)) {
 
@@ -159,7 +280,8 @@ public class MappingService {
       log.error("Couldn't load mapping rules, no source was specified");
     }
 
-    INITIALIZED = true;
+    rules = MappingRulesSnapshot.of(container.getMappings().values());
+    return rules;
   }
 
   public Map<String, String> getMappingRulesPaths() {
@@ -197,315 +319,223 @@ public class MappingService {
 
 
   /**
-   * Populates the container with the diagnosis mapping rules
-   *
-   * @param file
+   * The rules of the entity type: the ones of its rules file with the changes of its journal.
    */
-  private void loadDiagnosisMappings(String file) {
-
-    String json = utilityService.parseFile(file);
-    JSONObject row = null;
+  private MappingContainer loadRulesOfType(MappingEntityType entityType, String file) {
+    MappingContainer container = new MappingContainer();
+    if (file != null) {
+      if (entityType == MappingEntityType.DIAGNOSIS) {
+        loadDiagnosisMappings(file, container);
+      } else {
+        loadTreatmentMappings(file, container);
+      }
+    }
     try {
-      JSONObject job = new JSONObject(json);
-
-      if (job.has("mappings")) {
-        JSONArray rows = job.getJSONArray("mappings");
-
-        for (int i = 0; i < rows.length(); i++) {
-          row = rows.getJSONObject(i);
-
-          JSONObject mappingVal = row.getJSONObject("mappingValues");
-
-          String dataSource = mappingVal.getString("DataSource");
-          String sampleDiagnosis = mappingVal.getString("SampleDiagnosis").toLowerCase();
-          String originTissue = mappingVal.getString("OriginTissue");
-          String tumorType = mappingVal.getString("TumorType");
-          String ontologyTerm = row.getString("mappedTermLabel");
-          String mapType = row.optString("mapType").toLowerCase();
-          String justification = row.optString("justification").toLowerCase();
-          String mappedTermUrl = row.optString("mappedTermUrl");
-          Long entityId = row.getLong("entityId");
-          String status = row.optString("status").toLowerCase();
-
-          //if(ds!= null && !ds.toLowerCase().equals(dataSource.toLowerCase())) continue;
-
-          if (ontologyTerm.equals("") || ontologyTerm == null) {
-            continue;
-          }
-          if (sampleDiagnosis.equals("") || sampleDiagnosis == null) {
-            continue;
-          }
-
-          String updatedDiagnosis = sampleDiagnosis;
-          String pattern = "(.*)Malignant(.*)Neoplasm(.*)";
-
-          if (sampleDiagnosis.matches(pattern)) {
-            updatedDiagnosis = (sampleDiagnosis.replaceAll(pattern, "\t$1$2Cancer$3")).trim();
-            log.info("Updating label from mapping service of diagnosis '{}' with '{}'",
-                sampleDiagnosis, updatedDiagnosis);
-          }
-
-          // Remove commas from diagnosis
-          sampleDiagnosis = updatedDiagnosis.replaceAll(",", "");
-
-          //DO not ask, I know it looks horrible...
-          if (originTissue == null || originTissue.equals("null")) {
-            originTissue = "";
-          }
-          if (tumorType == null || tumorType.equals("null")) {
-            tumorType = "";
-          }
-          if (justification == null || justification.equals("null")) {
-            justification = "";
-          }
-
-          //make everything lowercase
-          if (dataSource != null) {
-            dataSource = dataSource.toLowerCase();
-          }
-          if (originTissue != null) {
-            originTissue = originTissue.toLowerCase();
-          }
-          if (tumorType != null) {
-            tumorType = tumorType.toLowerCase();
-          }
-          sampleDiagnosis = sampleDiagnosis.toLowerCase();
-
-          Map<String, String> mappingValues = new HashMap<>();
-          mappingValues.put("DataSource", dataSource);
-          mappingValues.put("SampleDiagnosis", sampleDiagnosis);
-          mappingValues.put("OriginTissue", originTissue);
-          mappingValues.put("TumorType", tumorType);
-
-          MappingEntity me = new MappingEntity(MappingEntityType.DIAGNOSIS.getLabel(),
-              getDiagnosisMappingLabels(), mappingValues);
-          me.setMappedTermLabel(ontologyTerm);
-          me.setMapType(mapType);
-          me.setJustification(justification);
-          me.setEntityId(entityId);
-          me.setMappedTermUrl(mappedTermUrl);
-          me.setMappingKey(me.generateMappingKey());
-          if (!status.isBlank())
-          {
-            me.setStatus(status);
-          }
+      getJournal().replay(entityType.getLabel(), container,
+          row -> readJournalRule(entityType, row));
+    } catch (IOException e) {
+      log.error("Failed to replay the {} mapping rules journal", entityType.getLabel(), e);
+    }
+    return container;
+  }
 
-          container.addEntity(me);
+  /**
+   * The rule of a journal record, null when the entity is not mapped in a way that is loaded.
+   */
+  private MappingEntity readJournalRule(MappingEntityType entityType, MappingRule row) {
+    try {
+      return entityType == MappingEntityType.DIAGNOSIS
+          ? readDiagnosisRule(row)
+          : readTreatmentRule(row);
+    } catch (JsonParseException e) {
+      // Without the attributes of a rule, as when no longer mapped
+      return null;
+    }
+  }
 
-        }
+  MappingRulesJournal getJournal() {
+    synchronized (journalLock) {
+      if (journal == null) {
+        journal = new MappingRulesJournal(Paths.get(getMappingDirectory(), "journal"),
+            journalSyncIntervalMs);
       }
-
-    } catch (JSONException e) {
-      e.printStackTrace();
-      log.error(row.toString());
+      return journal;
     }
-
   }
 
-  private void loadTreatmentMappings(String file) {
-
-    String json = utilityService.parseFile(file);
+  /**
+   * Populates the container with the diagnosis mapping rules
+   *
+   * @param file
+   */
+  private void loadDiagnosisMappings(String file, MappingContainer container) {
 
     try {
-      JSONObject job = new JSONObject(json);
-      if (job.has("mappings")) {
-        JSONArray rows = job.getJSONArray("mappings");
-
-        for (int i = 0; i < rows.length(); i++) {
-          JSONObject row = rows.getJSONObject(i);
-
-          JSONObject mappingVal = row.getJSONObject("mappingValues");
-
-          String dataSource = mappingVal.getString("DataSource");
-          String treatmentName = mappingVal.getString("TreatmentName").toLowerCase();
-          String ontologyTerm = row.getString("mappedTermLabel");
-          String mapType = row.optString("mapType").toLowerCase();
-          String justification = row.optString("justification").toLowerCase();
-          String mappedTermUrl = row.getString("mappedTermUrl");
-          Long entityId = row.getLong("entityId");
-          String status = row.optString("status").toLowerCase();
-
-          if (ontologyTerm.equals("") || ontologyTerm == null) {
-            continue;
-          }
-
-          //DO not ask, I know it looks horrible...
-          if (justification == null || justification.equals("null")) {
-            justification = "";
-          }
-
-          //make everything lowercase
-          if (dataSource != null) {
-            dataSource = dataSource.toLowerCase();
-          }
-
-          Map<String, String> mappingValues = new HashMap<>();
-          mappingValues.put("DataSource", dataSource);
-          mappingValues.put("TreatmentName", treatmentName);
-
-          MappingEntity me = new MappingEntity(MappingEntityType.TREATMENT.getLabel(),
-              getTreatmentMappingLabels(), mappingValues);
-          me.setMappedTermLabel(ontologyTerm);
-          me.setMapType(mapType);
-          me.setJustification(justification);
-          me.setEntityId(entityId);
-          me.setMappedTermUrl(mappedTermUrl);
-          me.setMappingKey(me.generateMappingKey());
-          if (!status.isBlank())
-          {
-            me.setStatus(status);
-          }
-
+      MappingRulesReader.read(Paths.get(file), row -> {
+        MappingEntity me = readDiagnosisRule(row);
+        if (me != null) {
           container.addEntity(me);
-
         }
-      }
+      });
 
-    } catch (JSONException e) {
-      e.printStackTrace();
+    } catch (IOException e) {
+      log.error("Failed to load diagnosis mapping rules from {}", file, e);
     }
 
   }
 
-  public MappingContainer getMappingsByDSAndType(List<String> ds, String type) {
+  /**
+   * The diagnosis rule of a row of a rules file or journal, null when the row is not loaded.
+   */
+  private MappingEntity readDiagnosisRule(MappingRule row) throws JsonParseException {
+
+    String dataSource = row.getMappingValue("DataSource");
+    String sampleDiagnosis = row.getMappingValue("SampleDiagnosis").toLowerCase();
+    String originTissue = row.getMappingValue("OriginTissue");
+    String tumorType = row.getMappingValue("TumorType");
+    String ontologyTerm = row.getString("mappedTermLabel");
+    String mapType = row.optString("mapType").toLowerCase();
+    String justification = row.optString("justification").toLowerCase();
+    String mappedTermUrl = row.optString("mappedTermUrl");
+    Long entityId = row.getLong("entityId");
+    String status = row.optString("status").toLowerCase();
+
+    //if(ds!= null && !ds.toLowerCase().equals(dataSource.toLowerCase())) continue;
+
+    if (ontologyTerm.equals("") || ontologyTerm == null) {
+      return null;
+    }
+    if (sampleDiagnosis.equals("") || sampleDiagnosis == null) {
+      return null;
+    }
 
-    if (!INITIALIZED) {
+    String updatedDiagnosis = sampleDiagnosis;
+    String pattern = "(.*)Malignant(.*)Neoplasm(.*)";
 
-      loadRules("json");
+    if (sampleDiagnosis.matches(pattern)) {
+      updatedDiagnosis = (sampleDiagnosis.replaceAll(pattern, "\t$1$2Cancer$3")).trim();
+      log.info("Updating label from mapping service of diagnosis '{}' with '{}'",
+          sampleDiagnosis, updatedDiagnosis);
     }
 
-    MappingContainer mc = new MappingContainer();
+    // Remove commas from diagnosis
+    sampleDiagnosis = updatedDiagnosis.replaceAll(",", "");
 
-    for (MappingEntity me : container.getMappings().values()) {
+    //DO not ask, I know it looks horrible...
+    if (originTissue == null || originTissue.equals("null")) {
+      originTissue = "";
+    }
+    if (tumorType == null || tumorType.equals("null")) {
+      tumorType = "";
+    }
+    if (justification == null || justification.equals("null")) {
+      justification = "";
+    }
 
-      if (me.getEntityType().toLowerCase().equals(type.toLowerCase())) {
+    //make everything lowercase
+    if (dataSource != null) {
+      dataSource = dataSource.toLowerCase();
+    }
+    if (originTissue != null) {
+      originTissue = originTissue.toLowerCase();
+    }
+    if (tumorType != null) {
+      tumorType = tumorType.toLowerCase();
+    }
+    sampleDiagnosis = sampleDiagnosis.toLowerCase();
 
-        for (String dataSource : ds) {
+    Map<String, String> mappingValues = new HashMap<>();
+    mappingValues.put("DataSource", dataSource);
+    mappingValues.put("SampleDiagnosis", sampleDiagnosis);
+    mappingValues.put("OriginTissue", originTissue);
+    mappingValues.put("TumorType", tumorType);
 
-          if (dataSource.toLowerCase()
-              .equals(me.getMappingValues().get("DataSource").toLowerCase())) {
-            //clone object but purge keys
-            MappingEntity me2 = new MappingEntity();
-            me2.setEntityId(me.getEntityId());
-            me2.setEntityType(me.getEntityType());
-            me2.setMappingLabels(me.getMappingLabels());
-            me2.setMappingValues(me.getMappingValues());
-            me2.setMappedTermUrl(me.getMappedTermUrl());
-            me2.setMappedTermLabel(me.getMappedTermLabel());
-            me2.setMapType(me.getMapType());
-            me2.setJustification(me.getJustification());
-            me2.setStatus(me.getStatus());
-            me2.setSuggestedMappings(me.getSuggestedMappings());
-            me2.setMappingKey(me.getMappingKey());
-            mc.addEntity(me2);
-          }
-        }
-      }
+    MappingEntity me = new MappingEntity(MappingEntityType.DIAGNOSIS.getLabel(),
+        getDiagnosisMappingLabels(), mappingValues);
+    me.setMappedTermLabel(ontologyTerm);
+    me.setMapType(mapType);
+    me.setJustification(justification);
+    me.setEntityId(entityId);
+    me.setMappedTermUrl(mappedTermUrl);
+    me.setMappingKey(me.generateMappingKey());
+    if (!status.isBlank())
+    {
+      me.setStatus(status);
     }
 
-    return mc;
-
+    return me;
   }
 
-  private List<MappingEntity> getSuggestionsForUnmappedEntity(MappingEntity me,
-      MappingContainer mc) {
-
-    String entityType = me.getEntityType();
-    TreeMap<Integer, List<MappingEntity>> unorderedSuggestions = new TreeMap<>();
-
-    //APPLY MAPPING SUGGESTION LOGIC HERE
-
-    List<MappingEntity> mapSuggList = mc.getMappings().values().stream()
-        .filter(x -> x.getEntityType().equals(entityType)).collect(Collectors.toList());
-
-    //Use the Damerau Levenshtein algorithm to determine string similarity
-    DamerauLevenshteinAlgorithm dla = new DamerauLevenshteinAlgorithm(1, 1, 2, 2);
-    mapSuggList.forEach(x -> {
-
-      //get similarity index components
-      int simIndex = 0;
+  private void loadTreatmentMappings(String file, MappingContainer container) {
 
-      for (String label : x.getMappingLabels()) {
-        simIndex += getSimilarityIndexComponent(dla, me.getEntityType(), label,
-            me.getMappingValues().get(label), x.getMappingValues().get(label));
-      }
-
-      Integer index = new Integer(simIndex);
-
-      if (unorderedSuggestions.containsKey(index)) {
-
-        unorderedSuggestions.get(index).add(x);
-      } else {
-        List<MappingEntity> list = new ArrayList<>();
-        list.add(x);
-        unorderedSuggestions.put(index, list);
-      }
-
-    });
-
-    TreeMap<Integer, List<MappingEntity>> orderedSuggestions = new TreeMap<>(unorderedSuggestions);
-    List<MappingEntity> resultList = new ArrayList<>();
-
-    int entityCounter = 0;
-    for (Map.Entry<Integer, List<MappingEntity>> entry : orderedSuggestions.entrySet()) {
-
-      Integer ix = entry.getKey();
-      List<MappingEntity> list = entry.getValue();
-      for (MappingEntity ment : list) {
-        resultList.add(ment);
-        entityCounter++;
-
-        if (entityCounter >= 10) {
-          break;
+    try {
+      MappingRulesReader.read(Paths.get(file), row -> {
+        MappingEntity me = readTreatmentRule(row);
+        if (me != null) {
+          container.addEntity(me);
         }
-      }
+      });
 
-      if (entityCounter >= 10) {
-        break;
-      }
+    } catch (IOException e) {
+      log.error("Failed to load treatment mapping rules from {}", file, e);
     }
-    return resultList;
-  }
 
-  private int getSimilarityIndexComponent(DamerauLevenshteinAlgorithm dla, String entityType,
-      String entityAttribute, String attribute1, String attribute2) {
-
-    if (entityType.toUpperCase().equals("DIAGNOSIS")) {
-      if (entityAttribute.equals("SampleDiagnosis")) {
-        return dla.execute(attribute1.toLowerCase(), attribute2.toLowerCase()) * 5;
-      }
-
-      if (entityAttribute.equals("OriginTissue")) {
-        int diff = dla.execute(attribute1.toLowerCase(), attribute2.toLowerCase());
-        //the origin tissue is very different, less likely will be a good suggestion
-        if (diff > 4) {
-          return 50;
-        }
-        return diff;
-      }
-      int diff = dla.execute(attribute1.toLowerCase(), attribute2.toLowerCase());
-      if (diff > 4) {
-        return 1;
-      }
-      return diff;
-    } else if (entityType.toUpperCase().equals("TREATMENT")) {
-
-      if (entityAttribute.equals("TreatmentName")) {
+  }
 
-        return dla.execute(attribute1.toLowerCase(), attribute2.toLowerCase()) * 5;
-      }
+  /**
+   * The treatment rule of a row of a rules file or journal, null when the row is not loaded.
+   */
+  private MappingEntity readTreatmentRule(MappingRule row) throws JsonParseException {
+
+    String dataSource = row.getMappingValue("DataSource");
+    String treatmentName = row.getMappingValue("TreatmentName").toLowerCase();
+    String ontologyTerm = row.getString("mappedTermLabel");
+    String mapType = row.optString("mapType").toLowerCase();
+    String justification = row.optString("justification").toLowerCase();
+    String mappedTermUrl = row.getString("mappedTermUrl");
+    Long entityId = row.getLong("entityId");
+    String status = row.optString("status").toLowerCase();
+
+    if (ontologyTerm.equals("") || ontologyTerm == null) {
+      return null;
+    }
 
-      int diff = dla.execute(attribute1.toLowerCase(), attribute2.toLowerCase());
+    //DO not ask, I know it looks horrible...
+    if (justification == null || justification.equals("null")) {
+      justification = "";
+    }
 
-      if (diff > 4) {
-        return 1;
-      }
-      return diff;
+    //make everything lowercase
+    if (dataSource != null) {
+      dataSource = dataSource.toLowerCase();
+    }
 
+    Map<String, String> mappingValues = new HashMap<>();
+    mappingValues.put("DataSource", dataSource);
+    mappingValues.put("TreatmentName", treatmentName);
+
+    MappingEntity me = new MappingEntity(MappingEntityType.TREATMENT.getLabel(),
+        getTreatmentMappingLabels(), mappingValues);
+    me.setMappedTermLabel(ontologyTerm);
+    me.setMapType(mapType);
+    me.setJustification(justification);
+    me.setEntityId(entityId);
+    me.setMappedTermUrl(mappedTermUrl);
+    me.setMappingKey(me.generateMappingKey());
+    if (!status.isBlank())
+    {
+      me.setStatus(status);
     }
 
-    return 10000;
+    return me;
+  }
 
+  /**
+   * Rules of the type from the given data sources, in mapping key order, as an unmodifiable view
+   * of the rules in memory.
+   */
+  public List<MappingEntity> getRulesByDSAndType(List<String> ds, String type) {
+    return getRules().getEntityList(type, ds);
   }
 
   public List<String> getDiagnosisMappingLabels() {
@@ -589,67 +619,266 @@ public class MappingService {
     mappingEntityRepository.deleteAll();
   }
 
+  /**
+   * Rewrites the rules file of the entity type with its mapped entities in the database, backing
+   * up the previous one. Its journal is folded into it.
+   */
   public void writeMappingsToFile(String entityType) {
+    foldJournal(entityType, () -> writeMappingsToFile(entityType, true));
+  }
 
-    String jsonKey = "mappings";
+  private boolean writeMappingsToFile(String entityType, boolean backup) {
+    // Get Latest mapped terms from the data base
+    return writeRulesFile(entityType,
+        mappingEntityRepository.findByEntityTypeAndStatusIsNot(entityType, "unmapped"), backup);
+  }
 
-    String mappingFile = rootDir + "/mapping/" + entityType + "_mappings.json";
+  // Off the request threads the entities are read in a transaction, their collections being lazy
+  private boolean writeMappingsToFileInTransaction(String entityType, boolean backup) {
+    return transactionTemplate == null
+        ? writeMappingsToFile(entityType, backup)
+        : Boolean.TRUE.equals(
+            transactionTemplate.execute(status -> writeMappingsToFile(entityType, backup)));
+  }
 
-    // Generate Unique name to back up previous mapping file
-    String backupPreviousMappingFile = rootDir + "/mapping/backup/" + entityType + "/" +
-        (new Date()).toString().replaceAll(" ", "-") + "-" + entityType + "_mappings.json";
+  public void writeMappingsToFileWithoutIgnoringUnmapped(String entityType) {
+    // Get ALL terms from the data base
+    foldJournal(entityType, () ->
+        writeRulesFile(entityType, mappingEntityRepository.findByEntityType(entityType), true));
+  }
 
-    // Back up previous mapping file before replacement
-    utilityService.moveFile(mappingFile, backupPreviousMappingFile);
+  /**
+   * Streams the entities to a temporary file then renames it to the rules file, which is never
+   * seen partly written. The previous file can be kept as a backup, linked rather than copied
+   * when the file system allows it.
+   *
+   * @return whether the file was written
+   */
+  private boolean writeRulesFile(String entityType, List<MappingEntity> mappingEntities,
+      boolean backup) {
 
-    // Get Latest mapped terms from the data base
-    List<MappingEntity> mappingEntities = mappingEntityRepository
-        .findByEntityTypeAndStatusIsNot(entityType, "unmapped");
+    String jsonKey = "mappings";
+
+    Path mappingFile = Paths.get(getMappingDirectory(), entityType + "_mappings.json");
+
+    // Generate Unique name to back up previous mapping file
+    Path backupPreviousMappingFile = Paths.get(getMappingDirectory(), "backup", entityType,
+        (new Date()).toString().replaceAll(" ", "-") + "-" + entityType + "_mappings.json");
 
     Map dataMap = new HashMap();
 
     dataMap.put(jsonKey, mappingEntities);
 
-    // Write latest mapped terms to the file system
-    try {
-
-      String newFile = mapper.writeValueAsString(dataMap);
-      utilityService.writeToFile(newFile, mappingFile, false);
+    synchronized (rulesFilesLock) {
+      Path temporaryFile = null;
+      try {
+        temporaryFile = Files.createTempFile(mappingFile.getParent(), entityType, ".tmp");
+        try (OutputStream output = new BufferedOutputStream(
+            Files.newOutputStream(temporaryFile))) {
+          mapper.writeValue(output, dataMap);
+        }
 
-    } catch (JsonProcessingException e) {
+        // Back up previous mapping file before replacement
+        if (backup && Files.exists(mappingFile)) {
+          Files.createDirectories(backupPreviousMappingFile.getParent());
+          Files.deleteIfExists(backupPreviousMappingFile);
+          try {
+            Files.createLink(backupPreviousMappingFile, mappingFile);
+          } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(mappingFile, backupPreviousMappingFile);
+          }
+        }
+        Files.move(temporaryFile, mappingFile, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+      } catch (IOException e) {
+        log.error("Could not write the {} mapping rules to {}", entityType, mappingFile, e);
+        deleteQuietly(temporaryFile);
+        return false;
+      }
     }
-
   }
 
-  public void writeMappingsToFileWithoutIgnoringUnmapped(String entityType) {
-
-    String jsonKey = "mappings";
-
-    String mappingFile = rootDir + "/mapping/" + entityType + "_mappings.json";
-
-    // Generate Unique name to back up previous mapping file
-    String backupPreviousMappingFile = rootDir + "/mapping/backup/" + entityType + "/" +
-        (new Date()).toString().replaceAll(" ", "-") + "-" + entityType + "_mappings.json";
+  private void deleteQuietly(Path file) {
+    try {
+      if (file != null) {
+        Files.deleteIfExists(file);
+      }
+    } catch (IOException e) {
+      log.warn(e.getMessage());
+    }
+  }
 
-    // Back up previous mapping file before replacement
-    utilityService.moveFile(mappingFile, backupPreviousMappingFile);
+  /**
+   * Appends the changed entities to the journals of their types and applies them to the rules in
+   * memory. Their rules files are written later, when the journals are compacted. When a journal
+   * cannot be appended to, its rules file is written right away instead.
+   *
+   * @throws IllegalStateException when the changes of a type could be saved in neither its
+   *                               journal nor its rules file, though they are in the database
+   */
+  private void journalChanges(List<MappingEntity> changedEntities) {
+    List<String> unsavedTypes = new ArrayList<>();
+    for (MappingEntityType type : MappingEntityType.values()) {
+      String entityType = type.getLabel();
+      List<MappingEntity> changes = changedEntities.stream()
+          .filter(x -> entityType.equalsIgnoreCase(x.getEntityType()))
+          .collect(Collectors.toList());
+      if (changes.isEmpty()) {
+        continue;
+      }
+      byte[] records;
+      try {
+        records = MappingRulesWriter.toRecords(changes);
+        getJournal().append(entityType, records);
+      } catch (IOException e) {
+        log.error("Could not append the {} mapping rule changes to the journal, writing the rules "
+            + "file", entityType, e);
+        if (compactJournal(entityType)) {
+          reloadRules(type);
+        } else {
+          unsavedTypes.add(entityType);
+        }
+        continue;
+      }
+      try {
+        applyJournalRecords(type, records);
+      } catch (IOException e) {
+        log.error("Could not apply the {} mapping rule changes", entityType, e);
+      }
+      scheduleJournalCompaction(entityType);
+    }
+    if (!unsavedTypes.isEmpty()) {
+      throw new IllegalStateException(String.format(
+          "The %s mapping rule changes are saved in the database but not in the rules files",
+          String.join(" and ", unsavedTypes)));
+    }
+  }
 
-    // Get ALL terms from the data base
-    List<MappingEntity> mappingEntities = mappingEntityRepository.findByEntityType(entityType);
+  /**
+   * Applies journal records to the rules of their type in memory, read as the rules files are.
+   * Only the rules of the records change, the others being shared with the previous rules.
+   * Nothing to do until the rules are loaded, with the journal then.
+   */
+  private synchronized void applyJournalRecords(MappingEntityType entityType, byte[] records)
+      throws IOException {
+    if (rules == null) {
+      return;
+    }
+    rules = MappingRulesJournal.apply(records, rules, row -> readJournalRule(entityType, row));
+  }
 
-    Map dataMap = new HashMap();
+  /**
+   * Compacts the journal of the entity type once the write delay has passed, with every change
+   * made meanwhile. Without delay it is done right away.
+   */
+  public void scheduleJournalCompaction(String entityType) {
+    if (rulesWriteDelayMs <= 0) {
+      compactJournal(entityType);
+    } else if (pendingRulesWrites.add(entityType)) {
+      getRulesWriter().schedule(() -> compactJournal(entityType), rulesWriteDelayMs,
+          TimeUnit.MILLISECONDS);
+    }
+  }
 
-    dataMap.put(jsonKey, mappingEntities);
+  /**
+   * Folds the journal of the entity type into its rules file, written from the database, which
+   * has every change of the journal. The rules in memory already have the changes.
+   *
+   * @return whether the rules file was written
+   */
+  private boolean compactJournal(String entityType) {
+    // Removed before sealing, later changes schedule another compaction
+    pendingRulesWrites.remove(entityType);
+    return foldJournal(entityType, () -> writeMappingsToFileInTransaction(entityType, false));
+  }
 
-    // Write latest mapped terms to the file system
+  /**
+   * Seals the journal of the entity type, writes its rules file and archives the sealed segments
+   * once the file has their changes. Every write of a rules file goes through here, so journal
+   * records are never replayed over a file written after them. When the write fails the segments
+   * stay, to be replayed over the previous file and folded by the next write.
+   *
+   * @return whether the rules file was written
+   */
+  private boolean foldJournal(String entityType, BooleanSupplier writeRulesFile) {
     try {
+      synchronized (rulesFilesLock) {
+        List<Path> segments = getJournal().seal(entityType);
+        boolean written = writeRulesFile.getAsBoolean();
+        if (written) {
+          getJournal().archive(segments);
+        }
+        return written;
+      }
+    } catch (IOException | RuntimeException e) {
+      log.error("Could not fold the {} mapping rules journal into the rules file", entityType, e);
+      return false;
+    }
+  }
 
-      String newFile = mapper.writeValueAsString(dataMap);
-      utilityService.writeToFile(newFile, mappingFile, false);
+  /**
+   * Folds right away the journals with changes not in the rules files yet, those waiting for the
+   * write delay as well as those left by a failed write.
+   *
+   * @return whether the rules files have every change
+   */
+  public boolean writePendingRulesFiles() {
+    boolean written = true;
+    for (MappingEntityType type : MappingEntityType.values()) {
+      String entityType = type.getLabel();
+      try {
+        if (pendingRulesWrites.contains(entityType) || getJournal().hasRecords(entityType)) {
+          written &= compactJournal(entityType);
+        }
+      } catch (IOException e) {
+        log.error("Could not read the {} mapping rules journal", entityType, e);
+        written = false;
+      }
+    }
+    return written;
+  }
 
-    } catch (JsonProcessingException e) {
+  private synchronized ScheduledExecutorService getRulesWriter() {
+    if (rulesWriter == null) {
+      rulesWriter = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "mapping-rules-writer");
+        thread.setDaemon(true);
+        return thread;
+      });
     }
+    return rulesWriter;
+  }
 
+  /**
+   * Folds the journals with changes into the rules files and closes them.
+   */
+  @PreDestroy
+  public void writePendingMappings() {
+    ScheduledExecutorService writer;
+    synchronized (this) {
+      writer = rulesWriter;
+      rulesWriter = null;
+    }
+    if (writer != null) {
+      // Waits for a write in progress, the scheduled ones are done here
+      writer.shutdownNow();
+      try {
+        writer.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    new ArrayList<>(pendingRulesWrites).forEach(this::compactJournal);
+    synchronized (journalLock) {
+      if (journal != null) {
+        try {
+          journal.close();
+        } catch (IOException e) {
+          log.error("Could not close the mapping rules journal", e);
+        }
+        journal = null;
+      }
+    }
   }
 
 
@@ -681,23 +910,25 @@ public class MappingService {
             mappedTermsOnly, status, pageable);
 
     List<MappingEntity> mappingEntityList = new ArrayList<>();
+    List<MappingEntity> missingMappings = new ArrayList<>();
 
     mappingEntityPage.forEach(mappingEntity -> {
 
       //get suggestions for missing mapping
       if (mappingEntity.getMappedTermLabel().equals("-")) {
 
-        mappingEntity
-            .setSuggestedMappings(getSuggestionsForUnmappedEntity(
-                mappingEntity,
-                getMappedEntitiesByType(mappingEntity.getEntityType())));
+        missingMappings.add(mappingEntity);
       }
 
       mappingEntityList.add(mappingEntity);
     });
+    boolean suggestionsComplete = suggestionService.assignSuggestions(missingMappings);
 
     PaginationDTO paginationDto = paginationService.initializeDTO(mappingEntityPage);
     paginationDto.setAdditionalProperty("mappings", mappingEntityList);
+    if (!suggestionsComplete) {
+      paginationDto.setAdditionalProperty("suggestionsIncomplete", true);
+    }
 
     return paginationDto;
 
@@ -715,21 +946,6 @@ public class MappingService {
   }
 
 
-  public MappingContainer getMappedEntitiesByType(String entityType) {
-
-    List<MappingEntity> mappedEntities = mappingEntityRepository
-        .findByEntityTypeAndMapTypeIsNotNull(entityType);
-
-    MappingContainer mc = new MappingContainer();
-
-    mappedEntities.forEach(mappedEntity -> {
-      mc.addEntity(mappedEntity);
-    });
-
-    return mc;
-  }
-
-
   public List<Map> getMappingSummary(String entityType) {
 
     List<Object[]> summary = mappingEntityRepository.findMissingMappingStat(entityType);
@@ -750,18 +966,35 @@ public class MappingService {
     MappingEntity mappingEntity = mappingEntityRepository.findByEntityId(id)
             .orElseThrow(() -> new NoSuchElementException(errorMessage));
 
-    //Get suggestions only if mapped term is missing
-    MappingContainer mappingContainer = getMappedEntitiesByType(mappingEntity.getEntityType());
+    // The present mappingEntity is never part of its own suggestions
+    mappingEntity.setSuggestedMappings(suggestionService.getSuggestions(mappingEntity));
 
-    // Remove present mappingEntity from mappingContainer to be used for suggestion
-    mappingContainer.getMappings().remove(mappingEntity.getMappingKey());
+    return mappingEntity;
+  }
 
-    mappingEntity
-            .setSuggestedMappings(getSuggestionsForUnmappedEntity(
-                    mappingEntity,
-            mappingContainer));
 
-    return mappingEntity;
+  /**
+   * Reads the given entities in one query and returns plain copies of them, in the order
+   * requested, that can be used for suggestions outside of the persistence context. Unknown ids
+   * are skipped.
+   */
+  public List<MappingEntity> getEntitiesForSuggestions(List<Long> entityIds) {
+
+    Map<Long, MappingEntity> entitiesById = new HashMap<>();
+    mappingEntityRepository.findAllById(entityIds).forEach(x ->
+        entitiesById.put(x.getEntityId(), MappingSuggestionIndex.detachedCopy(x)));
+
+    // The suggestion indexes are loaded here too, while the persistence context is available
+    entitiesById.values().stream()
+        .map(MappingEntity::getEntityType)
+        .distinct()
+        .forEach(suggestionService::getIndex);
+
+    return entityIds.stream()
+        .distinct()
+        .map(entitiesById::get)
+        .filter(Objects::nonNull)
+        .collect(Collectors.toList());
   }
 
 
@@ -784,6 +1017,7 @@ public class MappingService {
   public List<MappingEntity> updateRecords(List<MappingEntity> submittedEntities) {
 
     List<MappingEntity> savedEntities = new ArrayList<>();
+    List<MappingEntity> changedEntities = new ArrayList<>();
 
     submittedEntities.forEach(newEntity -> {
 
@@ -797,7 +1031,9 @@ public class MappingService {
             mappingEntity.setMapType(newEntity.getMapType());
             mappingEntity.setJustification(newEntity.getJustification());
 
-            return mappingEntityRepository.save(mappingEntity);
+            MappingEntity saved = mappingEntityRepository.save(mappingEntity);
+            changedEntities.add(saved);
+            return saved;
           })
           .orElseGet(() -> {
             return newEntity;
@@ -807,8 +1043,10 @@ public class MappingService {
 
     });
 
-    /* WRITE updated mapped terms to the file system and backup old file */
-    writeMappingsToFile(submittedEntities.get(0).getEntityType());
+    suggestionService.entitiesUpdated(savedEntities);
+
+    /* JOURNAL updated mapped terms, written to the rules files in the background */
+    journalChanges(changedEntities);
 
     return savedEntities;
   }
@@ -816,6 +1054,7 @@ public class MappingService {
   public List<MappingEntity> processUploadedCSV(List<Map<String, String>> csvData) {
 
     List<MappingEntity> savedEntities = new ArrayList<>();
+    List<MappingEntity> changedEntities = new ArrayList<>();
 
     csvData.forEach(eachData -> {
 
@@ -838,7 +1077,9 @@ public class MappingService {
 
             mappingEntity.setDateUpdated(new Date());
             mappingEntity.setStatus(Status.validated.get());
-            return mappingEntityRepository.save(mappingEntity);
+            MappingEntity saved = mappingEntityRepository.save(mappingEntity);
+            changedEntities.add(saved);
+            return saved;
           })
           .orElseGet(() -> {
             return new MappingEntity();
@@ -848,21 +1089,79 @@ public class MappingService {
 
     });
 
+    suggestionService.entitiesUpdated(savedEntities);
+
+    journalChanges(changedEntities);
+
     return savedEntities;
   }
 
+  /**
+   * Replaces the database content with the rules of the rules files and journals. The rules files
+   * are then written again from the database, with the ids of the saved entities that the next
+   * journal records refer to, and the journals folded into them.
+   */
   public void rebuildDatabaseFromRulesFiles() {
     Map<String, String> mappingRulesPaths = getMappingRulesPaths();
     log.info("Database will be rebuild with: " + mappingRulesPaths);
-    loadDiagnosisMappings(mappingRulesPaths.get(MappingEntityType.DIAGNOSIS.getLabel()));
-    loadTreatmentMappings(mappingRulesPaths.get(MappingEntityType.TREATMENT.getLabel()));
-    purgeMappingDatabase();
-    saveEntitiesInContainerToDatabase();
+    synchronized (rulesFilesLock) {
+      // Sealed first, the changes made meanwhile going to new journals
+      Map<String, List<Path>> segments = new HashMap<>();
+      for (MappingEntityType entityType : MappingEntityType.values()) {
+        try {
+          segments.put(entityType.getLabel(), getJournal().seal(entityType.getLabel()));
+        } catch (IOException e) {
+          throw new IllegalStateException("Could not seal the mapping rules journals", e);
+        }
+      }
+      MappingRulesSnapshot snapshot = reloadRules(mappingRulesPaths);
+      purgeMappingDatabase();
+      saveEntitiesInContainerToDatabase(snapshot);
+
+      for (MappingEntityType entityType : MappingEntityType.values()) {
+        String label = entityType.getLabel();
+        foldJournal(label, () -> writeMappingsToFileInTransaction(label, true));
+      }
+      reloadRules(mappingRulesPaths);
+    }
+  }
+
+  /**
+   * Reads the rules file and journal of the entity type again and replaces its rules in memory
+   * with them. Nothing to do until the rules are loaded.
+   */
+  private synchronized void reloadRules(MappingEntityType entityType) {
+    if (rules == null) {
+      return;
+    }
+    List<MappingEntity> next = rules.getEntityList().stream()
+        .filter(x -> !entityType.getLabel().equalsIgnoreCase(x.getEntityType()))
+        .collect(Collectors.toList());
+    next.addAll(loadRulesOfType(entityType, getMappingRulesPaths().get(entityType.getLabel()))
+        .getMappings().values());
+    rules = rules.withRules(next);
   }
 
-  private void saveEntitiesInContainerToDatabase() {
-    List<MappingEntity> mappingEntities = container.getEntityList();
-    mappingEntityRepository.saveAll(mappingEntities);
+  /**
+   * Reads the rules files and journals again and replaces the rules in memory with them, the
+   * diagnosis rules coming first.
+   */
+  private synchronized MappingRulesSnapshot reloadRules(Map<String, String> mappingRulesPaths) {
+    MappingContainer container = new MappingContainer();
+    for (MappingEntityType entityType : MappingEntityType.values()) {
+      loadRulesOfType(entityType, mappingRulesPaths.get(entityType.getLabel()))
+          .getMappings().values().forEach(container::addEntity);
+    }
+    rules = rules == null
+        ? MappingRulesSnapshot.of(container.getMappings().values())
+        : rules.withRules(container.getMappings().values());
+    return rules;
+  }
+
+  private void saveEntitiesInContainerToDatabase(MappingRulesSnapshot snapshot) {
+    List<MappingEntity> mappingEntities = snapshot.getEntityList();
+    List<MappingEntity> savedEntities = mappingEntityRepository.saveAll(mappingEntities);
+    suggestionService.rebuildIndexes(savedEntities);
     log.info("Database rebuild. Mapping data count: " + mappingEntityRepository.count());
   }
 
@@ -881,21 +1180,40 @@ public class MappingService {
     ));
 
     List<MappingEntity> diagnosisMappings =
-        getMappingsByDSAndType(dataSourcesToExport, MappingEntityType.DIAGNOSIS.getLabel()).getEntityList();
+        getRulesByDSAndType(dataSourcesToExport, MappingEntityType.DIAGNOSIS.getLabel());
     List<MappingEntity> treatmentMappings =
-        getMappingsByDSAndType(dataSourcesToExport, MappingEntityType.TREATMENT.getLabel()).getEntityList();
-    Gson gson = new Gson();
-    String diagnosisMappingsJson = gson.toJson(diagnosisMappings);
-    String treatmentMappingsJson = gson.toJson(treatmentMappings);
+        getRulesByDSAndType(dataSourcesToExport, MappingEntityType.TREATMENT.getLabel());
 
-    try (ZipOutputStream zos = new ZipOutputStream(outputStream)) {
+    // Streamed entity by entity, in the format Gson gave them
+    try (ZipOutputStream zos = newZipOutputStream(outputStream)) {
       zos.putNextEntry(new ZipEntry("EurOPDX_diagnosis_mappings.json"));
-      zos.write(diagnosisMappingsJson.getBytes());
+      MappingRulesWriter.write(zos, diagnosisMappings);
       zos.closeEntry();
       zos.putNextEntry(new ZipEntry("EurOPDX_treatment_mappings.json"));
-      zos.write(treatmentMappingsJson.getBytes());
+      MappingRulesWriter.write(zos, treatmentMappings);
       zos.closeEntry();
     }
   }
 
+  /**
+   * Writes a zip archive of the rules files, copied as they are.
+   */
+  public void writeMappingRules(OutputStream outputStream) throws IOException {
+    Map<String, String> mappingRulesPaths = getMappingRulesPaths();
+    try (ZipOutputStream zos = newZipOutputStream(outputStream)) {
+      for (String mappingRulesPath : mappingRulesPaths.values()) {
+        Path file = Paths.get(mappingRulesPath);
+        zos.putNextEntry(new ZipEntry(file.getFileName().toString()));
+        Files.copy(file, zos);
+        zos.closeEntry();
+      }
+    }
+  }
+
+  private ZipOutputStream newZipOutputStream(OutputStream outputStream) {
+    ZipOutputStream zos = new ZipOutputStream(outputStream);
+    zos.setLevel(exportDeflateLevel);
+    return zos;
+  }
+
 }
@@ -0,0 +1,389 @@
+package org.pdxfinder;
+
+import org.pdxfinder.constants.DiagnosisMappingLabels;
+import org.pdxfinder.constants.MappingEntityType;
+import org.pdxfinder.constants.TreatmentMappingLabels;
+import org.pdxfinder.utils.BKTree;
+import org.pdxfinder.utils.BitParallelDamerauLevenshtein;
+import org.pdxfinder.utils.DamerauLevenshteinAlgorithm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntSupplier;
+
+/**
+ * Resident index of the mapped entities of one entity type, used as the candidate corpus for
+ * mapping suggestions. Entries are keyed by mapping key.
+ *
+ * Each entity is held as a {@link Candidate} carrying its attribute values already lower-cased
+ * into character arrays, along with the similarity weight of each attribute. Attributes are
+ * numbered in the order the index first sees them, so a query is normalized once into an array
+ * of values by attribute number and scoring a candidate only reads arrays.
+ *
+ * The lower-cased primary attribute of each entity (SampleDiagnosis or TreatmentName) is also
+ * held in a BK-tree, so candidates can be looked up by their distance to the primary attribute of
+ * the unmapped entity instead of scanning the whole corpus.
+ *
+ * Every change bumps the version so callers can tell whether anything derived from the corpus
+ * is still current.
+ */
+public class MappingSuggestionIndex {
+
+  /**
+   * Receives the candidates found by {@link #findCandidates}. The distance is -1 for candidates
+   * without an indexed primary attribute.
+   */
+  public interface CandidateVisitor {
+
+    void visit(Candidate candidate, int primaryDistance);
+  }
+
+  /**
+   * A mapped entity with its attribute values in the form they are scored in.
+   */
+  public static final class Candidate {
+
+    private final MappingEntity entity;
+
+    private final int[] labelIds;
+
+    private final SimilarityWeight[] weights;
+
+    private final char[][] values;
+
+    private Candidate(MappingEntity entity, int[] labelIds, SimilarityWeight[] weights,
+        char[][] values) {
+      this.entity = entity;
+      this.labelIds = labelIds;
+      this.weights = weights;
+      this.values = values;
+    }
+
+    public MappingEntity getEntity() {
+      return entity;
+    }
+
+    public int getLabelCount() {
+      return labelIds.length;
+    }
+
+    /**
+     * Number of the i-th attribute of the entity in the index, the position of its value in a
+     * normalized query.
+     */
+    public int getLabelId(int i) {
+      return labelIds[i];
+    }
+
+    public SimilarityWeight getWeight(int i) {
+      return weights[i];
+    }
+
+    public char[] getValue(int i) {
+      return values[i];
+    }
+  }
+
+  private static final char[] EMPTY = new char[0];
+
+  private final String entityType;
+
+  private final String primaryLabel;
+
+  private final TreeMap<String, Candidate> mappedEntities = new TreeMap<>();
+
+  private final Map<String, Integer> labelIds = new HashMap<>();
+
+  private final List<SimilarityWeight> labelWeights = new ArrayList<>();
+
+  private final BKTree<char[], Candidate> primaryValueTree;
+
+  private final List<Candidate> unindexedEntities = new ArrayList<>();
+
+  private final MappingNGramIndex nGramIndex;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private final AtomicLong version = new AtomicLong();
+
+  public MappingSuggestionIndex(String entityType, Collection<MappingEntity> mappedEntities) {
+    this(entityType, mappedEntities, false);
+  }
+
+  /**
+   * @param withNGramIndex whether to also index the trigrams of every attribute value, needed by
+   *                       {@link #findCandidatesBySharedNGrams}
+   */
+  public MappingSuggestionIndex(String entityType, Collection<MappingEntity> mappedEntities,
+      boolean withNGramIndex) {
+    this.entityType = entityType;
+    this.primaryLabel = getPrimaryLabel(entityType);
+    DamerauLevenshteinAlgorithm dla = new BitParallelDamerauLevenshtein(1, 1, 2, 2);
+    this.primaryValueTree = new BKTree<>((a, b) -> dla.execute(a, b, Integer.MAX_VALUE));
+    this.nGramIndex = withNGramIndex ? new MappingNGramIndex(primaryLabel, 5) : null;
+    mappedEntities.forEach(this::put);
+  }
+
+  /**
+   * The attribute that weighs the most in the similarity of two entities of the given type, or
+   * null when the type has none.
+   */
+  public static String getPrimaryLabel(String entityType) {
+    MappingEntityType type = MappingEntityType.valueOfLabel(entityType.toLowerCase());
+    if (type == MappingEntityType.DIAGNOSIS) {
+      return DiagnosisMappingLabels.SAMPLE_DIAGNOSIS.getLabel();
+    }
+    if (type == MappingEntityType.TREATMENT) {
+      return TreatmentMappingLabels.TREATMENT_TYPE.getLabel();
+    }
+    return null;
+  }
+
+  public static char[] normalize(String value) {
+    return value == null || value.isEmpty() ? EMPTY : value.toLowerCase().toCharArray();
+  }
+
+  public String getEntityType() {
+    return entityType;
+  }
+
+  public String getPrimaryLabel() {
+    return primaryLabel;
+  }
+
+  public long getVersion() {
+    return version.get();
+  }
+
+  public int getSize() {
+    lock.readLock().lock();
+    try {
+      return mappedEntities.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public List<MappingEntity> getMappedEntities() {
+    lock.readLock().lock();
+    try {
+      List<MappingEntity> entities = new ArrayList<>(mappedEntities.size());
+      mappedEntities.values().forEach(x -> entities.add(x.getEntity()));
+      return entities;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public MappingEntity getEntityByKey(String mappingKey) {
+    lock.readLock().lock();
+    try {
+      Candidate candidate = mappedEntities.get(mappingKey);
+      return candidate == null ? null : candidate.getEntity();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Lower-cased attribute values of the entity by attribute number. Attributes the index has
+   * never seen are left out, they cannot be compared with any candidate.
+   */
+  public char[][] normalizeQuery(MappingEntity me) {
+    lock.readLock().lock();
+    try {
+      char[][] query = new char[labelIds.size()][];
+      Arrays.fill(query, EMPTY);
+      me.getMappingValues().forEach((label, value) -> {
+        Integer labelId = labelIds.get(label);
+        if (labelId != null) {
+          query[labelId] = normalize(value);
+        }
+      });
+      return query;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Value of the given attribute in a normalized query, empty when the query has none. Queries
+   * normalized before the index saw the attribute have none either.
+   */
+  public static char[] getQueryValue(char[][] query, int labelId) {
+    return labelId < query.length ? query[labelId] : EMPTY;
+  }
+
+  /**
+   * Visits the candidates whose primary attribute is within the given distance of the primary
+   * value of the normalized query, plus every candidate that has no indexed primary attribute.
+   * The distance is read again after each visit so it can shrink while the search runs.
+   */
+  public void findCandidates(char[][] query, IntSupplier maxPrimaryDistance,
+      CandidateVisitor visitor) {
+
+    lock.readLock().lock();
+    try {
+      unindexedEntities.forEach(candidate -> visitor.visit(candidate, -1));
+      Integer primaryLabelId = primaryLabel == null ? null : labelIds.get(primaryLabel);
+      if (primaryLabelId == null) {
+        return;
+      }
+      primaryValueTree.search(getQueryValue(query, primaryLabelId), maxPrimaryDistance,
+          (key, distance, candidates) -> candidates.forEach(x -> visitor.visit(x, distance)));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public boolean hasNGramIndex() {
+    return nGramIndex != null;
+  }
+
+  /**
+   * Returns up to maxCandidates entities sharing the most attribute trigrams with the given one.
+   */
+  public List<Candidate> findCandidatesBySharedNGrams(MappingEntity me, int maxCandidates) {
+    if (nGramIndex == null) {
+      throw new IllegalStateException("No n-gram index for " + entityType);
+    }
+    lock.readLock().lock();
+    try {
+      List<Candidate> candidates = new ArrayList<>(maxCandidates);
+      nGramIndex.getCandidates(me, maxCandidates)
+          .forEach(x -> candidates.add(mappedEntities.get(x.getMappingKey())));
+      return candidates;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Adds, replaces or drops the entity depending on whether it is still mapped. The version is
+   * only bumped when the corpus changed, unmapped entities that were not in it leave it as is.
+   *
+   * @return whether the corpus changed
+   */
+  public boolean update(Collection<MappingEntity> entities) {
+    lock.writeLock().lock();
+    try {
+      boolean changed = false;
+      for (MappingEntity entity : entities) {
+        changed |= remove(entity.getMappingKey());
+        if (isMapped(entity)) {
+          put(entity);
+          changed = true;
+        }
+      }
+      if (changed) {
+        version.incrementAndGet();
+      }
+      return changed;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  public void replaceAll(Collection<MappingEntity> entities) {
+    lock.writeLock().lock();
+    try {
+      new ArrayList<>(mappedEntities.keySet()).forEach(this::remove);
+      entities.forEach(this::put);
+      version.incrementAndGet();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  static boolean isMapped(MappingEntity entity) {
+    return entity.getMapType() != null;
+  }
+
+  private boolean isIndexedByPrimaryValue(MappingEntity entity) {
+    return primaryLabel != null && entity.getMappingLabels().contains(primaryLabel);
+  }
+
+  private void put(MappingEntity entity) {
+    if (entity.getMappingKey() == null) {
+      return;
+    }
+    MappingEntity copy = detachedCopy(entity);
+    remove(copy.getMappingKey());
+    Candidate candidate = toCandidate(copy);
+    mappedEntities.put(copy.getMappingKey(), candidate);
+    if (nGramIndex != null) {
+      nGramIndex.add(copy);
+    }
+    if (isIndexedByPrimaryValue(copy)) {
+      primaryValueTree.add(normalize(copy.getMappingValues().get(primaryLabel)), candidate);
+    } else {
+      unindexedEntities.add(candidate);
+    }
+  }
+
+  private Candidate toCandidate(MappingEntity entity) {
+    List<String> labels = entity.getMappingLabels();
+    int[] ids = new int[labels.size()];
+    SimilarityWeight[] weights = new SimilarityWeight[labels.size()];
+    char[][] values = new char[labels.size()][];
+    for (int i = 0; i < labels.size(); i++) {
+      String label = labels.get(i);
+      ids[i] = labelIds.computeIfAbsent(label, x -> {
+        labelWeights.add(SimilarityWeight.resolve(entityType, x));
+        return labelWeights.size() - 1;
+      });
+      weights[i] = labelWeights.get(ids[i]);
+      values[i] = normalize(entity.getMappingValues().get(label));
+    }
+    return new Candidate(entity, ids, weights, values);
+  }
+
+  private boolean remove(String mappingKey) {
+    Candidate candidate = mappedEntities.remove(mappingKey);
+    if (candidate == null) {
+      return false;
+    }
+    MappingEntity previous = candidate.getEntity();
+    if (nGramIndex != null) {
+      nGramIndex.remove(mappingKey);
+    }
+    if (isIndexedByPrimaryValue(previous)) {
+      primaryValueTree.removeIf(normalize(previous.getMappingValues().get(primaryLabel)),
+          x -> x.getEntity().getMappingKey().equals(mappingKey));
+    } else {
+      unindexedEntities.remove(candidate);
+    }
+    return true;
+  }
+
+  /**
+   * The index outlives the persistence context the entity was read in, so it keeps its own copy
+   * with plain collections instead of the lazy ones managed by JPA.
+   */
+  static MappingEntity detachedCopy(MappingEntity me) {
+    MappingEntity copy = new MappingEntity();
+    copy.setEntityId(me.getEntityId());
+    copy.setEntityType(me.getEntityType());
+    copy.setMappingLabels(new ArrayList<>(me.getMappingLabels()));
+    Map<String, String> mappingValues = new HashMap<>(me.getMappingValues());
+    copy.setMappingValues(mappingValues);
+    copy.setMappedTermUrl(me.getMappedTermUrl());
+    copy.setMappedTermLabel(me.getMappedTermLabel());
+    copy.setMapType(me.getMapType());
+    copy.setJustification(me.getJustification());
+    copy.setStatus(me.getStatus());
+    copy.setSuggestedMappings(new ArrayList<>());
+    copy.setDateCreated(me.getDateCreated());
+    copy.setDateUpdated(me.getDateUpdated());
+    copy.setMappingKey(me.getMappingKey());
+    return copy;
+  }
+}
@@ -23,6 +23,7 @@ public class MissingMappingService {
     Reader reader;
     TableSetCleaner tableSetCleaner;
     MappingService mappingService;
+    SuggestionService suggestionService;
 
     @Value("${data-dir}")
     private String rootDir;
@@ -32,8 +33,10 @@ public class MissingMappingService {
     MappingContainer missingMappingsContainer;
 
     @Autowired
-    public MissingMappingService(MappingService mappingService) {
+    public MissingMappingService(MappingService mappingService,
+                                 SuggestionService suggestionService) {
         this.mappingService = mappingService;
+        this.suggestionService = suggestionService;
         reader = new Reader();
         tableSetCleaner = new TableSetCleaner();
         missingMappingsContainer = new MappingContainer();
@@ -47,6 +50,7 @@ public class MissingMappingService {
         log.info("Deleting not mapped entities");
         mappingService.deleteMappingEntities(mappingService.getNotMappedEntities());
         populateMissingMappingsContainer();
+        suggestionService.precomputeSuggestions(missingMappingsContainer.getEntityList());
 
         return missingMappingsContainer;
     }
@@ -0,0 +1,206 @@
+package org.pdxfinder;
+
+import org.pdxfinder.utils.DamerauLevenshteinAlgorithm;
+import org.pdxfinder.utils.TopKCollector;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable index of the labels and synonyms of the ontology terms of one type, searched by
+ * edit distance to suggest terms for unmapped entities.
+ *
+ * Every name is split into character trigrams held in an inverted index. A name within edit
+ * distance d of the query keeps all but at most 3 * d of the distinct trigrams of the query, so
+ * only names sharing at least that many trigrams have their distance computed, the ones sharing
+ * the most first. Names sharing no trigram at all with very short queries are never found.
+ */
+public class OntologyTermIndex {
+
+  private static final int N = 3;
+
+  private static final int[] NO_POSTINGS = new int[0];
+
+  // Overlap counts of the names, reused by the searches of a thread
+  private static final ThreadLocal<int[]> OVERLAPS = ThreadLocal.withInitial(() -> new int[0]);
+
+  /**
+   * Term found by {@link #search}, with the name it was found by.
+   */
+  public static final class Match {
+
+    private final OntologyTerm term;
+
+    private final String name;
+
+    private final int distance;
+
+    Match(OntologyTerm term, String name, int distance) {
+      this.term = term;
+      this.name = name;
+      this.distance = distance;
+    }
+
+    public OntologyTerm getTerm() {
+      return term;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getDistance() {
+      return distance;
+    }
+  }
+
+  private final String type;
+
+  private final OntologyTerm[] terms;
+
+  // Names of all the terms, their term in nameTerms
+  private final String[] names;
+
+  private final char[][] normalizedNames;
+
+  private final int[] nameTerms;
+
+  private final Map<String, int[]> postings;
+
+  public OntologyTermIndex(String type, Collection<OntologyTerm> ontologyTerms) {
+    this.type = type;
+    this.terms = new OntologyTerm[ontologyTerms.size()];
+    List<String> termNames = new ArrayList<>();
+    List<Integer> termIds = new ArrayList<>();
+    int termId = 0;
+    for (OntologyTerm term : ontologyTerms) {
+      // Detached from the persistence context the synonyms were read in
+      OntologyTerm copy = new OntologyTerm(term.getUrl(), term.getLabel(), term.getType());
+      copy.setId(term.getId());
+      terms[termId] = copy;
+      Set<String> distinctNames = new LinkedHashSet<>();
+      distinctNames.add(term.getLabel());
+      if (term.getSynonyms() != null) {
+        distinctNames.addAll(term.getSynonyms());
+      }
+      for (String name : distinctNames) {
+        if (name != null && !name.trim().isEmpty()) {
+          termNames.add(name);
+          termIds.add(termId);
+        }
+      }
+      termId++;
+    }
+
+    this.names = termNames.toArray(new String[0]);
+    this.normalizedNames = new char[names.length][];
+    this.nameTerms = new int[names.length];
+    Map<String, List<Integer>> gramNames = new HashMap<>();
+    for (int i = 0; i < names.length; i++) {
+      normalizedNames[i] = MappingSuggestionIndex.normalize(names[i]);
+      nameTerms[i] = termIds.get(i);
+      for (String gram : getGrams(normalizedNames[i])) {
+        gramNames.computeIfAbsent(gram, x -> new ArrayList<>()).add(i);
+      }
+    }
+    this.postings = new HashMap<>(gramNames.size() * 2);
+    gramNames.forEach((gram, ids) ->
+        postings.put(gram, ids.stream().mapToInt(Integer::intValue).toArray()));
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public int getTermCount() {
+    return terms.length;
+  }
+
+  public int getNameCount() {
+    return names.length;
+  }
+
+  /**
+   * Returns the terms having a name within maxDistance of the lower-cased query, closest first,
+   * one match per term. At most maxCandidates names, those sharing the most trigrams with the
+   * query, have their distance computed.
+   */
+  public List<Match> search(char[] query, int maxDistance, int maxCandidates,
+      DamerauLevenshteinAlgorithm dla) {
+
+    List<Match> matches = new ArrayList<>();
+    if (query.length == 0 || maxDistance < 0 || names.length == 0) {
+      return matches;
+    }
+    Set<String> queryGrams = getGrams(query);
+    int minOverlap = Math.max(1, queryGrams.size() - N * maxDistance);
+
+    int[] overlaps = getOverlaps(names.length);
+    List<int[]> queryPostings = new ArrayList<>(queryGrams.size());
+    for (String gram : queryGrams) {
+      queryPostings.add(postings.getOrDefault(gram, NO_POSTINGS));
+    }
+    TopKCollector<Integer> candidates = new TopKCollector<>(Math.max(1, maxCandidates));
+    for (int[] gramPostings : queryPostings) {
+      for (int name : gramPostings) {
+        overlaps[name]++;
+      }
+    }
+    for (int[] gramPostings : queryPostings) {
+      for (int name : gramPostings) {
+        int overlap = overlaps[name];
+        if (overlap >= minOverlap
+            && Math.abs(normalizedNames[name].length - query.length) <= maxDistance
+            && candidates.accepts(-overlap)) {
+          candidates.offer(-overlap, name, name);
+        }
+        // Offered once, which also leaves the counts cleared for the next search
+        overlaps[name] = 0;
+      }
+    }
+
+    Map<Integer, Match> bestByTerm = new HashMap<>();
+    for (int name : candidates.drainSorted()) {
+      int distance = dla.execute(query, normalizedNames[name], maxDistance);
+      if (distance > maxDistance) {
+        continue;
+      }
+      Match best = bestByTerm.get(nameTerms[name]);
+      if (best == null || distance < best.getDistance()) {
+        bestByTerm.put(nameTerms[name], new Match(terms[nameTerms[name]], names[name], distance));
+      }
+    }
+    matches.addAll(bestByTerm.values());
+    matches.sort((a, b) -> a.getDistance() != b.getDistance()
+        ? Integer.compare(a.getDistance(), b.getDistance())
+        : a.getTerm().getLabel().compareTo(b.getTerm().getLabel()));
+    return matches;
+  }
+
+  private static int[] getOverlaps(int size) {
+    int[] overlaps = OVERLAPS.get();
+    if (overlaps.length < size) {
+      overlaps = new int[size];
+      OVERLAPS.set(overlaps);
+    }
+    return overlaps;
+  }
+
+  private static Set<String> getGrams(char[] value) {
+    Set<String> grams = new LinkedHashSet<>();
+    char[] padded = new char[value.length + N];
+    padded[0] = ' ';
+    padded[1] = ' ';
+    System.arraycopy(value, 0, padded, 2, value.length);
+    padded[padded.length - 1] = ' ';
+    for (int i = 0; i + N <= padded.length; i++) {
+      grams.add(new String(padded, i, N));
+    }
+    return grams;
+  }
+}
@@ -50,12 +50,15 @@ public class OntologyTermService {
 
     final OntologyTermRepository ontologyTermRepository;
     final UtilityService utilityService;
+    final SuggestionService suggestionService;
 
     @Autowired
     public OntologyTermService(
-        OntologyTermRepository ontologyTermRepository, UtilityService utilityService) {
+        OntologyTermRepository ontologyTermRepository, UtilityService utilityService,
+        SuggestionService suggestionService) {
         this.ontologyTermRepository = ontologyTermRepository;
         this.utilityService = utilityService;
+        this.suggestionService = suggestionService;
     }
 
 
@@ -71,6 +74,7 @@ public class OntologyTermService {
         ontologyTermRepository.deleteAllByType("diagnosis");
         getDiagnosisTerms();
         saveOntologyTerms();
+        suggestionService.ontologyTermsUpdated("diagnosis");
         log.info("done");
     }
 
@@ -83,6 +87,8 @@ public class OntologyTermService {
         ontologyTermRepository.deleteAllByType("regimen");
         getTreatmentTerms();
         saveOntologyTerms();
+        suggestionService.ontologyTermsUpdated("treatment");
+        suggestionService.ontologyTermsUpdated("regimen");
         log.info("done");
     }
 
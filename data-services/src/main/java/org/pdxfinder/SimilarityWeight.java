@@ -0,0 +1,73 @@
+package org.pdxfinder;
+
+import org.pdxfinder.constants.DiagnosisMappingLabels;
+import org.pdxfinder.constants.MappingEntityType;
+import org.pdxfinder.constants.TreatmentMappingLabels;
+import org.pdxfinder.utils.DamerauLevenshteinAlgorithm;
+
+/**
+ * How much the distance between two values of an attribute weighs in the similarity score of two
+ * mapping entities. Resolved once per attribute of an entity type so scoring does not have to
+ * look at type or label names again.
+ */
+public enum SimilarityWeight {
+
+  PRIMARY {
+    @Override
+    public int score(DamerauLevenshteinAlgorithm dla, char[] value1, char[] value2) {
+      return dla.execute(value1, value2, Integer.MAX_VALUE) * 5;
+    }
+  },
+
+  //the origin tissue is very different, less likely will be a good suggestion
+  ORIGIN_TISSUE {
+    @Override
+    public int score(DamerauLevenshteinAlgorithm dla, char[] value1, char[] value2) {
+      int diff = dla.execute(value1, value2, MAX_ATTRIBUTE_DIFF);
+      return diff > MAX_ATTRIBUTE_DIFF ? 50 : diff;
+    }
+  },
+
+  SECONDARY {
+    @Override
+    public int score(DamerauLevenshteinAlgorithm dla, char[] value1, char[] value2) {
+      int diff = dla.execute(value1, value2, MAX_ATTRIBUTE_DIFF);
+      return diff > MAX_ATTRIBUTE_DIFF ? 1 : diff;
+    }
+  },
+
+  UNSUPPORTED {
+    @Override
+    public int score(DamerauLevenshteinAlgorithm dla, char[] value1, char[] value2) {
+      return 10000;
+    }
+  };
+
+  // Secondary attributes further apart than this all weigh the same
+  private static final int MAX_ATTRIBUTE_DIFF = 4;
+
+  /**
+   * Score component of the two lower-cased values.
+   */
+  public abstract int score(DamerauLevenshteinAlgorithm dla, char[] value1, char[] value2);
+
+  public static SimilarityWeight resolve(String entityType, String label) {
+    MappingEntityType type = MappingEntityType.valueOfLabel(entityType.toLowerCase());
+    if (type == MappingEntityType.DIAGNOSIS) {
+      if (DiagnosisMappingLabels.SAMPLE_DIAGNOSIS.getLabel().equals(label)) {
+        return PRIMARY;
+      }
+      if (DiagnosisMappingLabels.ORIGIN_TISSUE.getLabel().equals(label)) {
+        return ORIGIN_TISSUE;
+      }
+      return SECONDARY;
+    }
+    if (type == MappingEntityType.TREATMENT) {
+      if (TreatmentMappingLabels.TREATMENT_TYPE.getLabel().equals(label)) {
+        return PRIMARY;
+      }
+      return SECONDARY;
+    }
+    return UNSUPPORTED;
+  }
+}
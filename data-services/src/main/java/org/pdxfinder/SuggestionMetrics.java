@@ -0,0 +1,41 @@
+package org.pdxfinder;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Publishes the suggestion cache statistics (cache.gets with result hit or miss, cache.size,
+ * cache.evictions) under the cache name "suggestions", and the progress of the background
+ * precomputation of suggestions.
+ */
+@Component
+public class SuggestionMetrics implements MeterBinder {
+
+  private final SuggestionService suggestionService;
+
+  @Autowired
+  public SuggestionMetrics(SuggestionService suggestionService) {
+    this.suggestionService = suggestionService;
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    CaffeineCacheMetrics.monitor(registry, suggestionService.getSuggestionCache(), "suggestions");
+    Gauge.builder("suggestions.precompute.total", suggestionService,
+        SuggestionService::getPrecomputeTotal)
+        .description("Unmapped entities of the last suggestion precompute run")
+        .register(registry);
+    Gauge.builder("suggestions.precompute.completed", suggestionService,
+        SuggestionService::getPrecomputeCompleted)
+        .description("Unmapped entities of the last precompute run with suggestions computed")
+        .register(registry);
+    Gauge.builder("suggestions.precompute.stored", suggestionService,
+        SuggestionService::getStoredSuggestionCount)
+        .description("Precomputed suggestion lists held, current or stale")
+        .register(registry);
+  }
+}
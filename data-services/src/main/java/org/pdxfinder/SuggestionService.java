@@ -0,0 +1,809 @@
+package org.pdxfinder;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.pdxfinder.MappingSuggestionIndex.Candidate;
+import org.pdxfinder.constants.MappingEntityType;
+import org.pdxfinder.repositories.MappingEntityRepository;
+import org.pdxfinder.repositories.OntologyTermRepository;
+import org.pdxfinder.utils.BitParallelDamerauLevenshtein;
+import org.pdxfinder.utils.DamerauLevenshteinAlgorithm;
+import org.pdxfinder.utils.TopKCollector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * Computes mapping suggestions for unmapped entities against a resident index of the mapped
+ * entities of the same type. The index of a type is loaded from the database the first time it
+ * is needed and then kept up to date by the callers that change mapped entities.
+ *
+ * When enabled, the labels and synonyms of the ontology terms of the matching types are searched
+ * as well, and the terms close enough to the primary attribute of the entity compete with the
+ * mapped entities for the same places in the ranking. A term scores what a mapped entity with
+ * its name and none of the other attributes in common would.
+ *
+ * After missing mapping discovery the suggestions of the new unmapped entities can be computed
+ * in the background and stored, to be served as they are while the corpus they were computed
+ * against does not change. They are computed once per cluster of near duplicate entities and
+ * shared by its members.
+ */
+@Service
+public class SuggestionService {
+
+  private static final Logger log = LoggerFactory.getLogger(SuggestionService.class);
+
+  public static final int MAX_SUGGESTIONS = 10;
+
+  public static final int MAX_REQUESTED_SUGGESTIONS = 100;
+
+  // Ontology suggestions rank after mapped entities with the same score
+  private static final long ONTOLOGY_TIE_BREAKER = 1L << 62;
+
+  private static final BooleanSupplier NOT_CANCELLED = () -> false;
+
+  private final MappingEntityRepository mappingEntityRepository;
+
+  private final OntologyTermRepository ontologyTermRepository;
+
+  private final Map<String, MappingSuggestionIndex> indexes = new ConcurrentHashMap<>();
+
+  private final Map<String, OntologyTermIndex> ontologyIndexes = new ConcurrentHashMap<>();
+
+  private final AtomicLong ontologyVersion = new AtomicLong();
+
+  @Value("${suggestions.parallel.enabled:false}")
+  private boolean parallelEnabled;
+
+  // 0 uses one thread per available processor
+  @Value("${suggestions.parallel.threads:2}")
+  private int parallelThreads = 2;
+
+  @Value("${suggestions.deadline-ms:5000}")
+  private long deadlineMs;
+
+  private ForkJoinPool suggestionPool;
+
+  @Value("${suggestions.prefilter.enabled:false}")
+  private boolean prefilterEnabled;
+
+  @Value("${suggestions.prefilter.candidates:300}")
+  private int prefilterCandidates;
+
+  @Value("${suggestions.prefilter.validate:false}")
+  private boolean prefilterValidate;
+
+  private final AtomicLong prefilterMismatches = new AtomicLong();
+
+  @Value("${suggestions.cache.max-size:10000}")
+  private long cacheMaxSize = 10000;
+
+  @Value("${suggestions.cache.ttl-minutes:30}")
+  private long cacheTtlMinutes = 30;
+
+  private Cache<SuggestionKey, List<MappingEntity>> suggestionCache;
+
+  @Value("${suggestions.ontology.enabled:false}")
+  private boolean ontologyEnabled;
+
+  // Largest edit distance between the primary attribute and a term label or synonym
+  @Value("${suggestions.ontology.max-distance:6}")
+  private int ontologyMaxDistance = 6;
+
+  @Value("${suggestions.ontology.candidates:200}")
+  private int ontologyCandidates = 200;
+
+  @Value("${suggestions.precompute.enabled:false}")
+  private boolean precomputeEnabled;
+
+  @Value("${suggestions.precompute.threads:2}")
+  private int precomputeThreads = 2;
+
+  private ExecutorService precomputePool;
+
+  // Edits between the primary values of unmapped entities sharing their suggestions
+  @Value("${suggestions.clusters.max-distance:1}")
+  private int clusterMaxDistance = 1;
+
+  // Suggestions computed in the background, by mapping key
+  private final Map<String, StoredSuggestions> storedSuggestions = new ConcurrentHashMap<>();
+
+  private final AtomicLong precomputeRun = new AtomicLong();
+
+  private final AtomicInteger precomputeTotal = new AtomicInteger();
+
+  private final AtomicInteger precomputeCompleted = new AtomicInteger();
+
+  @Autowired
+  public SuggestionService(MappingEntityRepository mappingEntityRepository,
+      OntologyTermRepository ontologyTermRepository) {
+    this.mappingEntityRepository = mappingEntityRepository;
+    this.ontologyTermRepository = ontologyTermRepository;
+  }
+
+  public MappingSuggestionIndex getIndex(String entityType) {
+    return indexes.computeIfAbsent(entityType, this::loadIndex);
+  }
+
+  public long getIndexVersion(String entityType) {
+    return getIndex(entityType).getVersion();
+  }
+
+  public OntologyTermIndex getOntologyIndex(String ontologyType) {
+    return ontologyIndexes.computeIfAbsent(ontologyType, this::loadOntologyIndex);
+  }
+
+  /**
+   * Types of the ontology terms suggested for entities of the given type.
+   */
+  public static List<String> getOntologyTypes(String entityType) {
+    MappingEntityType type = MappingEntityType.valueOfLabel(entityType.toLowerCase());
+    if (type == MappingEntityType.DIAGNOSIS) {
+      return Collections.singletonList("diagnosis");
+    }
+    if (type == MappingEntityType.TREATMENT) {
+      return Arrays.asList("treatment", "regimen");
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * Drops the ontology index of the given type, to be read again from the database the next time
+   * it is needed, and the suggestions computed with it.
+   */
+  public void ontologyTermsUpdated(String ontologyType) {
+    ontologyIndexes.remove(ontologyType);
+    ontologyVersion.incrementAndGet();
+    for (MappingEntityType type : MappingEntityType.values()) {
+      if (getOntologyTypes(type.getLabel()).contains(ontologyType)) {
+        invalidateSuggestions(type.getLabel());
+      }
+    }
+  }
+
+  /**
+   * Returns the closest mapped entities of the same type. The entity itself is never suggested.
+   */
+  public List<MappingEntity> getSuggestions(MappingEntity me) {
+    return getSuggestions(me, MAX_SUGGESTIONS);
+  }
+
+  /**
+   * Returns the k closest mapped entities of the same type.
+   */
+  public List<MappingEntity> getSuggestions(MappingEntity me, int k) {
+    return getSuggestions(me, k, NOT_CANCELLED);
+  }
+
+  /**
+   * Same as {@link #getSuggestions(MappingEntity, int)}, throwing a CancellationException as soon
+   * as the scoring of a candidate finds the computation cancelled.
+   */
+  private List<MappingEntity> getSuggestions(MappingEntity me, int k, BooleanSupplier cancelled) {
+    MappingSuggestionIndex suggestionIndex = getIndex(me.getEntityType());
+    if (me.getMappingKey() == null) {
+      return computeSuggestions(me, k, suggestionIndex, cancelled);
+    }
+    if (k == MAX_SUGGESTIONS) {
+      List<MappingEntity> stored = getStoredSuggestions(me, suggestionIndex);
+      if (stored != null) {
+        return stored;
+      }
+    }
+    // Read before computing, a corpus change meanwhile makes the entry unreachable
+    SuggestionKey key = new SuggestionKey(me.getEntityType(), me.getMappingKey(), k,
+        suggestionIndex.getVersion(), ontologyVersion.get());
+    List<MappingEntity> suggestions = getSuggestionCache().getIfPresent(key);
+    if (suggestions == null) {
+      // Not computed in the cache, which would lock other keys meanwhile. A cancelled
+      // computation throws and leaves nothing cached.
+      suggestions = computeSuggestions(me, k, suggestionIndex, cancelled);
+      getSuggestionCache().put(key, suggestions);
+    }
+    return new ArrayList<>(suggestions);
+  }
+
+  private List<MappingEntity> computeSuggestions(MappingEntity me, int k,
+      MappingSuggestionIndex suggestionIndex, BooleanSupplier cancelled) {
+
+    TopKCollector<MappingEntity> topSuggestions = new TopKCollector<>(k);
+    //Use the Damerau Levenshtein algorithm to determine string similarity
+    DamerauLevenshteinAlgorithm dla = new BitParallelDamerauLevenshtein(1, 1, 2, 2);
+    char[][] query = suggestionIndex.normalizeQuery(me);
+
+    if (prefilterEnabled && suggestionIndex.hasNGramIndex()
+        && suggestionIndex.getSize() > prefilterCandidates) {
+      collectPrefilteredSuggestions(me, k, query, suggestionIndex, dla, topSuggestions,
+          cancelled);
+    } else {
+      collectSuggestions(me, query, suggestionIndex, dla, topSuggestions, cancelled);
+    }
+    if (!ontologyEnabled) {
+      return topSuggestions.drainSorted();
+    }
+    checkCancelled(cancelled);
+    collectOntologySuggestions(me, suggestionIndex.getPrimaryLabel(), dla, topSuggestions);
+    return topSuggestions.drainSorted();
+  }
+
+  /**
+   * Computes the k suggestions of each entity against the same resident corpus, in parallel when
+   * enabled, and hands each result over as soon as it is ready. The consumer is always called from
+   * the calling thread. The entities must not depend on a persistence context.
+   */
+  public void streamSuggestions(List<MappingEntity> entities, int k,
+      BiConsumer<MappingEntity, List<MappingEntity>> consumer) {
+
+    entities.stream().map(MappingEntity::getEntityType).distinct().forEach(this::getIndex);
+
+    if (!parallelEnabled || entities.size() < 2) {
+      entities.forEach(x -> consumer.accept(x, getSuggestions(x, k)));
+      return;
+    }
+
+    // Set when the results are no longer wanted, the running tasks stopping at their next candidate
+    AtomicBoolean cancelled = new AtomicBoolean();
+    CompletionService<Map.Entry<MappingEntity, List<MappingEntity>>> completionService =
+        new ExecutorCompletionService<>(getSuggestionPool());
+    List<Future<Map.Entry<MappingEntity, List<MappingEntity>>>> tasks = new ArrayList<>();
+    entities.forEach(x -> tasks.add(completionService.submit(
+        () -> new AbstractMap.SimpleImmutableEntry<>(x, getSuggestions(x, k, cancelled::get)))));
+    try {
+      for (int i = 0; i < tasks.size(); i++) {
+        Map.Entry<MappingEntity, List<MappingEntity>> result = completionService.take().get();
+        consumer.accept(result.getKey(), result.getValue());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Suggestions could not be computed", e.getCause());
+    } finally {
+      cancelled.set(true);
+      tasks.forEach(x -> x.cancel(false));
+    }
+  }
+
+  /**
+   * Number of prefiltered suggestions found different from the exhaustive ones in validation
+   * mode.
+   */
+  public long getPrefilterMismatches() {
+    return prefilterMismatches.get();
+  }
+
+  /**
+   * Sets the suggestions of each of the given entities, in parallel when enabled. Gives up when
+   * the deadline is reached, leaving the entities not done yet without suggestions. The
+   * computations still running stop at their next candidate.
+   *
+   * @return true when the suggestions of every entity were computed
+   */
+  public boolean assignSuggestions(List<MappingEntity> entities) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+    AtomicBoolean interrupted = new AtomicBoolean();
+    BooleanSupplier cancelled = () -> interrupted.get() || System.nanoTime() >= deadline;
+    // Loads the indexes on the calling thread, which may hold the persistence context
+    entities.stream().map(MappingEntity::getEntityType).distinct().forEach(this::getIndex);
+
+    List<MappingEntity> pending = new ArrayList<>();
+    for (MappingEntity entity : entities) {
+      List<MappingEntity> stored = entity.getMappingKey() == null
+          ? null
+          : getStoredSuggestions(entity, getIndex(entity.getEntityType()));
+      if (stored != null) {
+        entity.setSuggestedMappings(stored);
+      } else {
+        pending.add(entity);
+      }
+    }
+    entities = pending;
+
+    if (!parallelEnabled || entities.size() < 2) {
+      for (int i = 0; i < entities.size(); i++) {
+        try {
+          checkCancelled(cancelled);
+          entities.get(i).setSuggestedMappings(
+              getSuggestions(entities.get(i), MAX_SUGGESTIONS, cancelled));
+        } catch (CancellationException e) {
+          logDeadlineReached();
+          return setUnfinished(entities.subList(i, entities.size()));
+        }
+      }
+      return true;
+    }
+
+    List<ForkJoinTask<List<MappingEntity>>> tasks = new ArrayList<>();
+    for (MappingEntity entity : entities) {
+      // Workers only see a plain copy, the lazy collections stay on this thread
+      MappingEntity query = MappingSuggestionIndex.detachedCopy(entity);
+      tasks.add(getSuggestionPool().submit(
+          () -> getSuggestions(query, MAX_SUGGESTIONS, cancelled)));
+    }
+
+    boolean complete = true;
+    for (int i = 0; i < entities.size(); i++) {
+      ForkJoinTask<List<MappingEntity>> task = tasks.get(i);
+      try {
+        long remaining = deadline - System.nanoTime();
+        entities.get(i).setSuggestedMappings(
+            task.get(Math.max(0, remaining), TimeUnit.NANOSECONDS));
+      } catch (TimeoutException | CancellationException e) {
+        complete = false;
+        task.cancel(false);
+        entities.get(i).setSuggestedMappings(new ArrayList<>());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        interrupted.set(true);
+        tasks.forEach(x -> x.cancel(false));
+        return setUnfinished(entities.subList(i, entities.size()));
+      } catch (ExecutionException e) {
+        if (!(e.getCause() instanceof CancellationException)) {
+          throw new IllegalStateException("Suggestions could not be computed", e.getCause());
+        }
+        complete = false;
+        entities.get(i).setSuggestedMappings(new ArrayList<>());
+      }
+    }
+    if (!complete) {
+      logDeadlineReached();
+    }
+    return complete;
+  }
+
+  private static void checkCancelled(BooleanSupplier cancelled) {
+    if (cancelled.getAsBoolean()) {
+      throw new CancellationException("Suggestions no longer wanted");
+    }
+  }
+
+  private void logDeadlineReached() {
+    log.warn("Suggestion deadline of {} ms reached, returning partial suggestions", deadlineMs);
+  }
+
+  private boolean setUnfinished(List<MappingEntity> entities) {
+    entities.forEach(x -> x.setSuggestedMappings(new ArrayList<>()));
+    return false;
+  }
+
+  private synchronized ForkJoinPool getSuggestionPool() {
+    if (suggestionPool == null) {
+      int threads = parallelThreads > 0
+          ? parallelThreads
+          : Runtime.getRuntime().availableProcessors();
+      suggestionPool = new ForkJoinPool(threads);
+    }
+    return suggestionPool;
+  }
+
+  @PreDestroy
+  public synchronized void shutdown() {
+    if (suggestionPool != null) {
+      suggestionPool.shutdownNow();
+    }
+    if (precomputePool != null) {
+      precomputePool.shutdownNow();
+    }
+  }
+
+  /**
+   * Computes and stores the suggestions of the given entities on the precompute pool, replacing
+   * the suggestions stored by the previous run, which stops if not done yet. Returns as soon as
+   * the work is queued. Does nothing unless enabled.
+   */
+  public void precomputeSuggestions(Collection<MappingEntity> entities) {
+    if (!precomputeEnabled) {
+      return;
+    }
+    // Workers only see plain copies, and the indexes are loaded on this thread
+    List<MappingEntity> queries = entities.stream()
+        .filter(x -> x.getEntityType() != null && x.getMappingKey() != null)
+        .map(MappingSuggestionIndex::detachedCopy)
+        .collect(Collectors.toList());
+    queries.stream().map(MappingEntity::getEntityType).distinct().forEach(this::getIndex);
+
+    List<MappingCluster> clusters = MappingCluster.cluster(queries, clusterMaxDistance);
+
+    long run = precomputeRun.incrementAndGet();
+    storedSuggestions.clear();
+    precomputeCompleted.set(0);
+    precomputeTotal.set(queries.size());
+    log.info("Precomputing the suggestions of {} unmapped entities in {} clusters",
+        queries.size(), clusters.size());
+
+    ExecutorService pool = getPrecomputePool();
+    clusters.forEach(x -> pool.execute(() -> precompute(x, run)));
+  }
+
+  private void precompute(MappingCluster cluster, long run) {
+    if (precomputeRun.get() != run) {
+      return;
+    }
+    MappingSuggestionIndex suggestionIndex = getIndex(cluster.getEntityType());
+    // Read before computing, a corpus change meanwhile makes the result stale
+    long corpusVersion = suggestionIndex.getVersion();
+    long currentOntologyVersion = ontologyVersion.get();
+    List<MappingEntity> suggestions =
+        computeSuggestions(cluster.getRepresentative(), MAX_SUGGESTIONS, suggestionIndex,
+            NOT_CANCELLED);
+    if (precomputeRun.get() != run) {
+      return;
+    }
+    StoredSuggestions stored = new StoredSuggestions(cluster.getEntityType(), corpusVersion,
+        currentOntologyVersion, suggestions.toArray(new MappingEntity[0]));
+    cluster.getEntities().forEach(x -> storedSuggestions.put(x.getMappingKey(), stored));
+    if (precomputeCompleted.addAndGet(cluster.getSize()) == precomputeTotal.get()) {
+      log.info("Precomputed the suggestions of {} unmapped entities", precomputeTotal.get());
+    }
+  }
+
+  /**
+   * Number of entities of the last precompute run.
+   */
+  public int getPrecomputeTotal() {
+    return precomputeTotal.get();
+  }
+
+  /**
+   * Number of entities of the last precompute run whose suggestions are computed.
+   */
+  public int getPrecomputeCompleted() {
+    return precomputeCompleted.get();
+  }
+
+  public int getStoredSuggestionCount() {
+    return storedSuggestions.size();
+  }
+
+  /**
+   * Clusters the unmapped entities that share their suggestions.
+   */
+  public List<MappingCluster> clusterUnmappedEntities(Collection<MappingEntity> entities) {
+    return MappingCluster.cluster(entities, clusterMaxDistance);
+  }
+
+  private synchronized ExecutorService getPrecomputePool() {
+    if (precomputePool == null) {
+      precomputePool = Executors.newFixedThreadPool(Math.max(1, precomputeThreads), task -> {
+        Thread thread = new Thread(task, "suggestion-precompute");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return precomputePool;
+  }
+
+  /**
+   * The stored suggestions of the entity, null when there are none or the corpus or ontology
+   * they were computed against changed since.
+   */
+  private List<MappingEntity> getStoredSuggestions(MappingEntity me,
+      MappingSuggestionIndex suggestionIndex) {
+    StoredSuggestions stored = storedSuggestions.get(me.getMappingKey());
+    if (stored == null
+        || stored.corpusVersion != suggestionIndex.getVersion()
+        || stored.ontologyVersion != ontologyVersion.get()) {
+      return null;
+    }
+    return new ArrayList<>(Arrays.asList(stored.suggestions));
+  }
+
+  /**
+   * Applies saved entities to the indexes already loaded. Types not loaded yet are skipped, they
+   * will read the current state from the database when first used.
+   */
+  public void entitiesUpdated(Collection<MappingEntity> entities) {
+    Map<String, List<MappingEntity>> byType = entities.stream()
+        .filter(x -> x.getEntityType() != null && x.getMappingKey() != null)
+        .collect(Collectors.groupingBy(MappingEntity::getEntityType));
+
+    byType.forEach((entityType, updated) ->
+        indexes.computeIfPresent(entityType, (key, index) -> {
+          if (index.update(updated)) {
+            invalidateSuggestions(entityType);
+          }
+          return index;
+        }));
+  }
+
+  /**
+   * Replaces the content of every index with the given entities, used when the whole database is
+   * rebuilt.
+   */
+  public void rebuildIndexes(Collection<MappingEntity> entities) {
+    Map<String, List<MappingEntity>> byType = entities.stream()
+        .filter(x -> x.getEntityType() != null && MappingSuggestionIndex.isMapped(x))
+        .collect(Collectors.groupingBy(MappingEntity::getEntityType));
+
+    indexes.keySet().forEach(entityType -> byType.putIfAbsent(entityType, new ArrayList<>()));
+    byType.forEach((entityType, mapped) ->
+        indexes.compute(entityType, (key, index) -> {
+          if (index == null) {
+            return new MappingSuggestionIndex(entityType, mapped, prefilterEnabled);
+          }
+          index.replaceAll(mapped);
+          invalidateSuggestions(entityType);
+          return index;
+        }));
+  }
+
+  /**
+   * Cache of suggestion lists keyed by mapping key and version of the corpus they were computed
+   * against. Entries of a type are dropped as soon as its corpus changes.
+   */
+  public synchronized Cache<SuggestionKey, List<MappingEntity>> getSuggestionCache() {
+    if (suggestionCache == null) {
+      suggestionCache = Caffeine.newBuilder()
+          .maximumSize(cacheMaxSize)
+          .expireAfterWrite(cacheTtlMinutes, TimeUnit.MINUTES)
+          .recordStats()
+          .build();
+    }
+    return suggestionCache;
+  }
+
+  private void invalidateSuggestions(String entityType) {
+    getSuggestionCache().asMap().keySet().removeIf(x -> x.entityType.equals(entityType));
+    storedSuggestions.values().removeIf(x -> x.entityType.equals(entityType));
+  }
+
+  private OntologyTermIndex loadOntologyIndex(String ontologyType) {
+    List<OntologyTerm> terms = ontologyTermRepository.findAllWithSynonymsByType(ontologyType);
+    OntologyTermIndex ontologyIndex = new OntologyTermIndex(ontologyType, terms);
+    log.info("Loaded {} {} ontology terms with {} labels and synonyms into the suggestion index",
+        ontologyIndex.getTermCount(), ontologyType, ontologyIndex.getNameCount());
+    return ontologyIndex;
+  }
+
+  private MappingSuggestionIndex loadIndex(String entityType) {
+    List<MappingEntity> mappedEntities =
+        mappingEntityRepository.findByEntityTypeAndMapTypeIsNotNull(entityType);
+    log.info("Loaded {} mapped {} entities into the suggestion index",
+        mappedEntities.size(), entityType);
+    return new MappingSuggestionIndex(entityType, mappedEntities, prefilterEnabled);
+  }
+
+  /**
+   * Ranks the mapped entities by their weighted similarity score, lowest first, ties broken by
+   * entity id. The primary attribute weighs 5 times its distance in the score, so once enough
+   * suggestions are kept only the candidates whose primary attribute is within a fifth of the
+   * worst score kept can still make it, which is the radius the index is searched with. The
+   * scoring of a candidate stops as soon as its partial score rules it out.
+   */
+  private void collectSuggestions(MappingEntity me, char[][] query,
+      MappingSuggestionIndex suggestionIndex, DamerauLevenshteinAlgorithm dla,
+      TopKCollector<MappingEntity> topSuggestions, BooleanSupplier cancelled) {
+
+    IntSupplier maxPrimaryDistance = () -> topSuggestions.getThreshold() / 5;
+    suggestionIndex.findCandidates(query, maxPrimaryDistance, (x, primaryDistance) ->
+        scoreCandidate(me.getMappingKey(), query, x, primaryDistance, dla, topSuggestions,
+            cancelled));
+  }
+
+  /**
+   * Only scores the few hundred mapped entities sharing the most attribute trigrams with the
+   * unmapped one. Much cheaper on large corpora, but a close candidate sharing few trigrams can
+   * be missed. In validation mode the exhaustive ranking is computed as well and used instead
+   * when the two differ.
+   */
+  private void collectPrefilteredSuggestions(MappingEntity me, int k, char[][] query,
+      MappingSuggestionIndex suggestionIndex, DamerauLevenshteinAlgorithm dla,
+      TopKCollector<MappingEntity> topSuggestions, BooleanSupplier cancelled) {
+
+    if (prefilterValidate) {
+      TopKCollector<MappingEntity> prefiltered = new TopKCollector<>(k);
+      TopKCollector<MappingEntity> exhaustive = new TopKCollector<>(k);
+      scoreSharedNGramCandidates(me, query, suggestionIndex, dla, prefiltered, cancelled);
+      collectSuggestions(me, query, suggestionIndex, dla, exhaustive, cancelled);
+      if (!exhaustive.drainSorted().equals(prefiltered.drainSorted())) {
+        prefilterMismatches.incrementAndGet();
+        log.warn("Prefiltered suggestions for {} differ from the exhaustive ones",
+            me.getMappingKey());
+        collectSuggestions(me, query, suggestionIndex, dla, topSuggestions, cancelled);
+        return;
+      }
+    }
+    scoreSharedNGramCandidates(me, query, suggestionIndex, dla, topSuggestions, cancelled);
+  }
+
+  private void scoreSharedNGramCandidates(MappingEntity me, char[][] query,
+      MappingSuggestionIndex suggestionIndex, DamerauLevenshteinAlgorithm dla,
+      TopKCollector<MappingEntity> topSuggestions, BooleanSupplier cancelled) {
+
+    suggestionIndex.findCandidatesBySharedNGrams(me, prefilterCandidates).forEach(x ->
+        scoreCandidate(me.getMappingKey(), query, x, -1, dla, topSuggestions, cancelled));
+  }
+
+  /**
+   * Offers the ontology terms having a label or synonym close to the primary attribute of the
+   * entity. A term scores what a mapped entity with the same primary attribute and none of the
+   * other attributes in common would, so it is only searched within what is left of the worst
+   * score kept. Terms a mapped entity ranked above already suggests are left out, so they do not
+   * take the place of another suggestion.
+   */
+  private void collectOntologySuggestions(MappingEntity me, String primaryLabel,
+      DamerauLevenshteinAlgorithm dla, TopKCollector<MappingEntity> topSuggestions) {
+
+    if (primaryLabel == null) {
+      return;
+    }
+    char[] primaryValue =
+        MappingSuggestionIndex.normalize(me.getMappingValues().get(primaryLabel));
+    int otherAttributesScore = 0;
+    for (String label : me.getMappingLabels()) {
+      if (!label.equals(primaryLabel)) {
+        otherAttributesScore += SimilarityWeight.resolve(me.getEntityType(), label).score(dla,
+            MappingSuggestionIndex.normalize(me.getMappingValues().get(label)), new char[0]);
+      }
+    }
+    // Mapped entities rank before the terms with the same score
+    Map<String, Integer> mappedTermScores = new HashMap<>();
+    topSuggestions.forEach((x, score) -> {
+      if (x.getMappedTermUrl() != null) {
+        mappedTermScores.merge(x.getMappedTermUrl(), score, Math::min);
+      }
+    });
+
+    for (String ontologyType : getOntologyTypes(me.getEntityType())) {
+      long threshold = topSuggestions.getThreshold();
+      int maxDistance =
+          (int) Math.min(ontologyMaxDistance, (threshold - otherAttributesScore) / 5);
+      if (maxDistance < 0) {
+        return;
+      }
+      List<OntologyTermIndex.Match> matches = getOntologyIndex(ontologyType)
+          .search(primaryValue, maxDistance, ontologyCandidates, dla);
+      for (OntologyTermIndex.Match match : matches) {
+        int score = match.getDistance() * 5 + otherAttributesScore;
+        if (!topSuggestions.accepts(score)) {
+          break;
+        }
+        Integer mappedScore = mappedTermScores.get(match.getTerm().getUrl());
+        if (mappedScore == null || mappedScore > score) {
+          topSuggestions.offer(score, getTieBreaker(match.getTerm()),
+              toSuggestion(me, primaryLabel, match));
+        }
+      }
+    }
+  }
+
+  private static MappingEntity toSuggestion(MappingEntity me, String primaryLabel,
+      OntologyTermIndex.Match match) {
+    Map<String, String> mappingValues = new HashMap<>();
+    mappingValues.put(primaryLabel, match.getName());
+    MappingEntity suggestion = new MappingEntity(me.getEntityType(),
+        new ArrayList<>(Collections.singletonList(primaryLabel)), mappingValues);
+    suggestion.setMappedTermLabel(match.getTerm().getLabel());
+    suggestion.setMappedTermUrl(match.getTerm().getUrl());
+    suggestion.setMapType("direct");
+    suggestion.setJustification("ontology term match");
+    // Not stored, unlike the mapped entities suggested
+    suggestion.setStatus(null);
+    return suggestion;
+  }
+
+  /**
+   * Offers the candidate to the suggestions kept. A non negative primary distance is used as is
+   * instead of being computed again. Throws a CancellationException once cancelled.
+   */
+  private void scoreCandidate(String mappingKey, char[][] query, Candidate x,
+      int primaryDistance, DamerauLevenshteinAlgorithm dla,
+      TopKCollector<MappingEntity> topSuggestions, BooleanSupplier cancelled) {
+
+    checkCancelled(cancelled);
+
+    MappingEntity candidate = x.getEntity();
+    if (candidate.getMappingKey().equals(mappingKey)) {
+      return;
+    }
+
+    //get similarity index components
+    int simIndex = primaryDistance >= 0 ? primaryDistance * 5 : 0;
+
+    for (int i = 0; i < x.getLabelCount(); i++) {
+      if (!topSuggestions.accepts(simIndex)) {
+        return;
+      }
+      SimilarityWeight weight = x.getWeight(i);
+      if (primaryDistance < 0 || weight != SimilarityWeight.PRIMARY) {
+        simIndex += weight.score(dla,
+            MappingSuggestionIndex.getQueryValue(query, x.getLabelId(i)), x.getValue(i));
+      }
+    }
+
+    topSuggestions.offer(simIndex, getTieBreaker(candidate), candidate);
+  }
+
+  private static final class StoredSuggestions {
+
+    private final String entityType;
+
+    private final long corpusVersion;
+
+    private final long ontologyVersion;
+
+    private final MappingEntity[] suggestions;
+
+    StoredSuggestions(String entityType, long corpusVersion, long ontologyVersion,
+        MappingEntity[] suggestions) {
+      this.entityType = entityType;
+      this.corpusVersion = corpusVersion;
+      this.ontologyVersion = ontologyVersion;
+      this.suggestions = suggestions;
+    }
+  }
+
+  static final class SuggestionKey {
+
+    private final String entityType;
+
+    private final String mappingKey;
+
+    private final int k;
+
+    private final long corpusVersion;
+
+    private final long ontologyVersion;
+
+    SuggestionKey(String entityType, String mappingKey, int k, long corpusVersion,
+        long ontologyVersion) {
+      this.entityType = entityType;
+      this.mappingKey = mappingKey;
+      this.k = k;
+      this.corpusVersion = corpusVersion;
+      this.ontologyVersion = ontologyVersion;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof SuggestionKey)) {
+        return false;
+      }
+      SuggestionKey that = (SuggestionKey) o;
+      return corpusVersion == that.corpusVersion
+          && ontologyVersion == that.ontologyVersion
+          && k == that.k
+          && entityType.equals(that.entityType)
+          && mappingKey.equals(that.mappingKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(entityType, mappingKey, k, corpusVersion, ontologyVersion);
+    }
+  }
+
+  private static long getTieBreaker(MappingEntity x) {
+    return x.getEntityId() == null ? Long.MAX_VALUE : x.getEntityId();
+  }
+
+  private static long getTieBreaker(OntologyTerm term) {
+    return term.getId() == null ? Long.MAX_VALUE : ONTOLOGY_TIE_BREAKER + term.getId();
+  }
+}
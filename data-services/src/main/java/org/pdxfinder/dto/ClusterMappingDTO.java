@@ -0,0 +1,41 @@
+package org.pdxfinder.dto;
+
+import org.pdxfinder.MappingEntity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Body of a cluster mapping request: the ids of the entities of the cluster the curator reviewed
+ * and the mapping to give them.
+ */
+public class ClusterMappingDTO {
+
+    private List<Long> entityIds = new ArrayList<>();
+    private MappingEntity mapping;
+
+
+    public ClusterMappingDTO() {
+    }
+
+    public ClusterMappingDTO(List<Long> entityIds, MappingEntity mapping) {
+        this.entityIds = entityIds;
+        this.mapping = mapping;
+    }
+
+    public List<Long> getEntityIds() {
+        return entityIds;
+    }
+
+    public void setEntityIds(List<Long> entityIds) {
+        this.entityIds = entityIds;
+    }
+
+    public MappingEntity getMapping() {
+        return mapping;
+    }
+
+    public void setMapping(MappingEntity mapping) {
+        this.mapping = mapping;
+    }
+}
@@ -0,0 +1,39 @@
+package org.pdxfinder.dto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Body of a batch suggestion request: the entities to get suggestions for and, optionally, how
+ * many suggestions each.
+ */
+public class SuggestionRequestDTO {
+
+    private List<Long> entityIds = new ArrayList<>();
+    private Integer k;
+
+
+    public SuggestionRequestDTO() {
+    }
+
+    public SuggestionRequestDTO(List<Long> entityIds, Integer k) {
+        this.entityIds = entityIds;
+        this.k = k;
+    }
+
+    public List<Long> getEntityIds() {
+        return entityIds;
+    }
+
+    public void setEntityIds(List<Long> entityIds) {
+        this.entityIds = entityIds;
+    }
+
+    public Integer getK() {
+        return k;
+    }
+
+    public void setK(Integer k) {
+        this.k = k;
+    }
+}
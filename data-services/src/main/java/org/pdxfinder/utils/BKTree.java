@@ -0,0 +1,167 @@
+package org.pdxfinder.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * Burkhard-Keller tree over keys of any type for a discrete metric. Values sharing the same key are
+ * kept in the same node, so the metric is evaluated once per distinct key during a search.
+ *
+ * Not thread safe, callers are expected to guard concurrent updates.
+ */
+public class BKTree<K, T> {
+
+    public interface Visitor<K, T> {
+
+        void visit(K key, int distance, List<T> values);
+    }
+
+    private final ToIntBiFunction<K, K> metric;
+
+    private Node<K, T> root;
+
+    private int size;
+
+    public BKTree(ToIntBiFunction<K, K> metric) {
+        this.metric = metric;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void add(K key, T value) {
+
+        if (root == null) {
+            root = new Node<>(key);
+        }
+
+        Node<K, T> node = root;
+        while (true) {
+            int distance = metric.applyAsInt(key, node.key);
+            if (distance == 0) {
+                node.values.add(value);
+                size++;
+                return;
+            }
+            Node<K, T> child = node.getChild(distance);
+            if (child == null) {
+                child = new Node<>(key);
+                child.values.add(value);
+                node.addChild(distance, child);
+                size++;
+                return;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Removes the values of the given key accepted by the filter. Emptied nodes are kept as they
+     * still route searches to their children.
+     */
+    public int removeIf(K key, Predicate<T> filter) {
+
+        Node<K, T> node = root;
+        while (node != null) {
+            int distance = metric.applyAsInt(key, node.key);
+            if (distance == 0) {
+                int before = node.values.size();
+                node.values.removeIf(filter);
+                int removed = before - node.values.size();
+                size -= removed;
+                return removed;
+            }
+            node = node.getChild(distance);
+        }
+        return 0;
+    }
+
+    /**
+     * Visits every key within the radius of the query. The radius is read again after each visit,
+     * so a visitor collecting the k nearest values can shrink it as better values are found.
+     */
+    public void search(K query, IntSupplier radius, Visitor<K, T> visitor) {
+
+        if (root == null) {
+            return;
+        }
+
+        Deque<Node<K, T>> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node<K, T> node = stack.pop();
+            int distance = metric.applyAsInt(query, node.key);
+            if (!node.values.isEmpty() && distance <= radius.getAsInt()) {
+                visitor.visit(node.key, distance, node.values);
+            }
+            pushChildrenInRange(node, distance, radius.getAsInt(), stack);
+        }
+    }
+
+    // Nearest children are pushed last so they are searched first and tighten the radius sooner
+    private void pushChildrenInRange(Node<K, T> node, int distance, int radius,
+                                     Deque<Node<K, T>> stack) {
+
+        int count = 0;
+        long[] inRange = new long[node.childCount];
+        for (int i = 0; i < node.childCount; i++) {
+            int gap = Math.abs(node.childDistances[i] - distance);
+            if (gap <= radius) {
+                inRange[count++] = ((long) gap << 32) | i;
+            }
+        }
+        Arrays.sort(inRange, 0, count);
+        for (int i = count - 1; i >= 0; i--) {
+            stack.push(node.children[(int) inRange[i]]);
+        }
+    }
+
+    private static class Node<K, T> {
+
+        private final K key;
+
+        private final List<T> values = new ArrayList<>(1);
+
+        private int[] childDistances = new int[0];
+
+        private Node<K, T>[] children = newArray(0);
+
+        private int childCount;
+
+        Node(K key) {
+            this.key = key;
+        }
+
+        Node<K, T> getChild(int distance) {
+            for (int i = 0; i < childCount; i++) {
+                if (childDistances[i] == distance) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        void addChild(int distance, Node<K, T> child) {
+            if (childCount == children.length) {
+                int capacity = Math.max(4, childCount * 2);
+                childDistances = Arrays.copyOf(childDistances, capacity);
+                children = Arrays.copyOf(children, capacity);
+            }
+            childDistances[childCount] = distance;
+            children[childCount] = child;
+            childCount++;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <K, T> Node<K, T>[] newArray(int length) {
+            return (Node<K, T>[]) new Node[length];
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package org.pdxfinder.utils;
+
+import java.util.Arrays;
+
+/**
+ * Damerau-Levenshtein distance computed with bit-vector algorithms whenever the shorter string
+ * fits in a 64 bit word, falling back to the dynamic programming table otherwise.
+ *
+ * Two cost assignments have a bit-parallel form:
+ * <ul>
+ * <li>(1, 1, 2, 2): replacing or swapping costs as much as deleting and inserting, so the
+ * distance is the indel distance n + m - 2 * LCS, with the LCS length computed by Hyyrö's
+ * bit-vector algorithm.</li>
+ * <li>(1, 1, 1, 1): Hyyrö's extension of Myers' algorithm with transpositions gives the optimal
+ * string alignment distance. It can exceed the unrestricted distance this class computes, but
+ * only above 2, so larger values are computed again with the table.</li>
+ * </ul>
+ * Any other cost assignment always uses the table.
+ */
+public class BitParallelDamerauLevenshtein extends DamerauLevenshteinAlgorithm {
+
+    private static final int WORD_SIZE = 64;
+
+    // Largest optimal string alignment distance known to equal the unrestricted one
+    private static final int MAX_EXACT_OSA_DISTANCE = 2;
+
+    private static final ThreadLocal<PatternMasks> PATTERN_MASKS =
+            ThreadLocal.withInitial(PatternMasks::new);
+
+    private final boolean indelCosts;
+
+    private final boolean unitCosts;
+
+    public BitParallelDamerauLevenshtein(int deleteCost, int insertCost,
+                                         int replaceCost, int swapCost) {
+        super(deleteCost, insertCost, replaceCost, swapCost);
+        this.indelCosts = deleteCost == 1 && insertCost == 1 && replaceCost == 2 && swapCost == 2;
+        this.unitCosts = deleteCost == 1 && insertCost == 1 && replaceCost == 1 && swapCost == 1;
+    }
+
+    @Override
+    public int execute(char[] source, char[] target, int maxDistance) {
+        char[] pattern = source.length <= target.length ? source : target;
+        char[] text = pattern == source ? target : source;
+        if (pattern.length == 0 || pattern.length > WORD_SIZE || !(indelCosts || unitCosts)) {
+            return super.execute(source, target, maxDistance);
+        }
+        if (text.length - pattern.length > maxDistance) {
+            return maxDistance + 1;
+        }
+
+        if (indelCosts) {
+            int distance = pattern.length + text.length - 2 * lcsLength(pattern, text);
+            return distance > maxDistance ? maxDistance + 1 : distance;
+        }
+
+        int distance = osaDistance(pattern, text);
+        if (distance <= MAX_EXACT_OSA_DISTANCE) {
+            return distance > maxDistance ? maxDistance + 1 : distance;
+        }
+        // Each edit changes the indel distance by at most 2
+        int indelDistance = pattern.length + text.length - 2 * lcsLength(pattern, text);
+        if ((indelDistance + 1) / 2 > maxDistance) {
+            return maxDistance + 1;
+        }
+        return super.execute(source, target, maxDistance);
+    }
+
+    /**
+     * Length of the longest common subsequence, the pattern being at most 64 characters long.
+     */
+    static int lcsLength(char[] pattern, char[] text) {
+        PatternMasks masks = PATTERN_MASKS.get();
+        masks.set(pattern);
+        long v = -1L;
+        for (int j = 0; j < text.length; j++) {
+            long u = v & masks.get(text[j]);
+            v = (v + u) | (v - u);
+        }
+        masks.clear(pattern);
+        long used = pattern.length == WORD_SIZE ? -1L : (1L << pattern.length) - 1;
+        return Long.bitCount(~v & used);
+    }
+
+    /**
+     * Optimal string alignment distance with unit costs, the pattern being at most 64 characters
+     * long.
+     */
+    static int osaDistance(char[] pattern, char[] text) {
+        PatternMasks masks = PATTERN_MASKS.get();
+        masks.set(pattern);
+        long last = 1L << (pattern.length - 1);
+        long vp = -1L;
+        long vn = 0;
+        long d0 = 0;
+        long previousMask = 0;
+        int distance = pattern.length;
+        for (int j = 0; j < text.length; j++) {
+            long mask = masks.get(text[j]);
+            long transpositions = (((~d0) & mask) << 1) & previousMask;
+            d0 = (((mask & vp) + vp) ^ vp) | mask | vn | transpositions;
+            long hp = vn | ~(d0 | vp);
+            long hn = vp & d0;
+            if ((hp & last) != 0) {
+                distance++;
+            } else if ((hn & last) != 0) {
+                distance--;
+            }
+            hp = (hp << 1) | 1;
+            hn = hn << 1;
+            vp = hn | ~(d0 | hp);
+            vn = hp & d0;
+            previousMask = mask;
+        }
+        masks.clear(pattern);
+        return distance;
+    }
+
+    /**
+     * Bit mask of the positions of each character in the pattern, in an array for ASCII
+     * characters and in an open addressing table for the others, the 64 characters of a pattern
+     * filling it at most half.
+     */
+    private static final class PatternMasks {
+
+        private static final int ASCII = 128;
+
+        private static final int OTHER_SLOTS = 2 * WORD_SIZE;
+
+        private final long[] asciiMasks = new long[ASCII];
+
+        private final char[] otherCharacters = new char[OTHER_SLOTS];
+
+        // Zero for free slots, a character of the pattern having at least one bit
+        private final long[] otherMasks = new long[OTHER_SLOTS];
+
+        private boolean hasOthers;
+
+        void set(char[] pattern) {
+            for (int i = 0; i < pattern.length; i++) {
+                char c = pattern[i];
+                if (c < ASCII) {
+                    asciiMasks[c] |= 1L << i;
+                } else {
+                    int slot = findSlot(c);
+                    otherCharacters[slot] = c;
+                    otherMasks[slot] |= 1L << i;
+                    hasOthers = true;
+                }
+            }
+        }
+
+        long get(char c) {
+            if (c < ASCII) {
+                return asciiMasks[c];
+            }
+            return hasOthers ? otherMasks[findSlot(c)] : 0;
+        }
+
+        void clear(char[] pattern) {
+            for (char c : pattern) {
+                if (c < ASCII) {
+                    asciiMasks[c] = 0;
+                }
+            }
+            if (hasOthers) {
+                Arrays.fill(otherMasks, 0);
+                hasOthers = false;
+            }
+        }
+
+        // The slot of the character, or the free one where it would go
+        private int findSlot(char c) {
+            int slot = (c * 0x9E3779B9 >>> 16) & (OTHER_SLOTS - 1);
+            while (otherMasks[slot] != 0 && otherCharacters[slot] != c) {
+                slot = (slot + 1) & (OTHER_SLOTS - 1);
+            }
+            return slot;
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package org.pdxfinder.utils;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /*
  * Created by csaba on 31/07/2018.
@@ -9,6 +8,15 @@ import java.util.Map;
 public class DamerauLevenshteinAlgorithm {
     private final int deleteCost, insertCost, replaceCost, swapCost;
 
+    /*
+     * A transposition skips rows, but never for less than the deletions and
+     * the replacement it stands for, as long as swapping costs at least as
+     * much as inserting, deleting or replacing. Only then does a whole row
+     * above the limit prove the distance is, and only then are the cells
+     * outside the band never read by a cheaper transposition.
+     */
+    private final boolean pruningSafe;
+
     /**
      * Constructor.
      *
@@ -34,6 +42,8 @@ public class DamerauLevenshteinAlgorithm {
         this.insertCost = insertCost;
         this.replaceCost = replaceCost;
         this.swapCost = swapCost;
+        this.pruningSafe = deleteCost <= swapCost && insertCost <= swapCost
+                && replaceCost <= swapCost;
     }
 
     /**
@@ -41,68 +51,305 @@ public class DamerauLevenshteinAlgorithm {
      * string and the specified target string.
      */
     public int execute(String source, String target) {
-        if (source.length() == 0) {
-            return target.length() * insertCost;
-        }
-        if (target.length() == 0) {
-            return source.length() * deleteCost;
-        }
-        int[][] table = new int[source.length()][target.length()];
-        Map<Character, Integer> sourceIndexByCharacter = new HashMap<Character, Integer>();
-        if (source.charAt(0) != target.charAt(0)) {
-            table[0][0] = Math.min(replaceCost, deleteCost + insertCost);
-        }
-        sourceIndexByCharacter.put(source.charAt(0), 0);
-        for (int i = 1; i < source.length(); i++) {
-            int deleteDistance = table[i - 1][0] + deleteCost;
-            int insertDistance = (i + 1) * deleteCost + insertCost;
-            int matchDistance = i * deleteCost
-                    + (source.charAt(i) == target.charAt(0) ? 0 : replaceCost);
-            table[i][0] = Math.min(Math.min(deleteDistance, insertDistance),
-                    matchDistance);
-        }
-        for (int j = 1; j < target.length(); j++) {
-            int deleteDistance = (j + 1) * insertCost + deleteCost;
-            int insertDistance = table[0][j - 1] + insertCost;
-            int matchDistance = j * insertCost
-                    + (source.charAt(0) == target.charAt(j) ? 0 : replaceCost);
-            table[0][j] = Math.min(Math.min(deleteDistance, insertDistance),
-                    matchDistance);
-        }
-        for (int i = 1; i < source.length(); i++) {
-            int maxSourceLetterMatchIndex = source.charAt(i) == target.charAt(0) ? 0
-                    : -1;
-            for (int j = 1; j < target.length(); j++) {
-                Integer candidateSwapIndex = sourceIndexByCharacter.get(target
-                        .charAt(j));
+        return execute(source, target, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Compute the Damerau-Levenshtein distance between the specified source
+     * string and the specified target string, giving up as soon as it is known
+     * to be above maxDistance.
+     *
+     * @return the distance when it is at most maxDistance, maxDistance + 1
+     *          otherwise.
+     */
+    public int execute(String source, String target, int maxDistance) {
+        return execute(source.toCharArray(), target.toCharArray(), maxDistance);
+    }
+
+    /**
+     * Same as {@link #execute(String, String, int)} on character arrays, for
+     * callers keeping their strings in that form.
+     */
+    public int execute(char[] source, char[] target, int maxDistance) {
+        int sourceLength = source.length;
+        int targetLength = target.length;
+        if (sourceLength == 0) {
+            return bounded(targetLength * insertCost, maxDistance);
+        }
+        if (targetLength == 0) {
+            return bounded(sourceLength * deleteCost, maxDistance);
+        }
+
+        // Deleting the whole source and inserting the whole target is always possible
+        int limit = Math.min(maxDistance, sourceLength * deleteCost + targetLength * insertCost);
+
+        /*
+         * Reaching cell (i, j) and going on from there to the last cell costs at
+         * least one insertion or deletion per step away from each diagonal, which
+         * gives the band of columns worth computing in each row.
+         */
+        int indelCost = Math.min(deleteCost, insertCost);
+        int band = indelCost == 0 ? Integer.MAX_VALUE : limit / indelCost;
+        int lengthDifference = sourceLength - targetLength;
+        if (Math.abs(lengthDifference) > band) {
+            return maxDistance + 1;
+        }
+        if (!pruningSafe) {
+            band = Integer.MAX_VALUE;
+        }
+
+        Workspace workspace = WORKSPACE.get();
+        workspace.prepare(sourceLength, targetLength);
+        try {
+            return execute(workspace, source, target, maxDistance, limit, band);
+        } finally {
+            workspace.trim();
+        }
+    }
+
+    private int execute(Workspace workspace, char[] source, char[] target, int maxDistance,
+                        int limit, int band) {
+        int sourceLength = source.length;
+        int targetLength = target.length;
+        int lengthDifference = sourceLength - targetLength;
+        int cap = limit + 1;
+        int[] table = workspace.table;
+        int[] rowStart = workspace.rowStart;
+        int[] rowEnd = workspace.rowEnd;
+
+        for (int i = 0; i < sourceLength; i++) {
+            long center = 2L * i - lengthDifference;
+            rowStart[i] = (int) Math.max(0, Math.floorDiv(center - band + 1, 2));
+            rowEnd[i] = (int) Math.min(targetLength - 1, Math.floorDiv(center + band, 2));
+        }
+
+        char firstSource = source[0];
+        char firstTarget = target[0];
+        int rowMin = Integer.MAX_VALUE;
+        for (int j = rowStart[0]; j <= rowEnd[0]; j++) {
+            int value;
+            if (j == 0) {
+                value = firstSource != firstTarget ? Math.min(replaceCost, deleteCost + insertCost) : 0;
+            } else {
+                int deleteDistance = (j + 1) * insertCost + deleteCost;
+                int insertDistance = cell(workspace, 0, j - 1, cap) + insertCost;
+                int matchDistance = j * insertCost
+                        + (firstSource == target[j] ? 0 : replaceCost);
+                value = Math.min(Math.min(deleteDistance, insertDistance), matchDistance);
+            }
+            value = Math.min(value, cap);
+            table[j] = value;
+            rowMin = Math.min(rowMin, value);
+        }
+        rowMin = Math.min(rowMin, deleteCost);
+        if (rowMin > limit && pruningSafe) {
+            return maxDistance + 1;
+        }
+        workspace.setLastRow(firstSource, 0);
+
+        for (int i = 1; i < sourceLength; i++) {
+            char sourceCharacter = source[i];
+            int row = i * targetLength;
+            rowMin = Integer.MAX_VALUE;
+            int maxSourceLetterMatchIndex = sourceCharacter == firstTarget ? 0 : -1;
+            if (rowStart[i] == 0) {
+                int deleteDistance = cell(workspace, i - 1, 0, cap) + deleteCost;
+                int insertDistance = (i + 1) * deleteCost + insertCost;
+                int matchDistance = i * deleteCost
+                        + (sourceCharacter == firstTarget ? 0 : replaceCost);
+                int value = Math.min(Math.min(Math.min(deleteDistance, insertDistance),
+                        matchDistance), cap);
+                table[row] = value;
+                rowMin = value;
+            }
+            /*
+             * The last match of the source character in the target is needed for
+             * transpositions even when it lies before the band.
+             */
+            for (int j = 1; j < rowStart[i]; j++) {
+                if (sourceCharacter == target[j]) {
+                    maxSourceLetterMatchIndex = j;
+                }
+            }
+            for (int j = Math.max(1, rowStart[i]); j <= rowEnd[i]; j++) {
+                char targetCharacter = target[j];
+                int candidateSwapIndex = workspace.getLastRow(targetCharacter);
                 int jSwap = maxSourceLetterMatchIndex;
-                int deleteDistance = table[i - 1][j] + deleteCost;
-                int insertDistance = table[i][j - 1] + insertCost;
-                int matchDistance = table[i - 1][j - 1];
-                if (source.charAt(i) != target.charAt(j)) {
+                int deleteDistance = cell(workspace, i - 1, j, cap) + deleteCost;
+                int insertDistance = cell(workspace, i, j - 1, cap) + insertCost;
+                int matchDistance = cell(workspace, i - 1, j - 1, cap);
+                if (sourceCharacter != targetCharacter) {
                     matchDistance += replaceCost;
                 } else {
                     maxSourceLetterMatchIndex = j;
                 }
-                int swapDistance;
-                if (candidateSwapIndex != null && jSwap != -1) {
+                int value = Math.min(Math.min(deleteDistance, insertDistance), matchDistance);
+                if (candidateSwapIndex != -1 && jSwap != -1) {
                     int iSwap = candidateSwapIndex;
                     int preSwapCost;
                     if (iSwap == 0 && jSwap == 0) {
                         preSwapCost = 0;
                     } else {
-                        preSwapCost = table[Math.max(0, iSwap - 1)][Math.max(0, jSwap - 1)];
+                        preSwapCost = cell(workspace, Math.max(0, iSwap - 1), Math.max(0, jSwap - 1), cap);
                     }
-                    swapDistance = preSwapCost + (i - iSwap - 1) * deleteCost
+                    int swapDistance = preSwapCost + (i - iSwap - 1) * deleteCost
                             + (j - jSwap - 1) * insertCost + swapCost;
-                } else {
-                    swapDistance = Integer.MAX_VALUE;
+                    value = Math.min(value, swapDistance);
+                }
+                value = Math.min(value, cap);
+                table[row + j] = value;
+                rowMin = Math.min(rowMin, value);
+            }
+            // Deleting the first i + 1 characters leads to the start of any later row
+            rowMin = Math.min(rowMin, (i + 1) * deleteCost);
+            if (rowMin > limit && pruningSafe) {
+                return maxDistance + 1;
+            }
+            workspace.setLastRow(sourceCharacter, i);
+        }
+
+        int distance = cell(workspace, sourceLength - 1, targetLength - 1, cap);
+        return distance > limit ? maxDistance + 1 : distance;
+    }
+
+    private static int bounded(int distance, int maxDistance) {
+        return distance > maxDistance ? maxDistance + 1 : distance;
+    }
+
+    // Cells outside the band of their row were never computed, they are known to be out of reach
+    private static int cell(Workspace workspace, int i, int j, int cap) {
+        if (j < workspace.rowStart[i] || j > workspace.rowEnd[i]) {
+            return cap;
+        }
+        return workspace.table[i * workspace.targetLength + j];
+    }
+
+    private static final ThreadLocal<Workspace> WORKSPACE = ThreadLocal.withInitial(Workspace::new);
+
+    /**
+     * Buffers reused by every call made on the same thread. Transpositions look
+     * back at arbitrary earlier rows, so the whole table is kept rather than a
+     * couple of rolling rows; tables of long strings are dropped after the call
+     * instead of being kept by the thread. The last source row of each
+     * character is kept in an array for ASCII characters and in a small open
+     * addressing table for the others, both invalidated by bumping a stamp
+     * instead of being cleared.
+     */
+    private static class Workspace {
+
+        private static final int ASCII = 128;
+
+        // 64 KB of table, enough for two strings of 128 characters
+        private static final int MAX_KEPT_CELLS = 16384;
+
+        private static final int MAX_KEPT_ROWS = 1024;
+
+        private final int[] lastRowByCharacter = new int[ASCII];
+
+        private final int[] characterStamp = new int[ASCII];
+
+        private char[] otherCharacters = new char[16];
+
+        private int[] otherLastRows = new int[16];
+
+        private int[] otherStamps = new int[16];
+
+        private int otherCount;
+
+        private int stamp;
+
+        private int[] table = new int[0];
+
+        private int[] rowStart = new int[0];
+
+        private int[] rowEnd = new int[0];
+
+        private int targetLength;
+
+        void prepare(int sourceLength, int targetLength) {
+            this.targetLength = targetLength;
+            int cells = sourceLength * targetLength;
+            if (table.length < cells) {
+                table = new int[cells > MAX_KEPT_CELLS ? cells
+                        : Math.min(MAX_KEPT_CELLS, Math.max(cells, table.length * 2))];
+            }
+            if (rowStart.length < sourceLength) {
+                rowStart = new int[sourceLength > MAX_KEPT_ROWS ? sourceLength
+                        : Math.min(MAX_KEPT_ROWS, Math.max(sourceLength, rowStart.length * 2))];
+                rowEnd = new int[rowStart.length];
+            }
+            otherCount = 0;
+            stamp++;
+            if (stamp == 0) {
+                Arrays.fill(characterStamp, 0);
+                Arrays.fill(otherStamps, 0);
+                stamp = 1;
+            }
+        }
+
+        // Drops the buffers grown for long strings
+        void trim() {
+            if (table.length > MAX_KEPT_CELLS) {
+                table = new int[0];
+            }
+            if (rowStart.length > MAX_KEPT_ROWS) {
+                rowStart = new int[0];
+                rowEnd = new int[0];
+            }
+        }
+
+        int getLastRow(char c) {
+            if (c < ASCII) {
+                return characterStamp[c] == stamp ? lastRowByCharacter[c] : -1;
+            }
+            int slot = findSlot(c);
+            return otherStamps[slot] == stamp ? otherLastRows[slot] : -1;
+        }
+
+        void setLastRow(char c, int row) {
+            if (c < ASCII) {
+                lastRowByCharacter[c] = row;
+                characterStamp[c] = stamp;
+                return;
+            }
+            int slot = findSlot(c);
+            if (otherStamps[slot] != stamp) {
+                if (2 * (otherCount + 1) > otherCharacters.length) {
+                    growOthers();
+                    slot = findSlot(c);
+                }
+                otherCount++;
+                otherCharacters[slot] = c;
+                otherStamps[slot] = stamp;
+            }
+            otherLastRows[slot] = row;
+        }
+
+        // The slot of the character, or the free one where it would go
+        private int findSlot(char c) {
+            int mask = otherCharacters.length - 1;
+            int slot = (c * 0x9E3779B9 >>> 16) & mask;
+            while (otherStamps[slot] == stamp && otherCharacters[slot] != c) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void growOthers() {
+            char[] characters = otherCharacters;
+            int[] lastRows = otherLastRows;
+            int[] stamps = otherStamps;
+            otherCharacters = new char[characters.length * 2];
+            otherLastRows = new int[characters.length * 2];
+            otherStamps = new int[characters.length * 2];
+            for (int k = 0; k < characters.length; k++) {
+                if (stamps[k] == stamp) {
+                    int slot = findSlot(characters[k]);
+                    otherCharacters[slot] = characters[k];
+                    otherLastRows[slot] = lastRows[k];
+                    otherStamps[slot] = stamp;
                 }
-                table[i][j] = Math.min(Math.min(Math
-                        .min(deleteDistance, insertDistance), matchDistance), swapDistance);
             }
-            sourceIndexByCharacter.put(source.charAt(i), i);
         }
-        return table[source.length() - 1][target.length() - 1];
     }
-}
\ No newline at end of file
+}
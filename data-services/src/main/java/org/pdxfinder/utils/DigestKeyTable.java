@@ -0,0 +1,174 @@
+package org.pdxfinder.utils;
+
+/**
+ * Open addressing hash table keyed by SHA-256 digests, held as four longs per slot instead of hex
+ * strings. Keys can be given as lower-case hex strings of 64 characters, as the digest bytes or
+ * as the four longs of the digest, big-endian; lookups do not allocate. The digests being
+ * uniformly distributed, their first bits are used as the hash.
+ *
+ * Not thread safe, callers are expected to guard concurrent updates.
+ */
+public class DigestKeyTable<V> {
+
+    public static final int DIGEST_BYTES = 32;
+
+    private static final int KEY_LONGS = 4;
+
+    private static final int HEX_KEY_LENGTH = DIGEST_BYTES * 2;
+
+    private long[] keys;
+
+    private Object[] values;
+
+    private int size;
+
+    /**
+     * A table holding the expected number of keys without growing.
+     */
+    public DigestKeyTable(int expectedSize) {
+        int capacity = 2;
+        // Half full at most, keeping probe sequences short
+        while (capacity < expectedSize * 2L && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity * KEY_LONGS];
+        values = new Object[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Whether the key is a lower-case hex digest, as sha256Hex makes them.
+     */
+    public static boolean isHexKey(CharSequence key) {
+        if (key == null || key.length() != HEX_KEY_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < HEX_KEY_LENGTH; i++) {
+            if (nibble(key.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Associates the value, which must not be null, with the hex key.
+     *
+     * @return the value previously associated with the key, null if none
+     */
+    public V put(CharSequence hexKey, V value) {
+        if (!isHexKey(hexKey)) {
+            throw new IllegalArgumentException("Not a hex SHA-256 digest: " + hexKey);
+        }
+        return put(hexLong(hexKey, 0), hexLong(hexKey, 1), hexLong(hexKey, 2), hexLong(hexKey, 3),
+                value);
+    }
+
+    public V put(long k0, long k1, long k2, long k3, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null values are not supported");
+        }
+        if ((size + 1) * 2L > values.length) {
+            grow();
+        }
+        int slot = findSlot(k0, k1, k2, k3);
+        @SuppressWarnings("unchecked")
+        V previous = (V) values[slot];
+        if (previous == null) {
+            int base = slot * KEY_LONGS;
+            keys[base] = k0;
+            keys[base + 1] = k1;
+            keys[base + 2] = k2;
+            keys[base + 3] = k3;
+            size++;
+        }
+        values[slot] = value;
+        return previous;
+    }
+
+    /**
+     * The value of the hex key, null if there is none or the key is not a hex digest.
+     */
+    public V get(CharSequence hexKey) {
+        if (!isHexKey(hexKey)) {
+            return null;
+        }
+        return get(hexLong(hexKey, 0), hexLong(hexKey, 1), hexLong(hexKey, 2), hexLong(hexKey, 3));
+    }
+
+    /**
+     * The value of the digest, null if there is none.
+     */
+    public V get(byte[] digest) {
+        if (digest.length != DIGEST_BYTES) {
+            throw new IllegalArgumentException("Expected a digest of " + DIGEST_BYTES + " bytes");
+        }
+        return get(bytesLong(digest, 0), bytesLong(digest, 1), bytesLong(digest, 2),
+                bytesLong(digest, 3));
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long k0, long k1, long k2, long k3) {
+        return (V) values[findSlot(k0, k1, k2, k3)];
+    }
+
+    // Slot of the key, or the empty slot ending its probe sequence
+    private int findSlot(long k0, long k1, long k2, long k3) {
+        int mask = values.length - 1;
+        int slot = (int) (k0 >>> 32) & mask;
+        while (values[slot] != null) {
+            int base = slot * KEY_LONGS;
+            if (keys[base] == k0 && keys[base + 1] == k1 && keys[base + 2] == k2
+                    && keys[base + 3] == k3) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        for (int slot = 0; slot < oldValues.length; slot++) {
+            if (oldValues[slot] != null) {
+                int base = slot * KEY_LONGS;
+                int newSlot = findSlot(oldKeys[base], oldKeys[base + 1], oldKeys[base + 2],
+                        oldKeys[base + 3]);
+                System.arraycopy(oldKeys, base, keys, newSlot * KEY_LONGS, KEY_LONGS);
+                values[newSlot] = oldValues[slot];
+            }
+        }
+    }
+
+    private static long hexLong(CharSequence hexKey, int index) {
+        long value = 0;
+        for (int i = index * 16; i < index * 16 + 16; i++) {
+            value = (value << 4) | nibble(hexKey.charAt(i));
+        }
+        return value;
+    }
+
+    private static long bytesLong(byte[] digest, int index) {
+        long value = 0;
+        for (int i = index * 8; i < index * 8 + 8; i++) {
+            value = (value << 8) | (digest[i] & 0xff);
+        }
+        return value;
+    }
+
+    private static int nibble(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+}
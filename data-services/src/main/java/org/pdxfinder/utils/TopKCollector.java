@@ -0,0 +1,153 @@
+package org.pdxfinder.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Keeps the k items with the lowest scores seen so far, ties going to the lowest id. The worst
+ * item kept sits at the root of a fixed-size heap held in primitive arrays, so offering an item
+ * that does not make it allocates nothing.
+ *
+ * Not thread safe.
+ */
+public class TopKCollector<T> {
+
+    private final int capacity;
+
+    private final int[] scores;
+
+    private final long[] ids;
+
+    private final Object[] items;
+
+    private int size;
+
+    public TopKCollector(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.scores = new int[capacity];
+        this.ids = new long[capacity];
+        this.items = new Object[capacity];
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * The highest score an item can have and still be kept, Integer.MAX_VALUE until the collector
+     * is full.
+     */
+    public int getThreshold() {
+        return isFull() ? scores[0] : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Whether an item whose score is at least the given one could still be kept. Used to stop
+     * scoring an item as soon as its partial score rules it out.
+     */
+    public boolean accepts(int score) {
+        return score <= getThreshold();
+    }
+
+    public boolean offer(int score, long id, T item) {
+        if (size < capacity) {
+            scores[size] = score;
+            ids[size] = id;
+            items[size] = item;
+            siftUp(size++);
+            return true;
+        }
+        if (!isWorse(scores[0], ids[0], score, id)) {
+            return false;
+        }
+        scores[0] = score;
+        ids[0] = id;
+        items[0] = item;
+        siftDown(0, size);
+        return true;
+    }
+
+    /**
+     * Calls the action with each item kept and its score, in no particular order.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(ObjIntConsumer<T> action) {
+        for (int i = 0; i < size; i++) {
+            action.accept((T) items[i], scores[i]);
+        }
+    }
+
+    /**
+     * Returns the items kept, best first, and empties the collector.
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> drainSorted() {
+        int count = size;
+        // Heap sort in place: the worst remaining item is moved behind the heap each round
+        while (size > 1) {
+            swap(0, --size);
+            siftDown(0, size);
+        }
+        List<T> sorted = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            sorted.add((T) items[i]);
+            items[i] = null;
+        }
+        size = 0;
+        return sorted;
+    }
+
+    private static boolean isWorse(int score, long id, int otherScore, long otherId) {
+        return score > otherScore || (score == otherScore && id > otherId);
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (!isWorse(scores[position], ids[position], scores[parent], ids[parent])) {
+                return;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position, int heapSize) {
+        while (true) {
+            int worst = position;
+            int left = 2 * position + 1;
+            int right = left + 1;
+            if (left < heapSize && isWorse(scores[left], ids[left], scores[worst], ids[worst])) {
+                worst = left;
+            }
+            if (right < heapSize && isWorse(scores[right], ids[right], scores[worst], ids[worst])) {
+                worst = right;
+            }
+            if (worst == position) {
+                return;
+            }
+            swap(position, worst);
+            position = worst;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+        long id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+        Object item = items[a];
+        items[a] = items[b];
+        items[b] = item;
+    }
+}
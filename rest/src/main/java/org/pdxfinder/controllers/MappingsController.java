@@ -5,26 +5,35 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.csv.CsvMapper;
 import com.fasterxml.jackson.dataformat.csv.CsvSchema;
 import org.apache.commons.lang3.tuple.Pair;
-import org.apache.poi.util.IOUtils;
 import org.pdxfinder.*;
 import org.pdxfinder.constants.MappingEntityType;
+import org.pdxfinder.dto.ClusterMappingDTO;
 import org.pdxfinder.dto.PaginationDTO;
+import org.pdxfinder.dto.SuggestionRequestDTO;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.stream.Collectors;
 
 @CrossOrigin(origins = "*", maxAge = 3600)
 @RestController
@@ -38,8 +47,22 @@ public class MappingsController {
   private final MissingMappingService missingMappingService;
   private final OntologyTermService ontologyTermService;
   private final CSVHandler csvHandler;
+  private final SuggestionService suggestionService;
+  private final MappingClusterService mappingClusterService;
+  private final MappingRulesArchives mappingRulesArchives;
 
   private static final String MAPPING_VALUE_SEPARATOR = ":";
+  private static final String NDJSON = "application/x-ndjson";
+
+  // Request attributes of the Tomcat connectors sending files from the disk themselves
+  private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+  private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+  private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+  private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+  // Most entities one batch suggestion request may ask for
+  @Value("${suggestions.max-entity-ids:1000}")
+  private int maxEntityIds = 1000;
 
   @Autowired
   public MappingsController(
@@ -47,8 +70,14 @@ public class MappingsController {
       MissingMappingService missingMappingService,
       UtilityService utilityService,
       OntologyTermService ontologyTermService,
-      CSVHandler csvHandler) {
+      CSVHandler csvHandler,
+      SuggestionService suggestionService,
+      MappingClusterService mappingClusterService,
+      MappingRulesArchives mappingRulesArchives) {
     this.utilityService = utilityService;
+    this.mappingRulesArchives = mappingRulesArchives;
+    this.suggestionService = suggestionService;
+    this.mappingClusterService = mappingClusterService;
     this.csvHandler = csvHandler;
     this.mappingService = mappingService;
     this.missingMappingService = missingMappingService;
@@ -112,6 +141,59 @@ public class MappingsController {
         HttpStatus.BAD_REQUEST);
   }
 
+  /**
+   * Suggestions for many entities at once, streamed as one JSON object per line as soon as the
+   * suggestions of each entity are ready: the entity with its suggestedMappings, or an object
+   * with entityId and error for ids that do not exist. E.g :
+   * POST .../api/mappings/suggestions {"entityIds": [1, 2, 3], "k": 5}
+   */
+  @PostMapping(value = "suggestions", produces = NDJSON)
+  public ResponseEntity<StreamingResponseBody> getSuggestions(
+      @RequestBody SuggestionRequestDTO request) {
+
+    int k = Optional.ofNullable(request.getK()).orElse(SuggestionService.MAX_SUGGESTIONS);
+    List<Long> entityIds = request.getEntityIds();
+    if (entityIds == null || entityIds.size() > maxEntityIds || entityIds.contains(null)
+        || k < 1 || k > SuggestionService.MAX_REQUESTED_SUGGESTIONS) {
+      String error = String.format(
+          "entityIds are required, at most %s and not null, and k must be between 1 and %s",
+          maxEntityIds, SuggestionService.MAX_REQUESTED_SUGGESTIONS);
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, error);
+    }
+
+    // Read on this thread, the body is written once the request thread is released
+    List<MappingEntity> entities = mappingService.getEntitiesForSuggestions(entityIds);
+    Set<Long> found = entities.stream().map(MappingEntity::getEntityId).collect(Collectors.toSet());
+    List<Long> missing = entityIds.stream()
+        .filter(x -> !found.contains(x))
+        .distinct()
+        .collect(Collectors.toList());
+
+    StreamingResponseBody body = outputStream -> {
+      for (Long entityId : missing) {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("entityId", entityId);
+        error.put("error", String.format("Could not find entityId %s", entityId));
+        writeLine(outputStream, error);
+      }
+      suggestionService.streamSuggestions(entities, k, (entity, suggestions) -> {
+        entity.setSuggestedMappings(suggestions);
+        writeLine(outputStream, entity);
+      });
+    };
+    return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON)).body(body);
+  }
+
+  private void writeLine(OutputStream outputStream, Object value) {
+    try {
+      outputStream.write(mapper.writeValueAsBytes(value));
+      outputStream.write('\n');
+      outputStream.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
   @GetMapping("summary")
   public ResponseEntity<?> getMappingStatSummary(
       @RequestParam(value = "entity-type", defaultValue = "") String entityType) {
@@ -125,6 +207,49 @@ public class MappingsController {
     return new ResponseEntity<>(missingMappings.getEntityList(), HttpStatus.OK);
   }
 
+  /**
+   * Clusters of near duplicate unmapped entities, largest first, each with the suggestions its
+   * entities share. E.g : .../api/mappings/clusters?entity-type=diagnosis&page=1&size=10
+   */
+  @GetMapping("clusters")
+  public ResponseEntity<?> getClusters(
+      @RequestParam(value = "entity-type", defaultValue = "") String entityType,
+      @RequestParam(value = "page", defaultValue = "1") Integer page,
+      @RequestParam(value = "size", defaultValue = "10") Integer size) {
+    PaginationDTO result = mappingClusterService.getClusterPage(entityType, page, size);
+    return new ResponseEntity<Object>(result, HttpStatus.OK);
+  }
+
+  /**
+   * Maps every entity of a cluster to the term of the submitted mapping. The ids of the entities
+   * the curator reviewed are submitted with it, and nothing is mapped when the cluster no longer
+   * has exactly these entities. E.g :
+   * PUT .../api/mappings/clusters/12 {"entityIds": [12, 15], "mapping": {"mappedTermLabel": "...",
+   * "mappedTermUrl": "...", "mapType": "direct", "justification": "0", "status": "Validated"}}
+   */
+  @PutMapping("clusters/{clusterId}")
+  public ResponseEntity<?> mapCluster(@PathVariable Long clusterId,
+      @RequestBody ClusterMappingDTO request) {
+    if (request.getEntityIds() == null || request.getEntityIds().isEmpty()
+        || request.getMapping() == null) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+          "entityIds of the reviewed entities and a mapping are required");
+    }
+    Optional<MappingCluster> cluster = mappingClusterService.getCluster(clusterId);
+    if (cluster.isEmpty()) {
+      Error error = new Error("Cluster " + clusterId + " Not Found", HttpStatus.NOT_FOUND);
+      return new ResponseEntity<>(Collections.singletonList(error), HttpStatus.NOT_FOUND);
+    }
+    if (!cluster.get().hasEntityIds(request.getEntityIds())) {
+      Error error = new Error("The entities of cluster " + clusterId + " changed since reviewed",
+          HttpStatus.CONFLICT);
+      return new ResponseEntity<>(Collections.singletonList(error), HttpStatus.CONFLICT);
+    }
+    List<MappingEntity> updated = mappingClusterService.mapCluster(cluster.get(),
+        request.getMapping());
+    return new ResponseEntity<>(updated, HttpStatus.OK);
+  }
+
   @GetMapping("/ontologies")
   public Object getOntologies(@RequestParam(value = "type", defaultValue = "diagnosis") Optional<String> dataType){
 
@@ -268,38 +393,17 @@ public class MappingsController {
     return Pair.of(mappingLabel, mappingValue);
   }
 
+  /**
+   * Zip archive of the rules files, 304 Not Modified when the If-None-Match header has the ETag of
+   * the current one.
+   */
   @RequestMapping(value="/mappingRules", produces="application/zip")
-  public void getZipOfMappingRules(HttpServletResponse response) throws IOException {
-
-    //setting headers
-    response.setStatus(HttpServletResponse.SC_OK);
-    String fileName = "mappingRules_" + new SimpleDateFormat("yyyyMMddHHmm'.zip'").format(new Date());
-    response.addHeader("Content-Disposition", "attachment; filename=\""+fileName+"\"");
-
-    ZipOutputStream zipOutputStream = new ZipOutputStream(response.getOutputStream());
-
-    Map<String, String> mappingRulesPaths = mappingService.getMappingRulesPaths();
-    // create a list to add files to be zipped
-    ArrayList<File> files = new ArrayList<>(mappingRulesPaths.size());
-    for (Map.Entry<String, String> entry : mappingRulesPaths.entrySet()) {
-      File mappingsFile = new File(entry.getValue());
-      files.add(mappingsFile);
-    }
-
-    // package files
-    for (File file : files) {
-      //new zip entry and copying inputstream with file to zipOutputStream, after all closing streams
-      zipOutputStream.putNextEntry(new ZipEntry(file.getName()));
-      FileInputStream fileInputStream = new FileInputStream(file);
-
-      IOUtils.copy(fileInputStream, zipOutputStream);
-
-      fileInputStream.close();
-      zipOutputStream.closeEntry();
-    }
-
-    zipOutputStream.close();
-
+  public void getZipOfMappingRules(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    MappingRulesArchives.Archive archive = mappingRulesArchives.getMappingRulesArchive()
+        .orElseThrow(() -> new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+            "The mapping rules files could not be brought up to date"));
+    sendArchive(archive, "mappingRules_", request, response);
   }
 
   @PostMapping("rebuildMappingEntities")
@@ -320,11 +424,37 @@ public class MappingsController {
   }
 
   @RequestMapping(value="/getEurOPDXMappingsRules", produces="application/zip")
-  public void getEurOPDXMappingsRules(HttpServletResponse response) throws IOException {
+  public void getEurOPDXMappingsRules(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    MappingRulesArchives.Archive archive = mappingRulesArchives.getEurOPDXMappingRulesArchive()
+        .orElseThrow(() -> new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+            "The mapping rules are still being loaded"));
+    sendArchive(archive, "EurOPDX_mappingRules_", request, response);
+  }
+
+  private void sendArchive(MappingRulesArchives.Archive archive, String fileNamePrefix,
+      HttpServletRequest request, HttpServletResponse response) throws IOException {
+    response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+    if (new ServletWebRequest(request, response).checkNotModified(archive.getETag())) {
+      return;
+    }
+
+    //setting headers
     response.setStatus(HttpServletResponse.SC_OK);
-    String fileName = "EurOPDX_mappingRules_" + new SimpleDateFormat("yyyyMMddHHmm'.zip'").format(new Date());
+    String fileName = fileNamePrefix + new SimpleDateFormat("yyyyMMddHHmm'.zip'").format(new Date());
     response.addHeader("Content-Disposition", "attachment; filename=\""+fileName+"\"");
-    mappingService.writeEurOPDXMappingsRules(response.getOutputStream());
+
+    // Archives are never modified once built, the connector can send them without copying
+    Path file = archive.getFile();
+    long length = Files.size(file);
+    response.setContentLengthLong(length);
+    if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+      request.setAttribute(SENDFILE_FILENAME, file.toAbsolutePath().toString());
+      request.setAttribute(SENDFILE_START, 0L);
+      request.setAttribute(SENDFILE_END, length);
+    } else {
+      Files.copy(file, response.getOutputStream());
+    }
   }
 
 }
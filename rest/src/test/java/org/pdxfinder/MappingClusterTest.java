@@ -0,0 +1,89 @@
+package org.pdxfinder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.pdxfinder.constants.MappingEntityType;
+
+class MappingClusterTest {
+
+  @Test
+  public void givenCaseAndPunctuationVariantsWhenClusterThenSameClusterAcrossDataSources() {
+    List<MappingEntity> unmapped = Arrays.asList(
+        treatment(1L, "jax", "5-Fluorouracil"),
+        treatment(2L, "trace", "5 fluorouracil"),
+        treatment(3L, "ircc-crc", "5-FLUOROURACIL "),
+        treatment(4L, "jax", "cisplatin"));
+
+    List<MappingCluster> clusters = MappingCluster.cluster(unmapped, 0);
+
+    assertThat(clusters.size(), is(2));
+    assertThat(clusters.get(0).getId(), is(1L));
+    assertThat(ids(clusters.get(0)), is(Arrays.asList(1L, 2L, 3L)));
+    assertThat(ids(clusters.get(1)), is(Arrays.asList(4L)));
+    assertThat(clusters.get(0).hasEntityIds(Arrays.asList(3L, 1L, 2L)), is(true));
+    assertThat(clusters.get(0).hasEntityIds(Arrays.asList(1L, 2L)), is(false));
+    assertThat(clusters.get(0).hasEntityIds(Arrays.asList(1L, 2L, 3L, 4L)), is(false));
+  }
+
+  @Test
+  public void givenTyposWhenClusterThenOnlyLongValuesWithinDistanceAreMerged() {
+    List<MappingEntity> unmapped = Arrays.asList(
+        diagnosis(1L, "jax", "Colorectal Adenocarcinoma", "colon"),
+        diagnosis(2L, "trace", "colorectal adenocarcinoma", "colon"),
+        diagnosis(3L, "jax", "colorectal adenocarcinome", "colon"),
+        // Another origin tissue is another cluster
+        diagnosis(4L, "jax", "colorectal adenocarcinoma", "rectum"),
+        diagnosis(5L, "jax", "colorectal carcinoma", "colon"),
+        // Short values are only merged when equal
+        diagnosis(6L, "jax", "nsclc", "lung"),
+        diagnosis(7L, "jax", "sclc", "lung"));
+
+    List<MappingCluster> clusters = MappingCluster.cluster(unmapped, 1);
+
+    assertThat(clusters.size(), is(5));
+    assertThat(ids(clusters.get(0)), is(Arrays.asList(1L, 2L, 3L)));
+    assertThat(clusters.stream().skip(1).map(MappingCluster::getSize)
+        .collect(Collectors.toList()), is(Arrays.asList(1, 1, 1, 1)));
+  }
+
+  private static List<Long> ids(MappingCluster cluster) {
+    return cluster.getEntities().stream()
+        .map(MappingEntity::getEntityId)
+        .collect(Collectors.toList());
+  }
+
+  private static MappingEntity treatment(Long id, String dataSource, String treatmentName) {
+    Map<String, String> values = new HashMap<>();
+    values.put("DataSource", dataSource);
+    values.put("TreatmentName", treatmentName);
+    return entity(id, MappingEntityType.TREATMENT.getLabel(),
+        Arrays.asList("DataSource", "TreatmentName"), values);
+  }
+
+  private static MappingEntity diagnosis(Long id, String dataSource, String sampleDiagnosis,
+      String originTissue) {
+    Map<String, String> values = new HashMap<>();
+    values.put("DataSource", dataSource);
+    values.put("SampleDiagnosis", sampleDiagnosis);
+    values.put("OriginTissue", originTissue);
+    values.put("TumorType", "primary");
+    return entity(id, MappingEntityType.DIAGNOSIS.getLabel(),
+        Arrays.asList("DataSource", "SampleDiagnosis", "OriginTissue", "TumorType"), values);
+  }
+
+  private static MappingEntity entity(Long id, String entityType, List<String> labels,
+      Map<String, String> values) {
+    MappingEntity entity = new MappingEntity(entityType, new ArrayList<>(labels), values);
+    entity.setEntityId(id);
+    entity.setMappingKey(entity.generateMappingKey());
+    entity.setMappedTermLabel("-");
+    return entity;
+  }
+}
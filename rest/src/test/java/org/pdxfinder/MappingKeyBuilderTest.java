@@ -0,0 +1,117 @@
+package org.pdxfinder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.Test;
+import org.pdxfinder.constants.CSV;
+
+class MappingKeyBuilderTest {
+
+  private static final String[] FIXTURES = {
+      "src/test/resources/test_data/mapping/diagnosis_mappings.json",
+      "src/test/resources/test_data/mapping/treatment_mappings.json"};
+
+  // ASCII, letters lower-casing to ASCII ones (Kelvin sign, dotted I), others and a surrogate pair
+  private static final String CHARACTERS =
+      "aIZ09 _-.,/+()'\"#éÉßİKΣσı 😀";
+
+  private final Random random = new Random(11);
+
+  private final MappingService mappingService = new MappingService(null, null, null, null);
+
+  private final CSVHandler csvHandler = new CSVHandler(null, mappingService);
+
+  @Test
+  public void givenFixtureRulesWhenDeriveKeysThenSameKeysAsBefore() throws IOException {
+    int rules = 0;
+    for (String fixture : FIXTURES) {
+      for (JsonNode rule : new ObjectMapper().readTree(new File(fixture)).get("mappings")) {
+        List<String> values = new ArrayList<>();
+        rule.get("mappingLabels")
+            .forEach(x -> values.add(rule.get("mappingValues").get(x.asText()).asText()));
+        assertSameKeys(rule.get("entityType").asText(), values);
+        rules++;
+      }
+    }
+    assertThat(rules > 0, is(true));
+  }
+
+  @Test
+  public void givenAnyValuesWhenDeriveKeysThenSameKeysAsBeforeInAnyLocale() {
+    Locale defaultLocale = Locale.getDefault();
+    try {
+      for (Locale locale : new Locale[]{Locale.ROOT, new Locale("tr"), new Locale("lt")}) {
+        Locale.setDefault(locale);
+        for (int n = 0; n < 2000; n++) {
+          List<String> values = new ArrayList<>();
+          for (int i = 0; i < 4; i++) {
+            values.add(random.nextInt(20) == 0 ? null : randomString());
+          }
+          assertSameKeys("diagnosis", values);
+          assertSameKeys("treatment", values.subList(0, 2));
+        }
+      }
+    } finally {
+      Locale.setDefault(defaultLocale);
+    }
+  }
+
+  private void assertSameKeys(String entityType, List<String> values) {
+    MappingEntity entity = new MappingEntity();
+    entity.setEntityType(entityType);
+    List<String> labels = new ArrayList<>();
+    Map<String, String> mappingValues = new HashMap<>();
+    for (int i = 0; i < values.size(); i++) {
+      labels.add("label" + i);
+      mappingValues.put("label" + i, values.get(i));
+    }
+    entity.setMappingLabels(labels);
+    entity.setMappingValues(mappingValues);
+
+    String joined = String.join("__", values);
+    String message = entityType + "__" + joined;
+    assertThat(message, entity.generateMappingKey(), is(
+        DigestUtils.sha256Hex((entityType + "__" + joined).replaceAll("[^a-zA-Z0-9 _-]", ""))));
+
+    Map<String, String> csvData = new HashMap<>();
+    String expectedServiceKey;
+    if (values.size() == 4) {
+      expectedServiceKey = mappingService.getDiagnosisMappingKey(
+          values.get(0), values.get(1), values.get(2), values.get(3));
+      csvData.put(CSV.dataSource.get(), values.get(0));
+      csvData.put(CSV.sampleDiagnosis.get(), values.get(1));
+      csvData.put(CSV.originTissue.get(), values.get(2));
+      csvData.put(CSV.tumorType.get(), values.get(3));
+    } else {
+      expectedServiceKey = mappingService.getTreatmentMappingKey(values.get(0), values.get(1));
+      csvData.put(CSV.dataSource.get(), values.get(0));
+      csvData.put(CSV.treatmentName.get(), values.get(1));
+    }
+    assertThat(message, expectedServiceKey, is(DigestUtils.sha256Hex(
+        (entityType + "__" + joined).replaceAll("[^a-zA-Z0-9 _-]", "").toLowerCase())));
+    assertThat(message, csvHandler.getMappingKeyFromCSVData(entityType, csvData), is(
+        DigestUtils.sha256Hex(
+            (entityType + "__" + joined).toLowerCase().replaceAll("[^a-zA-Z0-9 _-]", ""))));
+  }
+
+  private String randomString() {
+    // Now and then longer than the buffer of the builder
+    int length = random.nextInt(10) == 0 ? 300 + random.nextInt(500) : random.nextInt(12);
+    StringBuilder value = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      value.append(CHARACTERS.charAt(random.nextInt(CHARACTERS.length())));
+    }
+    return value.toString();
+  }
+}
@@ -0,0 +1,171 @@
+package org.pdxfinder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.pdxfinder.repositories.MappingEntityRepository;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class MappingRulesArchivesTest {
+
+  private static final String FIXTURES = "src/test/resources/test_data/mapping";
+
+  @TempDir
+  Path directory;
+
+  private Path rulesFile;
+
+  private MappingRulesArchives testInstance;
+
+  @BeforeEach
+  void setUp() throws IOException {
+    Path mappingDirectory = Files.createDirectories(directory.resolve("data/mapping"));
+    for (String fileName : new String[]{"diagnosis_mappings.json", "treatment_mappings.json"}) {
+      Files.copy(Paths.get(FIXTURES, fileName), mappingDirectory.resolve(fileName));
+    }
+    rulesFile = mappingDirectory.resolve("treatment_mappings.json");
+    testInstance = newMappingRulesArchives();
+  }
+
+  private MappingRulesArchives newMappingRulesArchives() {
+    return newMappingRulesArchives(newMappingService("lazy"));
+  }
+
+  private MappingService newMappingService(String rulesLoading) {
+    MappingService mappingService = new MappingService(null, null, null, null);
+    ReflectionTestUtils.setField(mappingService, "rootDir", directory.resolve("data").toString());
+    ReflectionTestUtils.setField(mappingService, "rulesLoading", rulesLoading);
+    return mappingService;
+  }
+
+  private MappingRulesArchives newMappingRulesArchives(MappingService mappingService) {
+    MappingRulesArchives mappingRulesArchives = new MappingRulesArchives(mappingService);
+    ReflectionTestUtils.setField(mappingRulesArchives, "cacheDir",
+        directory.resolve("cache").toString());
+    return mappingRulesArchives;
+  }
+
+  @Test
+  public void givenRulesFilesUnchangedWhenGetMappingRulesArchiveThenSameArchive()
+      throws IOException {
+    MappingRulesArchives.Archive archive = testInstance.getMappingRulesArchive().get();
+
+    assertThat(testInstance.getMappingRulesArchive().get(), is(archive));
+    assertThat(getEntryNames(archive.getFile()),
+        is(Stream.of("diagnosis_mappings.json", "treatment_mappings.json")
+            .collect(Collectors.toSet())));
+  }
+
+  @Test
+  public void givenRulesFileChangedWhenGetMappingRulesArchiveThenNewArchiveAndOldOnesDeleted()
+      throws IOException {
+    MappingRulesArchives.Archive first = testInstance.getMappingRulesArchive().get();
+    touchRulesFile(1);
+    MappingRulesArchives.Archive second = testInstance.getMappingRulesArchive().get();
+    touchRulesFile(2);
+    MappingRulesArchives.Archive third = testInstance.getMappingRulesArchive().get();
+
+    assertThat(second.getETag(), is(not(first.getETag())));
+    assertThat(third.getETag(), is(not(second.getETag())));
+    // Replaced archives are kept during the grace period as they may still be being sent
+    assertThat(Files.exists(first.getFile()), is(true));
+    assertThat(Files.exists(second.getFile()), is(true));
+
+    ReflectionTestUtils.setField(testInstance, "gracePeriodMs", 0L);
+    touchRulesFile(3);
+    MappingRulesArchives.Archive fourth = testInstance.getMappingRulesArchive().get();
+
+    assertThat(Files.exists(first.getFile()), is(false));
+    assertThat(Files.exists(second.getFile()), is(false));
+    assertThat(Files.exists(third.getFile()), is(false));
+    assertThat(Files.exists(fourth.getFile()), is(true));
+  }
+
+  @Test
+  public void givenArchiveOnDiskWhenNewInstanceGetsMappingRulesArchiveThenSameETag()
+      throws IOException {
+    MappingRulesArchives.Archive archive = testInstance.getMappingRulesArchive().get();
+    FileTime built = Files.getLastModifiedTime(archive.getFile());
+
+    MappingRulesArchives.Archive restored = newMappingRulesArchives().getMappingRulesArchive().get();
+
+    assertThat(restored.getETag(), is(archive.getETag()));
+    assertThat(Files.getLastModifiedTime(restored.getFile()), is(built));
+  }
+
+  @Test
+  public void givenRulesUnchangedWhenGetEurOPDXArchiveThenSameArchive() throws IOException {
+    MappingRulesArchives.Archive archive = testInstance.getEurOPDXMappingRulesArchive().get();
+
+    assertThat(testInstance.getEurOPDXMappingRulesArchive().get(), is(archive));
+    assertThat(getEntryNames(archive.getFile()),
+        is(Stream.of("EurOPDX_diagnosis_mappings.json", "EurOPDX_treatment_mappings.json")
+            .collect(Collectors.toSet())));
+  }
+
+  @Test
+  public void givenRulesLoadingOnStartupWhenGetEurOPDXArchiveThenNoArchive() throws IOException {
+    MappingRulesArchives mappingRulesArchives = newMappingRulesArchives(newMappingService("eager"));
+
+    assertThat(mappingRulesArchives.getEurOPDXMappingRulesArchive().isPresent(), is(false));
+    assertThat(Files.exists(directory.resolve("cache")), is(false));
+  }
+
+  @Test
+  public void givenJournaledChangesWhenGetMappingRulesArchiveThenFoldedIntoArchivedFiles()
+      throws IOException {
+    MappingRulesArchives.Archive before = testInstance.getMappingRulesArchive().get();
+    MappingEntityRepository repository = mock(MappingEntityRepository.class);
+    MappingService mappingService = new MappingService(repository, null, null, null);
+    ReflectionTestUtils.setField(mappingService, "rootDir", directory.resolve("data").toString());
+    Path journal = Files.createDirectories(directory.resolve("data/mapping/journal"));
+    // A segment left by a failed write, which the rules file does not have yet
+    Files.write(journal.resolve("treatment.20200101000000000.journal"), new byte[]{'\n'});
+    MappingRulesArchives mappingRulesArchives = newMappingRulesArchives(mappingService);
+    when(repository.findByEntityTypeAndStatusIsNot("treatment", "unmapped"))
+        .thenThrow(new IllegalStateException("Database unavailable"));
+
+    assertThat(mappingRulesArchives.getMappingRulesArchive().isPresent(), is(false));
+
+    doReturn(Collections.emptyList()).when(repository)
+        .findByEntityTypeAndStatusIsNot("treatment", "unmapped");
+    MappingRulesArchives.Archive after = mappingRulesArchives.getMappingRulesArchive().get();
+
+    assertThat(after.getETag(), is(not(before.getETag())));
+    assertThat(Files.exists(journal.resolve("treatment.20200101000000000.journal")), is(false));
+  }
+
+  private void touchRulesFile(int minutes) throws IOException {
+    Files.setLastModifiedTime(rulesFile, FileTime.fromMillis(
+        Files.getLastModifiedTime(rulesFile).toMillis() + minutes * 60000L));
+  }
+
+  private Set<String> getEntryNames(Path archive) throws IOException {
+    Set<String> names = new HashSet<>();
+    try (ZipInputStream input = new ZipInputStream(Files.newInputStream(archive))) {
+      ZipEntry entry;
+      while ((entry = input.getNextEntry()) != null) {
+        names.add(entry.getName());
+      }
+    }
+    return names;
+  }
+}
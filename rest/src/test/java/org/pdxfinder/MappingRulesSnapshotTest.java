@@ -0,0 +1,126 @@
+package org.pdxfinder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.Test;
+
+class MappingRulesSnapshotTest {
+
+  private static final String[] DATA_SOURCES = {"jax", "trace", "ircc-crc"};
+
+  @Test
+  public void givenSnapshotWhenReplacedThenNextVersionAndPreviousUnchanged() {
+    String a = DigestUtils.sha256Hex("a");
+    String b = DigestUtils.sha256Hex("b");
+    // Keys other than hex digests are found too
+    String c = "c";
+    MappingEntity first = rule(a, "mapped term");
+    MappingRulesSnapshot snapshot = MappingRulesSnapshot.of(
+        Arrays.asList(first, rule(a, "duplicate"), rule(b, "mapped term")));
+
+    MappingEntity updated = rule(a, "updated term");
+    MappingRulesSnapshot next = snapshot.withRules(Arrays.asList(updated, rule(c, "new term")));
+
+    assertThat(snapshot.getVersion(), is(1L));
+    assertThat(snapshot.getSize(), is(2));
+    assertThat(snapshot.getEntityById(a), is(first));
+    assertThat(snapshot.getEntityById(b).getMappedTermLabel(), is("mapped term"));
+
+    assertThat(next.getVersion(), is(2L));
+    assertThat(next.getEntityById(a), is(updated));
+    assertThat(next.getEntityById(b), is(nullValue()));
+    assertThat(next.getEntityById(c).getMappedTermLabel(), is("new term"));
+    // In mapping key order, "c" being a prefix of a
+    assertThat(next.getEntityList().get(0).getMappingKey(), is(c));
+    assertThat(next.getEntityList().get(1), is(updated));
+    assertThat(next.withRules(Collections.emptyList()).getVersion(), is(3L));
+  }
+
+  @Test
+  public void givenChangesWhenWithChangesThenSameRulesAsBuiltFromScratch()
+      throws DecoderException {
+    Random random = new Random(42);
+    Map<String, MappingEntity> expected = new TreeMap<>();
+    for (long id = 0; id < 500; id++) {
+      MappingEntity rule = rule(random, id);
+      expected.put(rule.getMappingKey(), rule);
+    }
+    MappingRulesSnapshot snapshot = MappingRulesSnapshot.of(expected.values());
+
+    // Enough changes to go past the ones kept aside
+    for (int i = 0; i < 1500; i++) {
+      Map<String, MappingEntity> changes = new HashMap<>();
+      List<String> keys = new ArrayList<>(expected.keySet());
+      String key = keys.get(random.nextInt(keys.size()));
+      if (random.nextInt(3) == 0) {
+        changes.put(key, null);
+      } else {
+        MappingEntity rule = rule(random, 1000L + i);
+        changes.put(rule.getMappingKey(), rule);
+      }
+      changes.forEach((k, v) -> {
+        if (v == null) {
+          expected.remove(k);
+        } else {
+          expected.put(k, v);
+        }
+      });
+      snapshot = snapshot.withChanges(changes);
+
+      assertThat(snapshot.getVersion(), is(i + 2L));
+      assertThat(snapshot.getSize(), is(expected.size()));
+      assertThat(snapshot.getEntityById(key), is(expected.get(key)));
+      if (i % 100 == 0) {
+        assertSameRules(snapshot, MappingRulesSnapshot.of(expected.values()));
+      }
+    }
+    assertSameRules(snapshot, MappingRulesSnapshot.of(expected.values()));
+  }
+
+  private void assertSameRules(MappingRulesSnapshot snapshot, MappingRulesSnapshot expected)
+      throws DecoderException {
+    assertThat(snapshot.getEntityList(), is(expected.getEntityList()));
+    for (MappingEntity rule : expected.getEntityList()) {
+      assertThat(snapshot.getEntityByDigest(Hex.decodeHex(rule.getMappingKey().toCharArray())),
+          is(sameInstance(rule)));
+      assertThat(snapshot.getKeyByEntityId(rule.getEntityId()), is(rule.getMappingKey()));
+    }
+    for (String dataSource : DATA_SOURCES) {
+      assertThat(snapshot.getEntityList("treatment", Collections.singletonList(dataSource)),
+          is(expected.getEntityList("TREATMENT", Collections.singletonList(dataSource))));
+    }
+    assertThat(snapshot.getEntityList("treatment", Arrays.asList(DATA_SOURCES)),
+        is(expected.getEntityList("treatment", Arrays.asList(DATA_SOURCES))));
+  }
+
+  private MappingEntity rule(Random random, long entityId) {
+    MappingEntity entity = rule(DigestUtils.sha256Hex(String.valueOf(random.nextInt(800))),
+        "term " + entityId);
+    entity.setEntityId(entityId);
+    entity.setEntityType("treatment");
+    Map<String, String> values = new HashMap<>();
+    values.put("DataSource", DATA_SOURCES[random.nextInt(DATA_SOURCES.length)]);
+    entity.setMappingValues(values);
+    return entity;
+  }
+
+  private MappingEntity rule(String mappingKey, String mappedTermLabel) {
+    MappingEntity entity = new MappingEntity();
+    entity.setMappingKey(mappingKey);
+    entity.setMappedTermLabel(mappedTermLabel);
+    return entity;
+  }
+}
@@ -0,0 +1,45 @@
+package org.pdxfinder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import com.google.gson.Gson;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class MappingRulesWriterTest {
+
+  @Test
+  public void givenEntitiesWhenWriteThenSameJsonAsGson() throws IOException {
+    Map<String, String> values = new LinkedHashMap<>();
+    values.put("DataSource", "curie-bc");
+    values.put("SampleDiagnosis", "invasive <ductal> & \"lobular\" = 'carcinoma'\\ é \t\u0001\u2028");
+    values.put("OriginTissue", null);
+    MappingEntity entity = new MappingEntity("diagnosis",
+        Arrays.asList("DataSource", "SampleDiagnosis", "OriginTissue"), values);
+    entity.setEntityId(12L);
+    entity.setMappedTermLabel("Invasive Breast Carcinoma");
+    entity.setMappedTermUrl("http://purl.obolibrary.org/obo/NCIT_C9245?a=1&b=2");
+    entity.setMapType("direct");
+    entity.setMappingKey(entity.generateMappingKey());
+
+    MappingEntity suggested = new MappingEntity();
+    suggested.setEntityType("diagnosis");
+    suggested.setDateCreated(new Date(0));
+    entity.getSuggestedMappings().add(suggested);
+
+    List<MappingEntity> entities = new ArrayList<>(Arrays.asList(entity, new MappingEntity()));
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    MappingRulesWriter.write(output, entities);
+
+    assertThat(new String(output.toByteArray(), StandardCharsets.UTF_8),
+        is(new Gson().toJson(entities)));
+  }
+}
@@ -5,19 +5,38 @@ import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.pdxfinder.MappingService.MAPPING_RULE_NOT_FOUND;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 import org.pdxfinder.constants.DiagnosisMappingLabels;
 import org.pdxfinder.constants.MappingEntityType;
 import org.pdxfinder.constants.TreatmentMappingLabels;
@@ -29,6 +48,7 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.ReflectionTestUtils;
 
 @ExtendWith(SpringExtension.class)
 @SpringBootTest
@@ -50,6 +70,9 @@ class MappingServiceTest {
   private static final String IRCC_CRC_DATA_SOURCE = "ircc-crc";
   private static final String TREATMENT_NAME = "0.9% Solution of Sodium Chloride";
 
+  // Ids given to the entities saved again when the database is rebuilt
+  private static final long REBUILT_ID_OFFSET = 100;
+
   @Value("${data-dir}")
   private String rootDir;
 
@@ -142,6 +165,20 @@ class MappingServiceTest {
     assertThat(mappingEntity, is(nullValue()));
   }
 
+  @Test
+  public void givenDataSourcesInAnyCaseWhenGetRulesByDSAndTypeThenRulesOfTheirPartitions() {
+    List<MappingEntity> treatments = testInstance.getRulesByDSAndType(
+        Arrays.asList("IRCC-CRC", IRCC_CRC_DATA_SOURCE, JAX_DATA_SOURCE), "Treatment");
+
+    assertThat(treatments.size(), is(2));
+    treatments.forEach(x ->
+        assertThat(x.getEntityType(), is(MappingEntityType.TREATMENT.getLabel())));
+    assertThat(treatments.get(0).getMappingKey().compareTo(treatments.get(1).getMappingKey()) < 0,
+        is(true));
+    assertThat(testInstance.getRulesByDSAndType(Arrays.asList("trace"), "treatment").isEmpty(),
+        is(true));
+  }
+
   @Test
   public void whenGetMappingRulesPathsThenReturnValues() {
     Map<String, String> mappingRulesPaths = testInstance.getMappingRulesPaths();
@@ -281,25 +318,275 @@ class MappingServiceTest {
   }
 
   @Test
-  public void givenMappingRulesExistWhenRebuildDatabaseFromRulesFilesThenSuccess() {
-    testInstance.rebuildDatabaseFromRulesFiles();
-    List<MappingEntity> mappingEntities = testInstance.getMappingContainer().getEntityList();
+  public void givenMappingRulesExistWhenRebuildDatabaseFromRulesFilesThenSuccess(
+      @TempDir Path directory) throws IOException {
+    copyRulesFiles(directory);
+    Map<Long, MappingEntity> database = mockDatabase(Collections.emptyList());
+
+    newMappingService(directory).rebuildDatabaseFromRulesFiles();
 
-    verify(mappingEntityRepository, times(1)).saveAll(mappingEntities);
+    ArgumentCaptor<List<MappingEntity>> saved = ArgumentCaptor.forClass(List.class);
+    verify(mappingEntityRepository, times(1)).saveAll(saved.capture());
+    List<MappingEntity> mappingEntities = saved.getValue();
     assertThat(mappingEntities.size(), is(4));
+    assertThat(database.size(), is(4));
     List<MappingEntity> expectedMappingEntities = getExpectedMappingEntities();
-    System.out.println(expectedMappingEntities);
-    assertThat(
-        MappingEntityUtil.findById(mappingEntities, 1L),
-        is( MappingEntityUtil.findById(expectedMappingEntities, 1L)));
-    assertThat(
-        MappingEntityUtil.findById(mappingEntities, 2L),
-        is( MappingEntityUtil.findById(expectedMappingEntities, 2L)));
-    assertThat(
-        MappingEntityUtil.findById(mappingEntities, 3L),
-        is( MappingEntityUtil.findById(expectedMappingEntities, 3L)));
-    assertThat(
-        MappingEntityUtil.findById(mappingEntities, 4L),
-        is( MappingEntityUtil.findById(expectedMappingEntities, 4L)));
+    for (long id = 1; id <= 4; id++) {
+      assertThat(
+          MappingEntityUtil.findById(mappingEntities, id),
+          is(MappingEntityUtil.findById(expectedMappingEntities, id)));
+    }
+  }
+
+  @Test
+  public void givenJournaledChangesWhenRebuildDatabaseAndRestartThenRulesOfRebuiltDatabase(
+      @TempDir Path directory) throws IOException {
+    Path mappingDirectory = copyRulesFiles(directory);
+    Map<Long, MappingEntity> database = mockDatabase(getExpectedMappingEntities());
+    MappingService mappingService = newMappingService(directory);
+    mappingService.getTreatmentMapping(IRCC_CRC_DATA_SOURCE, TREATMENT_NAME);
+    mappingService.updateRecords(
+        Collections.singletonList(changed(database.get(3L), "Sodium Chloride", "validated")));
+
+    mappingService.rebuildDatabaseFromRulesFiles();
+
+    // The rules files have the journaled change and the ids of the rebuilt database
+    MappingEntity rebuilt = database.get(3L + REBUILT_ID_OFFSET);
+    assertThat(rebuilt.getMappedTermLabel(), is("Sodium Chloride"));
+    JsonNode mappings = new ObjectMapper()
+        .readTree(mappingDirectory.resolve("treatment_mappings.json").toFile()).get("mappings");
+    assertThat(mappings.size(), is(2));
+    assertThat(mappings.get(0).get("entityId").asLong(), is(3L + REBUILT_ID_OFFSET));
+    assertThat(Files.exists(mappingDirectory.resolve("journal/treatment.journal")), is(false));
+    try (Stream<Path> archived = Files.list(mappingDirectory.resolve("journal/archive"))) {
+      assertThat(archived.count(), is(1L));
+    }
+
+    mappingService.updateRecords(Collections.singletonList(changed(rebuilt, "-", "unmapped")));
+
+    assertThat(mappingService.getTreatmentMapping(IRCC_CRC_DATA_SOURCE, TREATMENT_NAME),
+        is(nullValue()));
+    MappingService restarted = newMappingService(directory);
+    assertThat(restarted.getTreatmentMapping(IRCC_CRC_DATA_SOURCE, TREATMENT_NAME),
+        is(nullValue()));
+    assertThat(restarted.getMappingContainer().getEntityList().size(), is(3));
+  }
+
+  @Test
+  public void givenUnmappedRecordWhenReplayedThenRuleRemoved(@TempDir Path directory)
+      throws IOException {
+    copyRulesFiles(directory);
+    Map<Long, MappingEntity> database = mockDatabase(getExpectedMappingEntities());
+    MappingService mappingService = newMappingService(directory);
+    mappingService.getTreatmentMapping(IRCC_CRC_DATA_SOURCE, TREATMENT_NAME);
+
+    mappingService.updateRecords(
+        Collections.singletonList(changed(database.get(3L), "-", "unmapped")));
+
+    assertThat(mappingService.getTreatmentMapping(IRCC_CRC_DATA_SOURCE, TREATMENT_NAME),
+        is(nullValue()));
+    MappingService restarted = newMappingService(directory);
+    assertThat(restarted.getTreatmentMapping(IRCC_CRC_DATA_SOURCE, TREATMENT_NAME),
+        is(nullValue()));
+    assertThat(restarted.getMappingContainer().getEntityList().size(), is(3));
+  }
+
+  @Test
+  public void givenTruncatedLastRecordWhenRestartThenPreviousRecordsReplayedAndNextAppended(
+      @TempDir Path directory) throws IOException {
+    Path mappingDirectory = copyRulesFiles(directory);
+    Map<Long, MappingEntity> database = mockDatabase(getExpectedMappingEntities());
+    MappingService mappingService = newMappingService(directory);
+    mappingService.getTreatmentMapping(IRCC_CRC_DATA_SOURCE, TREATMENT_NAME);
+    mappingService.updateRecords(
+        Collections.singletonList(changed(database.get(3L), "Sodium Chloride", "validated")));
+    mappingService.getJournal().close();
+    // A record cut short when the application stopped
+    Path journal = mappingDirectory.resolve("journal/treatment.journal");
+    Files.write(journal, "{\"entityId\":3,\"entityType\":\"treatment\",\"mappedTermLa"
+        .getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+    MappingService restarted = newMappingService(directory);
+
+    assertThat(restarted.getTreatmentMapping(IRCC_CRC_DATA_SOURCE, TREATMENT_NAME)
+        .getMappedTermLabel(), is("Sodium Chloride"));
+    restarted.updateRecords(
+        Collections.singletonList(changed(database.get(3L), "NaCl", "validated")));
+    assertThat(Files.readAllLines(journal).size(), is(2));
+    assertThat(newMappingService(directory).getTreatmentMapping(IRCC_CRC_DATA_SOURCE,
+        TREATMENT_NAME).getMappedTermLabel(), is("NaCl"));
+  }
+
+  @Test
+  public void givenRulesFileWriteFailsWhenCompactedThenSegmentsReplayedAndFoldedByNextWrite(
+      @TempDir Path directory) throws IOException {
+    Path mappingDirectory = copyRulesFiles(directory);
+    Path rulesFile = mappingDirectory.resolve("treatment_mappings.json");
+    byte[] rules = Files.readAllBytes(rulesFile);
+    Map<Long, MappingEntity> database = mockDatabase(getExpectedMappingEntities());
+    MappingService mappingService = newMappingService(directory);
+    mappingService.getTreatmentMapping(IRCC_CRC_DATA_SOURCE, TREATMENT_NAME);
+    mappingService.updateRecords(
+        Collections.singletonList(changed(database.get(3L), "Sodium Chloride", "validated")));
+    doThrow(new IllegalStateException("Database unavailable")).when(mappingEntityRepository)
+        .findByEntityTypeAndStatusIsNot(MappingEntityType.TREATMENT.getLabel(), "unmapped");
+
+    mappingService.writePendingMappings();
+
+    assertThat(Files.readAllBytes(rulesFile), is(rules));
+    assertThat(journalSegments(mappingDirectory).size(), is(1));
+    assertThat(newMappingService(directory).getTreatmentMapping(IRCC_CRC_DATA_SOURCE,
+        TREATMENT_NAME).getMappedTermLabel(), is("Sodium Chloride"));
+
+    mockDatabase(new ArrayList<>(database.values()));
+    newMappingService(directory).writeMappingsToFile(MappingEntityType.TREATMENT.getLabel());
+
+    assertThat(journalSegments(mappingDirectory).size(), is(0));
+    try (Stream<Path> archived = Files.list(mappingDirectory.resolve("journal/archive"))) {
+      assertThat(archived.count(), is(1L));
+    }
+    assertThat(newMappingService(directory).getTreatmentMapping(IRCC_CRC_DATA_SOURCE,
+        TREATMENT_NAME).getMappedTermLabel(), is("Sodium Chloride"));
+  }
+
+  @Test
+  public void givenJournalAppendFailsWhenUpdateRecordsThenRulesFileWrittenOrUpdateFails(
+      @TempDir Path directory) throws IOException {
+    Path mappingDirectory = copyRulesFiles(directory);
+    // The journals cannot be created where a file is
+    Files.createFile(mappingDirectory.resolve("journal"));
+    Map<Long, MappingEntity> database = mockDatabase(getExpectedMappingEntities());
+    MappingService mappingService = newMappingService(directory);
+    mappingService.getTreatmentMapping(IRCC_CRC_DATA_SOURCE, TREATMENT_NAME);
+
+    mappingService.updateRecords(
+        Collections.singletonList(changed(database.get(3L), "Sodium Chloride", "validated")));
+
+    JsonNode mappings = new ObjectMapper()
+        .readTree(mappingDirectory.resolve("treatment_mappings.json").toFile()).get("mappings");
+    assertThat(mappings.get(0).get("mappedTermLabel").asText(), is("Sodium Chloride"));
+    assertThat(mappingService.getTreatmentMapping(IRCC_CRC_DATA_SOURCE, TREATMENT_NAME)
+        .getMappedTermLabel(), is("Sodium Chloride"));
+
+    doThrow(new IllegalStateException("Database unavailable")).when(mappingEntityRepository)
+        .findByEntityTypeAndStatusIsNot(MappingEntityType.TREATMENT.getLabel(), "unmapped");
+    List<MappingEntity> changes =
+        Collections.singletonList(changed(database.get(3L), "NaCl", "validated"));
+
+    assertThrows(IllegalStateException.class, () -> mappingService.updateRecords(changes));
+  }
+
+  @Test
+  public void givenUpdatesWhenJournalCompactedThenRulesFileWrittenOnceAndJournalArchived(
+      @TempDir Path directory) throws IOException {
+    Path mappingDirectory = copyRulesFiles(directory);
+    Path rulesFile = mappingDirectory.resolve("treatment_mappings.json");
+    byte[] rules = Files.readAllBytes(rulesFile);
+    MappingEntity mappingEntity = MappingEntityUtil.findById(getExpectedMappingEntities(), 3L);
+    mappingEntity.setMappedTermLabel("Sodium Chloride");
+    doReturn(Optional.of(mappingEntity)).when(mappingEntityRepository).findByEntityId(3L);
+    doReturn(mappingEntity).when(mappingEntityRepository).save(mappingEntity);
+    doReturn(Collections.singletonList(mappingEntity)).when(mappingEntityRepository)
+        .findByEntityTypeAndStatusIsNot(MappingEntityType.TREATMENT.getLabel(), "unmapped");
+
+    MappingService writer = newMappingService(directory);
+    assertThat(writer.getTreatmentMapping(IRCC_CRC_DATA_SOURCE, TREATMENT_NAME)
+        .getMappedTermLabel(), is("Saline"));
+    writer.updateRecords(Collections.singletonList(mappingEntity));
+    writer.updateRecords(Collections.singletonList(mappingEntity));
+
+    // Journaled and in memory, the rules file is left as it is until compacted
+    assertThat(Files.readAllBytes(rulesFile), is(rules));
+    Path journal = mappingDirectory.resolve("journal/treatment.journal");
+    assertThat(Files.readAllLines(journal).size(), is(2));
+    assertThat(writer.getTreatmentMapping(IRCC_CRC_DATA_SOURCE, TREATMENT_NAME)
+        .getMappedTermLabel(), is("Sodium Chloride"));
+    assertThat(newMappingService(directory).getTreatmentMapping(IRCC_CRC_DATA_SOURCE,
+        TREATMENT_NAME).getMappedTermLabel(), is("Sodium Chloride"));
+
+    writer.writePendingMappings();
+
+    verify(mappingEntityRepository, times(1))
+        .findByEntityTypeAndStatusIsNot(MappingEntityType.TREATMENT.getLabel(), "unmapped");
+    JsonNode mappings = new ObjectMapper().readTree(rulesFile.toFile()).get("mappings");
+    assertThat(mappings.size(), is(1));
+    assertThat(mappings.get(0).get("mappedTermLabel").asText(), is("Sodium Chloride"));
+    assertThat(Files.exists(journal), is(false));
+    try (Stream<Path> archived = Files.list(mappingDirectory.resolve("journal/archive"))) {
+      assertThat(archived.count(), is(1L));
+    }
+    try (Stream<Path> files = Files.list(mappingDirectory)) {
+      assertThat(files.filter(x -> x.toString().endsWith(".tmp")).count(), is(0L));
+    }
+    assertThat(newMappingService(directory).getTreatmentMapping(IRCC_CRC_DATA_SOURCE,
+        TREATMENT_NAME).getMappedTermLabel(), is("Sodium Chloride"));
+  }
+
+  private Path copyRulesFiles(Path directory) throws IOException {
+    Path mappingDirectory = Files.createDirectories(directory.resolve("mapping"));
+    for (String fileName : new String[]{"diagnosis_mappings.json", "treatment_mappings.json"}) {
+      Files.copy(Paths.get(rootDir, "mapping", fileName), mappingDirectory.resolve(fileName));
+    }
+    return mappingDirectory;
+  }
+
+  private static List<Path> journalSegments(Path mappingDirectory) throws IOException {
+    try (Stream<Path> files = Files.list(mappingDirectory.resolve("journal"))) {
+      return files.filter(x -> x.getFileName().toString().matches("treatment\\.\\d+\\.journal"))
+          .collect(Collectors.toList());
+    }
+  }
+
+  /**
+   * Backs the repository with a map of the entities by id. Rebuilt entities get new ids.
+   */
+  private Map<Long, MappingEntity> mockDatabase(List<MappingEntity> entities) {
+    Map<Long, MappingEntity> database = new TreeMap<>();
+    entities.forEach(x -> database.put(x.getEntityId(), x));
+    doAnswer(invocation -> Optional.ofNullable(database.get(invocation.<Long>getArgument(0))))
+        .when(mappingEntityRepository).findByEntityId(any());
+    doAnswer(invocation -> {
+      MappingEntity entity = invocation.getArgument(0);
+      database.put(entity.getEntityId(), entity);
+      return entity;
+    }).when(mappingEntityRepository).save(any());
+    doAnswer(invocation -> {
+      List<MappingEntity> saved = new ArrayList<>();
+      for (MappingEntity entity : invocation.<List<MappingEntity>>getArgument(0)) {
+        MappingEntity copy = MappingSuggestionIndex.detachedCopy(entity);
+        copy.setEntityId(entity.getEntityId() + REBUILT_ID_OFFSET);
+        database.put(copy.getEntityId(), copy);
+        saved.add(copy);
+      }
+      return saved;
+    }).when(mappingEntityRepository).saveAll(any());
+    doAnswer(invocation -> new ArrayList<>(database.values()))
+        .when(mappingEntityRepository).findAll();
+    doAnswer(invocation -> {
+      database.clear();
+      return null;
+    }).when(mappingEntityRepository).deleteAll();
+    doAnswer(invocation -> database.values().stream()
+        .filter(x -> x.getEntityType().equals(invocation.getArgument(0)))
+        .filter(x -> !x.getStatus().equalsIgnoreCase(invocation.getArgument(1)))
+        .collect(Collectors.toList()))
+        .when(mappingEntityRepository).findByEntityTypeAndStatusIsNot(any(), any());
+    return database;
+  }
+
+  private static MappingEntity changed(MappingEntity entity, String mappedTermLabel,
+      String status) {
+    MappingEntity change = MappingSuggestionIndex.detachedCopy(entity);
+    change.setMappedTermLabel(mappedTermLabel);
+    change.setStatus(status);
+    return change;
+  }
+
+  private MappingService newMappingService(Path directory) {
+    MappingService mappingService = new MappingService(
+        mappingEntityRepository, utilityService, paginationService, mock(SuggestionService.class));
+    ReflectionTestUtils.setField(mappingService, "rootDir", directory.toString());
+    ReflectionTestUtils.setField(mappingService, "journalSyncIntervalMs", 0L);
+    return mappingService;
   }
 }
@@ -0,0 +1,417 @@
+package org.pdxfinder;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.pdxfinder.constants.DiagnosisMappingLabels;
+import org.pdxfinder.constants.MappingEntityType;
+import org.pdxfinder.constants.TreatmentMappingLabels;
+import org.pdxfinder.repositories.MappingEntityRepository;
+import org.pdxfinder.repositories.OntologyTermRepository;
+import org.pdxfinder.utils.DamerauLevenshteinAlgorithm;
+import org.springframework.test.util.ReflectionTestUtils;
+
+class SuggestionServiceTest {
+
+  private static final String[] WORDS = {"carcinoma", "adenocarcinoma", "melanoma", "lymphoma",
+      "acute", "myeloid", "leukemia", "colon", "lung", "breast", "cell", "small", "b-cell",
+      "5-fluorouracil", "cisplatin", "carboplatin", "oxaliplatin", "Cetuximab", "IRINOTECAN"};
+
+  private static final String[] DATA_SOURCES = {"jax", "ircc-crc", "trace", "curie-bc"};
+
+  private final Random random = new Random(42);
+
+  private MappingEntityRepository mappingEntityRepository;
+
+  private OntologyTermRepository ontologyTermRepository;
+
+  private SuggestionService testInstance;
+
+  private List<MappingEntity> diagnosisEntities;
+
+  private List<MappingEntity> treatmentEntities;
+
+  @BeforeEach
+  void setUp() {
+    diagnosisEntities = new ArrayList<>();
+    treatmentEntities = new ArrayList<>();
+    for (long id = 0; id < 600; id++) {
+      diagnosisEntities.add(diagnosis(id, randomText(3), randomText(1), randomText(1)));
+      treatmentEntities.add(treatment(id + 1000, randomText(2)));
+    }
+    // Mapping keys are unique in the database
+    diagnosisEntities = distinctKeys(diagnosisEntities);
+    treatmentEntities = distinctKeys(treatmentEntities);
+
+    mappingEntityRepository = mock(MappingEntityRepository.class);
+    when(mappingEntityRepository.findByEntityTypeAndMapTypeIsNotNull(
+        MappingEntityType.DIAGNOSIS.getLabel())).thenReturn(diagnosisEntities);
+    when(mappingEntityRepository.findByEntityTypeAndMapTypeIsNotNull(
+        MappingEntityType.TREATMENT.getLabel())).thenReturn(treatmentEntities);
+    ontologyTermRepository = mock(OntologyTermRepository.class);
+    testInstance = new SuggestionService(mappingEntityRepository, ontologyTermRepository);
+  }
+
+  @Test
+  public void givenMappedEntitiesWhenGetSuggestionsThenSameRankingAsExhaustiveScan() {
+    for (int i = 0; i < 50; i++) {
+      MappingEntity unmappedDiagnosis =
+          diagnosis(5000L + i, randomText(3), randomText(1), randomText(1));
+      unmappedDiagnosis.setMapType(null);
+      assertThat(keys(testInstance.getSuggestions(unmappedDiagnosis)),
+          is(keys(exhaustiveSuggestions(unmappedDiagnosis, diagnosisEntities))));
+
+      MappingEntity unmappedTreatment = treatment(6000L + i, randomText(2));
+      unmappedTreatment.setMapType(null);
+      assertThat(keys(testInstance.getSuggestions(unmappedTreatment)),
+          is(keys(exhaustiveSuggestions(unmappedTreatment, treatmentEntities))));
+    }
+  }
+
+  @Test
+  public void givenMappedEntityWhenGetSuggestionsThenEntityIsNotSuggested() {
+    MappingEntity mapped = diagnosisEntities.get(0);
+
+    List<String> suggestions = keys(testInstance.getSuggestions(mapped));
+
+    assertThat(suggestions.contains(mapped.getMappingKey()), is(false));
+    assertThat(suggestions, is(keys(exhaustiveSuggestions(mapped, diagnosisEntities))));
+  }
+
+  @Test
+  public void givenEntitiesUpdatedWhenGetSuggestionsThenIndexReflectsChanges() {
+    MappingEntity unmapped = diagnosis(7000L, randomText(3), randomText(1), randomText(1));
+    unmapped.setMapType(null);
+    testInstance.getSuggestions(unmapped);
+
+    MappingEntity exactMatch = diagnosis(7001L, "x", "y", "z");
+    exactMatch.setMappingValues(new HashMap<>(unmapped.getMappingValues()));
+    exactMatch.getMappingValues().put(DiagnosisMappingLabels.DATA_SOURCE.getLabel(), "new-source");
+    exactMatch.setMappingKey(exactMatch.generateMappingKey());
+    MappingEntity unmappedAgain = diagnosisEntities.remove(1);
+    unmappedAgain.setMapType(null);
+    diagnosisEntities.add(exactMatch);
+    testInstance.entitiesUpdated(Arrays.asList(exactMatch, unmappedAgain));
+
+    List<MappingEntity> suggestions = testInstance.getSuggestions(unmapped);
+
+    assertThat(suggestions.get(0).getMappingKey(), is(exactMatch.getMappingKey()));
+    assertThat(keys(suggestions), is(keys(exhaustiveSuggestions(unmapped, diagnosisEntities))));
+  }
+
+  @Test
+  public void givenParallelModeWhenAssignSuggestionsThenSameSuggestionsAsSequential() {
+    ReflectionTestUtils.setField(testInstance, "parallelEnabled", true);
+    ReflectionTestUtils.setField(testInstance, "parallelThreads", 4);
+    ReflectionTestUtils.setField(testInstance, "deadlineMs", 60000L);
+    List<MappingEntity> page = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      MappingEntity unmapped = treatment(8000L + i, randomText(2));
+      unmapped.setMapType(null);
+      page.add(unmapped);
+    }
+
+    boolean complete = testInstance.assignSuggestions(page);
+
+    assertThat(complete, is(true));
+    for (MappingEntity unmapped : page) {
+      assertThat(keys(unmapped.getSuggestedMappings()),
+          is(keys(exhaustiveSuggestions(unmapped, treatmentEntities))));
+    }
+    testInstance.shutdown();
+  }
+
+  @Test
+  public void givenDeadlineReachedWhenAssignSuggestionsThenIncompleteAndEmptySuggestions() {
+    ReflectionTestUtils.setField(testInstance, "deadlineMs", 0L);
+    MappingEntity unmapped = treatment(9000L, randomText(2));
+    unmapped.setMapType(null);
+
+    boolean complete = testInstance.assignSuggestions(Arrays.asList(unmapped));
+
+    assertThat(complete, is(false));
+    assertThat(unmapped.getSuggestedMappings().isEmpty(), is(true));
+  }
+
+  @Test
+  public void givenDeadlineReachedWhenAssignSuggestionsInParallelThenRunningTasksStopUncached() {
+    ReflectionTestUtils.setField(testInstance, "parallelEnabled", true);
+    ReflectionTestUtils.setField(testInstance, "parallelThreads", 2);
+    ReflectionTestUtils.setField(testInstance, "deadlineMs", 0L);
+    List<MappingEntity> page = new ArrayList<>();
+    for (int i = 0; i < 40; i++) {
+      MappingEntity unmapped = diagnosis(9500L + i, randomText(3), randomText(1), randomText(1));
+      unmapped.setMapType(null);
+      page.add(unmapped);
+    }
+
+    boolean complete = testInstance.assignSuggestions(page);
+    ForkJoinPool pool = (ForkJoinPool) ReflectionTestUtils.getField(testInstance, "suggestionPool");
+    pool.awaitQuiescence(10, TimeUnit.SECONDS);
+
+    assertThat(complete, is(false));
+    page.forEach(x -> assertThat(x.getSuggestedMappings().isEmpty(), is(true)));
+    // The tasks gave up at their first candidate, none of them got to cache suggestions
+    assertThat(testInstance.getSuggestionCache().asMap().isEmpty(), is(true));
+    testInstance.shutdown();
+  }
+
+  @Test
+  public void givenPrefilterValidationWhenGetSuggestionsThenRankingOfExhaustiveScan() {
+    ReflectionTestUtils.setField(testInstance, "prefilterEnabled", true);
+    ReflectionTestUtils.setField(testInstance, "prefilterCandidates", 400);
+    ReflectionTestUtils.setField(testInstance, "prefilterValidate", true);
+    int queries = 100;
+
+    for (int i = 0; i < queries; i++) {
+      MappingEntity unmapped = diagnosis(10000L + i, randomText(3), randomText(1), randomText(1));
+      unmapped.setMapType(null);
+      if (i == queries / 2) {
+        // Mapped entities come and go from the n-gram index as well
+        MappingEntity unmappedAgain = diagnosisEntities.remove(0);
+        unmappedAgain.setMapType(null);
+        MappingEntity newlyMapped = diagnosis(20000L, randomText(3), randomText(1), randomText(1));
+        diagnosisEntities.add(newlyMapped);
+        testInstance.entitiesUpdated(Arrays.asList(unmappedAgain, newlyMapped));
+      }
+
+      // Validation mode falls back to the exhaustive ranking whenever the prefilter misses
+      assertThat(keys(testInstance.getSuggestions(unmapped)),
+          is(keys(exhaustiveSuggestions(unmapped, diagnosisEntities))));
+    }
+    assertThat(testInstance.getPrefilterMismatches() < queries / 10, is(true));
+  }
+
+  @Test
+  public void givenCachedSuggestionsWhenOtherTypeUpdatedThenOnlyThatTypeIsInvalidated() {
+    MappingEntity unmappedDiagnosis =
+        diagnosis(11000L, randomText(3), randomText(1), randomText(1));
+    unmappedDiagnosis.setMapType(null);
+    MappingEntity unmappedTreatment = treatment(11001L, randomText(2));
+    unmappedTreatment.setMapType(null);
+    testInstance.getSuggestions(unmappedDiagnosis);
+    testInstance.getSuggestions(unmappedTreatment);
+
+    testInstance.getSuggestions(unmappedDiagnosis);
+    assertThat(testInstance.getSuggestionCache().stats().hitCount(), is(1L));
+
+    MappingEntity newlyMapped = treatment(11002L, randomText(2));
+    testInstance.entitiesUpdated(Arrays.asList(newlyMapped));
+    testInstance.getSuggestions(unmappedDiagnosis);
+    testInstance.getSuggestions(unmappedTreatment);
+
+    assertThat(testInstance.getSuggestionCache().stats().hitCount(), is(2L));
+    assertThat(testInstance.getSuggestionCache().stats().missCount(), is(3L));
+  }
+
+  @Test
+  public void givenUnmappedEntityNotInCorpusWhenEntitiesUpdatedThenCacheIsKept() {
+    MappingEntity unmapped = treatment(12000L, randomText(2));
+    unmapped.setMapType(null);
+    testInstance.getSuggestions(unmapped);
+
+    testInstance.entitiesUpdated(Arrays.asList(unmapped));
+    testInstance.getSuggestions(unmapped);
+
+    assertThat(testInstance.getSuggestionCache().stats().hitCount(), is(1L));
+  }
+
+  @Test
+  public void givenPrecomputedSuggestionsWhenGetSuggestionsThenStoredUntilCorpusChanges()
+      throws InterruptedException {
+    ReflectionTestUtils.setField(testInstance, "precomputeEnabled", true);
+    List<MappingEntity> discovered = new ArrayList<>();
+    for (int i = 0; i < 30; i++) {
+      MappingEntity unmapped = treatment(14000L + i, randomText(2));
+      unmapped.setMapType(null);
+      discovered.add(unmapped);
+    }
+    discovered = distinctKeys(discovered);
+
+    testInstance.precomputeSuggestions(discovered);
+    long deadline = System.currentTimeMillis() + 60000;
+    while (testInstance.getPrecomputeCompleted() < discovered.size()
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    assertThat(testInstance.getPrecomputeTotal(), is(discovered.size()));
+    assertThat(testInstance.getStoredSuggestionCount(), is(discovered.size()));
+    // Near duplicates share the suggestions of their cluster
+    for (MappingCluster cluster : testInstance.clusterUnmappedEntities(discovered)) {
+      List<String> expected =
+          keys(exhaustiveSuggestions(cluster.getRepresentative(), treatmentEntities));
+      for (MappingEntity unmapped : cluster.getEntities()) {
+        assertThat(keys(testInstance.getSuggestions(unmapped)), is(expected));
+      }
+    }
+    assertThat(testInstance.getSuggestionCache().stats().missCount(), is(0L));
+
+    MappingEntity newlyMapped = treatment(14100L, randomText(2));
+    treatmentEntities.add(newlyMapped);
+    testInstance.entitiesUpdated(Arrays.asList(newlyMapped));
+
+    assertThat(testInstance.getStoredSuggestionCount(), is(0));
+    MappingEntity unmapped = discovered.get(0);
+    assertThat(keys(testInstance.getSuggestions(unmapped)),
+        is(keys(exhaustiveSuggestions(unmapped, treatmentEntities))));
+    assertThat(testInstance.getSuggestionCache().stats().missCount(), is(1L));
+    testInstance.shutdown();
+  }
+
+  @Test
+  public void givenOntologySynonymCloseToDiagnosisWhenGetSuggestionsThenTermIsSuggestedFirst() {
+    ReflectionTestUtils.setField(testInstance, "ontologyEnabled", true);
+    OntologyTerm term = new OntologyTerm("http://purl.obolibrary.org/obo/NCIT_C4872",
+        "Breast Carcinoma", "diagnosis");
+    term.setId(1L);
+    term.setSynonyms(new HashSet<>(Arrays.asList("Mammary Carcinoma", "Breast Cancer")));
+    when(ontologyTermRepository.findAllWithSynonymsByType("diagnosis"))
+        .thenReturn(Collections.singletonList(term));
+    // Without other attributes to match, the term is only scored on its name
+    MappingEntity unmapped = diagnosis(13000L, "mammary carcinomas", "", "");
+    unmapped.setMapType(null);
+
+    List<MappingEntity> suggestions = testInstance.getSuggestions(unmapped);
+
+    assertThat(suggestions.size(), is(SuggestionService.MAX_SUGGESTIONS));
+    assertThat(suggestions.get(0).getMappedTermUrl(), is(term.getUrl()));
+    assertThat(suggestions.get(0).getMappingValues().get(
+        DiagnosisMappingLabels.SAMPLE_DIAGNOSIS.getLabel()), is("Mammary Carcinoma"));
+    // The other places still go to the closest mapped entities
+    assertThat(keys(suggestions.subList(1, suggestions.size())), is(keys(
+        exhaustiveSuggestions(unmapped, diagnosisEntities).subList(0, suggestions.size() - 1))));
+
+    testInstance.ontologyTermsUpdated("diagnosis");
+    when(ontologyTermRepository.findAllWithSynonymsByType("diagnosis"))
+        .thenReturn(Collections.emptyList());
+    assertThat(keys(testInstance.getSuggestions(unmapped)),
+        is(keys(exhaustiveSuggestions(unmapped, diagnosisEntities))));
+  }
+
+  @Test
+  public void givenMappedEntityMatchingMoreThanTermWhenGetSuggestionsThenTermNotDuplicated() {
+    ReflectionTestUtils.setField(testInstance, "ontologyEnabled", true);
+    OntologyTerm term = new OntologyTerm("http://purl.obolibrary.org/obo/NCIT_C4872",
+        "Breast Carcinoma", "diagnosis");
+    term.setId(1L);
+    when(ontologyTermRepository.findAllWithSynonymsByType("diagnosis"))
+        .thenReturn(Collections.singletonList(term));
+    MappingEntity sameTerm = diagnosis(14000L, "breast carcinomas", "mammary gland", "primary");
+    sameTerm.setMappedTermUrl(term.getUrl());
+    MappingEntity otherTerm = diagnosis(14001L, "breast carcinomas", "mammary gland", "primary");
+    otherTerm.setMappedTermUrl("http://purl.obolibrary.org/obo/NCIT_C9335");
+    diagnosisEntities.add(sameTerm);
+    diagnosisEntities.add(otherTerm);
+    MappingEntity unmapped = diagnosis(13000L, "breast carcinoma", "mammary gland", "primary");
+    unmapped.setMapType(null);
+
+    List<MappingEntity> suggestions = testInstance.getSuggestions(unmapped);
+
+    // Mapped entities matching the other attributes rank before the term with the same name
+    assertThat(suggestions.get(0).getEntityId(), is(14000L));
+    assertThat(suggestions.get(1).getEntityId(), is(14001L));
+    assertThat(suggestions.size(), is(SuggestionService.MAX_SUGGESTIONS));
+    assertThat(suggestions.stream().filter(x -> x.getEntityId() == null).count(), is(0L));
+  }
+
+  private String randomText(int words) {
+    List<String> parts = new ArrayList<>();
+    for (int i = 0; i < words; i++) {
+      String word = WORDS[random.nextInt(WORDS.length)];
+      if (random.nextInt(4) == 0) {
+        int position = random.nextInt(word.length());
+        word = word.substring(0, position) + word.substring(position + 1);
+      }
+      parts.add(word);
+    }
+    return String.join(" ", parts);
+  }
+
+  private MappingEntity diagnosis(Long id, String sampleDiagnosis, String originTissue,
+      String tumorType) {
+    Map<String, String> values = new HashMap<>();
+    values.put(DiagnosisMappingLabels.DATA_SOURCE.getLabel(),
+        DATA_SOURCES[random.nextInt(DATA_SOURCES.length)]);
+    values.put(DiagnosisMappingLabels.SAMPLE_DIAGNOSIS.getLabel(), sampleDiagnosis);
+    values.put(DiagnosisMappingLabels.ORIGIN_TISSUE.getLabel(), originTissue);
+    values.put(DiagnosisMappingLabels.TUMOR_TYPE.getLabel(), tumorType);
+    return entity(id, MappingEntityType.DIAGNOSIS.getLabel(), values);
+  }
+
+  private MappingEntity treatment(Long id, String treatmentName) {
+    Map<String, String> values = new HashMap<>();
+    values.put(TreatmentMappingLabels.DATA_SOURCE.getLabel(),
+        DATA_SOURCES[random.nextInt(DATA_SOURCES.length)]);
+    values.put(TreatmentMappingLabels.TREATMENT_TYPE.getLabel(), treatmentName);
+    return entity(id, MappingEntityType.TREATMENT.getLabel(), values);
+  }
+
+  private MappingEntity entity(Long id, String entityType, Map<String, String> values) {
+    MappingEntity entity = new MappingEntity(entityType, new ArrayList<>(values.keySet()), values);
+    entity.setEntityId(id);
+    entity.setMapType("direct");
+    entity.setMappingKey(entity.generateMappingKey());
+    return entity;
+  }
+
+  private static List<MappingEntity> distinctKeys(List<MappingEntity> entities) {
+    Map<String, MappingEntity> byKey = new LinkedHashMap<>();
+    entities.forEach(x -> byKey.putIfAbsent(x.getMappingKey(), x));
+    return new ArrayList<>(byKey.values());
+  }
+
+  private static List<String> keys(List<MappingEntity> entities) {
+    return entities.stream().map(MappingEntity::getMappingKey).collect(Collectors.toList());
+  }
+
+  // Straight scan of the whole corpus, as suggestions were computed before the index existed
+  private static List<MappingEntity> exhaustiveSuggestions(MappingEntity me,
+      List<MappingEntity> corpus) {
+
+    DamerauLevenshteinAlgorithm dla = new DamerauLevenshteinAlgorithm(1, 1, 2, 2);
+    Map<MappingEntity, Integer> scores = new IdentityHashMap<>();
+    corpus.stream()
+        .filter(x -> !x.getMappingKey().equals(me.getMappingKey()))
+        .forEach(x -> {
+          int score = 0;
+          for (String label : x.getMappingLabels()) {
+            String a = me.getMappingValues().get(label).toLowerCase();
+            String b = x.getMappingValues().get(label).toLowerCase();
+            int diff = dla.execute(a, b);
+            if (label.equals(DiagnosisMappingLabels.SAMPLE_DIAGNOSIS.getLabel())
+                || label.equals(TreatmentMappingLabels.TREATMENT_TYPE.getLabel())) {
+              score += diff * 5;
+            } else if (label.equals(DiagnosisMappingLabels.ORIGIN_TISSUE.getLabel())) {
+              score += diff > 4 ? 50 : diff;
+            } else {
+              score += diff > 4 ? 1 : diff;
+            }
+          }
+          scores.put(x, score);
+        });
+
+    return scores.keySet().stream()
+        .sorted((a, b) -> scores.get(a).equals(scores.get(b))
+            ? a.getEntityId().compareTo(b.getEntityId())
+            : Integer.compare(scores.get(a), scores.get(b)))
+        .limit(SuggestionService.MAX_SUGGESTIONS)
+        .collect(Collectors.toList());
+  }
+}
@@ -1,15 +1,22 @@
 package org.pdxfinder.controllers;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.pdxfinder.*;
 import org.pdxfinder.dto.PaginationDTO;
 import org.pdxfinder.util.JsonHelper;
@@ -21,13 +28,26 @@ import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 import static org.hamcrest.Matchers.is;
 import static org.mockito.Mockito.when;
@@ -85,6 +105,18 @@ class MappingsControllerTest {
   @MockBean
   private UtilityService utilityService;
 
+  @MockBean
+  private SuggestionService suggestionService;
+
+  @MockBean
+  private MappingClusterService mappingClusterService;
+
+  @MockBean
+  private MappingRulesArchives mappingRulesArchives;
+
+  @TempDir
+  Path directory;
+
   @BeforeEach
   void setUp() {
   }
@@ -162,6 +194,101 @@ class MappingsControllerTest {
         .andExpect(jsonPath("$.suggestedMappings", is(SUGGESTED_MAPPINGS)));
   }
 
+  @Test
+  public void given_entitiesExist_when_batchSuggestionsRequested_then_streamOneLinePerEntity()
+  throws Exception {
+    MappingEntity mappingEntity = new MappingEntity();
+    mappingEntity.setEntityId(ENTITY_ID);
+    mappingEntity.setEntityType(ENTITY_TYPE);
+    MappingEntity suggestion = new MappingEntity();
+    suggestion.setEntityId(ENTITY_ID + 1);
+    long missingId = ENTITY_ID + 2;
+
+    when(mappingService.getEntitiesForSuggestions(Arrays.asList(ENTITY_ID, missingId)))
+        .thenReturn(Collections.singletonList(mappingEntity));
+    doAnswer(invocation -> {
+      BiConsumer<MappingEntity, List<MappingEntity>> consumer = invocation.getArgument(2);
+      consumer.accept(mappingEntity, Collections.singletonList(suggestion));
+      return null;
+    }).when(suggestionService).streamSuggestions(any(), eq(3), any());
+
+    MvcResult result = this.mockMvc.perform(post(MAPPINGS_URL + "suggestions")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"entityIds\": [" + ENTITY_ID + ", " + missingId + "], \"k\": 3}"))
+        .andExpect(request().asyncStarted())
+        .andReturn();
+
+    String[] lines = this.mockMvc.perform(asyncDispatch(result))
+        .andExpect(status().isOk())
+        .andReturn().getResponse().getContentAsString().split("\n");
+    assertThat(lines.length, is(2));
+    assertThat(lines[0], containsString("Could not find entityId " + missingId));
+    assertThat(lines[1], containsString("\"entityId\":" + ENTITY_ID));
+    assertThat(lines[1],
+        containsString("\"suggestedMappings\":[{\"entityId\":" + (ENTITY_ID + 1)));
+  }
+
+  @Test
+  public void given_tooManySuggestionsRequested_when_batchSuggestionsRequested_then_badRequest()
+  throws Exception {
+    this.mockMvc.perform(post(MAPPINGS_URL + "suggestions")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"entityIds\": [" + ENTITY_ID + "], \"k\": 1000}"))
+        .andExpect(status().isBadRequest());
+  }
+
+  @Test
+  public void given_nullOrTooManyEntityIds_when_batchSuggestionsRequested_then_badRequest()
+  throws Exception {
+    this.mockMvc.perform(post(MAPPINGS_URL + "suggestions")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"entityIds\": [" + ENTITY_ID + ", null]}"))
+        .andExpect(status().isBadRequest());
+
+    String entityIds = LongStream.rangeClosed(1, 1001).mapToObj(String::valueOf)
+        .collect(Collectors.joining(", "));
+    this.mockMvc.perform(post(MAPPINGS_URL + "suggestions")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"entityIds\": [" + entityIds + "]}"))
+        .andExpect(status().isBadRequest());
+    verifyNoInteractions(suggestionService);
+  }
+
+  @Test
+  public void given_clusterReviewed_when_clusterMapped_then_mappedOnlyWhenEntitiesUnchanged()
+  throws Exception {
+    List<MappingEntity> entities = new ArrayList<>();
+    for (long id = ENTITY_ID; id < ENTITY_ID + 2; id++) {
+      MappingEntity entity = getMappingEntity();
+      entity.setEntityId(id);
+      entity.setMappingKey(entity.generateMappingKey());
+      entities.add(entity);
+    }
+    MappingCluster cluster = MappingCluster.cluster(entities, 0).get(0);
+    when(mappingClusterService.getCluster(ENTITY_ID)).thenReturn(Optional.of(cluster));
+    when(mappingClusterService.getCluster(ENTITY_ID + 2)).thenReturn(Optional.empty());
+    when(mappingClusterService.mapCluster(eq(cluster), any())).thenReturn(entities);
+    String mapping = "\"mapping\": {\"mappedTermLabel\": \"" + MAPPED_TERM_LABEL + "\"}";
+
+    this.mockMvc.perform(put(MAPPINGS_URL + "clusters/" + (ENTITY_ID + 2))
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"entityIds\": [" + (ENTITY_ID + 2) + "], " + mapping + "}"))
+        .andExpect(status().isNotFound());
+    // Another entity joined the cluster since it was reviewed
+    this.mockMvc.perform(put(MAPPINGS_URL + "clusters/" + ENTITY_ID)
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"entityIds\": [" + ENTITY_ID + "], " + mapping + "}"))
+        .andExpect(status().isConflict());
+    verify(mappingClusterService, never()).mapCluster(any(), any());
+
+    this.mockMvc.perform(put(MAPPINGS_URL + "clusters/" + ENTITY_ID)
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"entityIds\": [" + (ENTITY_ID + 1) + ", " + ENTITY_ID + "], "
+            + mapping + "}"))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.length()", is(2)));
+  }
+
   @Test
   public void given_mappingSummariesExist_when_oneSummaryTypeSearched_then_returnMappingSummariesByType()
   throws Exception {
@@ -334,16 +461,41 @@ class MappingsControllerTest {
 
   @Test
   public void givenMappingsRulesExistWhenGetZipOfMappingRulesThenReturnZip() throws Exception {
-    List<MappingEntity> mappingEntities = new ArrayList<>();
-    MappingEntity mockedMappingEntity = getMappingEntity();
-    mappingEntities.add(mockedMappingEntity);
     String url = MAPPINGS_URL + "mappingRules";
-    PaginationDTO paginationDTO = new PaginationDTO();
-    paginationDTO.setPage(PAGE);
-    paginationDTO.setSize(SIZE);
-    paginationDTO.setTotalElements(TOTAL_ELEMENTS);
+    Path file = Files.write(directory.resolve("mappingRules.zip"), new byte[]{1, 2, 3});
+    when(mappingRulesArchives.getMappingRulesArchive())
+        .thenReturn(Optional.of(new MappingRulesArchives.Archive("key", "etag", file)));
 
-    this.mockMvc.perform(get(url)).andExpect(status().isOk());
+    this.mockMvc.perform(get(url))
+        .andExpect(status().isOk())
+        .andExpect(header().string("ETag", "\"etag\""))
+        .andExpect(content().bytes(new byte[]{1, 2, 3}));
+  }
+
+  @Test
+  public void givenArchiveUnchangedWhenGetEurOPDXMappingsRulesThenNotModified() throws Exception {
+    String url = MAPPINGS_URL + "getEurOPDXMappingsRules";
+    Path file = Files.write(directory.resolve("EurOPDX_mappingRules.zip"), new byte[]{1, 2, 3});
+    when(mappingRulesArchives.getEurOPDXMappingRulesArchive())
+        .thenReturn(Optional.of(new MappingRulesArchives.Archive("1", "etag", file)));
+
+    this.mockMvc.perform(get(url).header("If-None-Match", "\"etag\""))
+        .andExpect(status().isNotModified())
+        .andExpect(content().bytes(new byte[0]));
+    this.mockMvc.perform(get(url).header("If-None-Match", "\"other\""))
+        .andExpect(status().isOk())
+        .andExpect(content().bytes(new byte[]{1, 2, 3}));
+  }
+
+  @Test
+  public void givenRulesNotReadyWhenGetArchivesThenServiceUnavailable() throws Exception {
+    when(mappingRulesArchives.getMappingRulesArchive()).thenReturn(Optional.empty());
+    when(mappingRulesArchives.getEurOPDXMappingRulesArchive()).thenReturn(Optional.empty());
+
+    this.mockMvc.perform(get(MAPPINGS_URL + "mappingRules"))
+        .andExpect(status().isServiceUnavailable());
+    this.mockMvc.perform(get(MAPPINGS_URL + "getEurOPDXMappingsRules"))
+        .andExpect(status().isServiceUnavailable());
   }
 
   private MappingContainer getMappingContainer() {
@@ -0,0 +1,228 @@
+package org.pdxfinder.utils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class DamerauLevenshteinAlgorithmTest {
+
+  private static final int[][] COSTS = {{1, 1, 2, 2}, {1, 1, 1, 1}, {2, 1, 3, 2}, {1, 3, 1, 2},
+      {3, 1, 1, 3}, {1, 1, 3, 1}, {1, 1, 2, 1}, {2, 2, 3, 2}, {2, 2, 4, 2}, {2, 2, 4, 3},
+      {2, 3, 4, 3}, {3, 2, 4, 3}, {3, 3, 4, 3}};
+
+  private final Random random = new Random(7);
+
+  @Test
+  public void givenAnyStringsWhenExecuteThenSameDistanceAsFullTable() {
+    for (int[] costs : COSTS) {
+      DamerauLevenshteinAlgorithm dla =
+          new DamerauLevenshteinAlgorithm(costs[0], costs[1], costs[2], costs[3]);
+      for (int n = 0; n < 3000; n++) {
+        String source = randomString();
+        String target = randomString();
+        int expected = referenceDistance(costs[0], costs[1], costs[2], costs[3], source, target);
+
+        assertThat(source + " / " + target, dla.execute(source, target), is(expected));
+      }
+    }
+  }
+
+  @Test
+  public void givenMaxDistanceWhenExecuteThenExactBelowAndCappedAbove() {
+    for (int[] costs : COSTS) {
+      DamerauLevenshteinAlgorithm dla =
+          new DamerauLevenshteinAlgorithm(costs[0], costs[1], costs[2], costs[3]);
+      for (int n = 0; n < 3000; n++) {
+        String source = randomString();
+        String target = randomString();
+        int expected = referenceDistance(costs[0], costs[1], costs[2], costs[3], source, target);
+        for (int maxDistance = 0; maxDistance <= expected + 2; maxDistance++) {
+
+          int distance = dla.execute(source, target, maxDistance);
+
+          assertThat(source + " / " + target + " within " + maxDistance, distance,
+              is(expected <= maxDistance ? expected : maxDistance + 1));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void givenReplaceCostingMoreThanSwapWhenExecuteWithinMaxDistanceThenTranspositionFound() {
+    DamerauLevenshteinAlgorithm dla = new DamerauLevenshteinAlgorithm(1, 1, 3, 1);
+
+    assertThat(dla.execute("ced", "cde", 1), is(1));
+  }
+
+  @Test
+  public void givenNonAsciiAndLongStringsWhenExecuteThenSameDistanceAsFullTable() {
+    DamerauLevenshteinAlgorithm dla = new DamerauLevenshteinAlgorithm(1, 1, 1, 1);
+    DamerauLevenshteinAlgorithm bitParallel = new BitParallelDamerauLevenshtein(1, 1, 1, 1);
+    String alphabet = "ab\u00e9\u00e8\u4e2d\u6587\u0416\u0436\u03b1\u03b2\u05d0\u05d1\u0e01\u0e02"
+        + "\u3042\u3044\u2603\u2764";
+    for (int n = 0; n < 200; n++) {
+      // Above the size of the table kept by each thread now and then
+      int length = n % 20 == 0 ? 150 + random.nextInt(50) : random.nextInt(30);
+      StringBuilder source = new StringBuilder();
+      StringBuilder target = new StringBuilder();
+      for (int i = 0; i < length; i++) {
+        source.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        target.append(alphabet.charAt(random.nextInt(alphabet.length())));
+      }
+      String mutated = mutate(source.toString());
+      for (String other : new String[]{target.toString(), mutated}) {
+        int expected = referenceDistance(1, 1, 1, 1, source.toString(), other);
+        assertThat(dla.execute(source.toString(), other), is(expected));
+        assertThat(bitParallel.execute(source.toString(), other), is(expected));
+      }
+    }
+  }
+
+  @Test
+  public void givenUnitOrIndelCostsWhenBitParallelExecuteThenSameDistanceAsFullTable() {
+    int[][] bitParallelCosts = {{1, 1, 1, 1}, {1, 1, 2, 2}};
+    for (int[] costs : bitParallelCosts) {
+      DamerauLevenshteinAlgorithm engine =
+          new BitParallelDamerauLevenshtein(costs[0], costs[1], costs[2], costs[3]);
+      for (int n = 0; n < 5000; n++) {
+        // Around the 64 characters a word holds, longer ones fall back to the table
+        String source = randomString(n % 10 == 0 ? 56 + random.nextInt(16) : random.nextInt(12));
+        String target = mutate(source);
+        int expected = referenceDistance(costs[0], costs[1], costs[2], costs[3], source, target);
+
+        assertThat(source + " / " + target, engine.execute(source, target), is(expected));
+        int maxDistance = random.nextInt(expected + 3);
+        assertThat(source + " / " + target + " within " + maxDistance,
+            engine.execute(source, target, maxDistance),
+            is(expected <= maxDistance ? expected : maxDistance + 1));
+      }
+    }
+  }
+
+  @Test
+  public void givenTranspositionWithInsertionWhenBitParallelExecuteThenUnrestrictedDistance() {
+    DamerauLevenshteinAlgorithm engine = new BitParallelDamerauLevenshtein(1, 1, 1, 1);
+
+    assertThat(BitParallelDamerauLevenshtein.osaDistance("ca".toCharArray(), "abc".toCharArray()), is(3));
+    assertThat(engine.execute("ca", "abc"), is(2));
+    assertThat(engine.execute("abc", "ca"), is(2));
+  }
+
+  private String randomString(int length) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      sb.append("abcd".charAt(random.nextInt(4)));
+    }
+    return sb.toString();
+  }
+
+  // A few random edits, so that close strings are frequent as well
+  private String mutate(String source) {
+    if (random.nextInt(4) == 0) {
+      return randomString(random.nextInt(12));
+    }
+    StringBuilder sb = new StringBuilder(source);
+    int edits = random.nextInt(4);
+    for (int i = 0; i < edits; i++) {
+      int position = sb.length() == 0 ? 0 : random.nextInt(sb.length());
+      switch (random.nextInt(4)) {
+        case 0:
+          sb.insert(position, "abcd\u00e9".charAt(random.nextInt(5)));
+          break;
+        case 1:
+          if (sb.length() > 0) {
+            sb.deleteCharAt(position);
+          }
+          break;
+        case 2:
+          if (sb.length() > 0) {
+            sb.setCharAt(position, "abcd".charAt(random.nextInt(4)));
+          }
+          break;
+        default:
+          if (position + 1 < sb.length()) {
+            char c = sb.charAt(position);
+            sb.setCharAt(position, sb.charAt(position + 1));
+            sb.setCharAt(position + 1, c);
+          }
+      }
+    }
+    return sb.toString();
+  }
+
+  // Small alphabet so that matches and transpositions are frequent
+  private String randomString() {
+    return randomString(random.nextInt(12));
+  }
+
+  // The full table implementation the bounded one replaced
+  private static int referenceDistance(int deleteCost, int insertCost, int replaceCost,
+      int swapCost, String source, String target) {
+    if (source.length() == 0) {
+      return target.length() * insertCost;
+    }
+    if (target.length() == 0) {
+      return source.length() * deleteCost;
+    }
+    int[][] table = new int[source.length()][target.length()];
+    Map<Character, Integer> sourceIndexByCharacter = new HashMap<Character, Integer>();
+    if (source.charAt(0) != target.charAt(0)) {
+      table[0][0] = Math.min(replaceCost, deleteCost + insertCost);
+    }
+    sourceIndexByCharacter.put(source.charAt(0), 0);
+    for (int i = 1; i < source.length(); i++) {
+      int deleteDistance = table[i - 1][0] + deleteCost;
+      int insertDistance = (i + 1) * deleteCost + insertCost;
+      int matchDistance = i * deleteCost
+          + (source.charAt(i) == target.charAt(0) ? 0 : replaceCost);
+      table[i][0] = Math.min(Math.min(deleteDistance, insertDistance),
+          matchDistance);
+    }
+    for (int j = 1; j < target.length(); j++) {
+      int deleteDistance = (j + 1) * insertCost + deleteCost;
+      int insertDistance = table[0][j - 1] + insertCost;
+      int matchDistance = j * insertCost
+          + (source.charAt(0) == target.charAt(j) ? 0 : replaceCost);
+      table[0][j] = Math.min(Math.min(deleteDistance, insertDistance),
+          matchDistance);
+    }
+    for (int i = 1; i < source.length(); i++) {
+      int maxSourceLetterMatchIndex = source.charAt(i) == target.charAt(0) ? 0
+          : -1;
+      for (int j = 1; j < target.length(); j++) {
+        Integer candidateSwapIndex = sourceIndexByCharacter.get(target
+            .charAt(j));
+        int jSwap = maxSourceLetterMatchIndex;
+        int deleteDistance = table[i - 1][j] + deleteCost;
+        int insertDistance = table[i][j - 1] + insertCost;
+        int matchDistance = table[i - 1][j - 1];
+        if (source.charAt(i) != target.charAt(j)) {
+          matchDistance += replaceCost;
+        } else {
+          maxSourceLetterMatchIndex = j;
+        }
+        int swapDistance;
+        if (candidateSwapIndex != null && jSwap != -1) {
+          int iSwap = candidateSwapIndex;
+          int preSwapCost;
+          if (iSwap == 0 && jSwap == 0) {
+            preSwapCost = 0;
+          } else {
+            preSwapCost = table[Math.max(0, iSwap - 1)][Math.max(0, jSwap - 1)];
+          }
+          swapDistance = preSwapCost + (i - iSwap - 1) * deleteCost
+              + (j - jSwap - 1) * insertCost + swapCost;
+        } else {
+          swapDistance = Integer.MAX_VALUE;
+        }
+        table[i][j] = Math.min(Math.min(Math
+            .min(deleteDistance, insertDistance), matchDistance), swapDistance);
+      }
+      sourceIndexByCharacter.put(source.charAt(i), i);
+    }
+    return table[source.length() - 1][target.length() - 1];
+  }
+}
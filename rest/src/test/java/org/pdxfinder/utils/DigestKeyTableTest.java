@@ -0,0 +1,37 @@
+package org.pdxfinder.utils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.Test;
+
+class DigestKeyTableTest {
+
+  @Test
+  public void givenManyKeysWhenGetThenSameValuesAsHashMapByHexAndDigest() {
+    // Starts small to grow several times
+    DigestKeyTable<Integer> table = new DigestKeyTable<>(1);
+    Map<String, Integer> expected = new HashMap<>();
+    for (int i = 0; i < 5000; i++) {
+      String key = DigestUtils.sha256Hex("key " + i);
+      table.put(key, i);
+      expected.put(key, i);
+    }
+    assertThat(table.put(DigestUtils.sha256Hex("key 0"), -1), is(0));
+    expected.put(DigestUtils.sha256Hex("key 0"), -1);
+
+    assertThat(table.size(), is(expected.size()));
+    expected.forEach((key, value) -> assertThat(table.get(key), is(value)));
+    for (int i = 0; i < 5000; i++) {
+      assertThat(table.get(DigestUtils.sha256("key " + i)), is(i == 0 ? -1 : i));
+      assertThat(table.get(DigestUtils.sha256Hex("other " + i)), is(nullValue()));
+    }
+    String key = DigestUtils.sha256Hex("key 1");
+    assertThat(table.get(key.toUpperCase()), is(nullValue()));
+    assertThat(table.get(key.substring(1)), is(nullValue()));
+    assertThat(DigestKeyTable.isHexKey("not a key"), is(false));
+  }
+}